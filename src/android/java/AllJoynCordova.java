@@ -2,6 +2,7 @@ package org.allseen.alljoyn;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.util.Base64;
 import android.util.Log;
 import android.os.Looper;
 import android.os.Message;
@@ -16,9 +17,17 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -36,10 +45,23 @@ public class AllJoynCordova extends CordovaPlugin
     private static final String DAEMON_PWD = "1234"; // 000000 or 1234
 
     private static final long AJ_MESSAGE_SLOW_LOOP_INTERVAL = 500;
-    private static final long AJ_MESSAGE_FAST_LOOP_INTERVAL = 50;
     private static final long UNMARSHAL_TIMEOUT = 1000 * 5;
+    private static final long MSG_READ_TIMEOUT = 100;
     private static final long CONNECT_TIMEOUT = 1000 * 60;
-    private static final long METHOD_TIMEOUT = 100 * 10;
+    private static final long METHOD_TIMEOUT = 1000 * 10;
+    private static final long TIMEOUT_TICK = 100;
+    private static final int TIMEOUT_WHEEL_SIZE = 512;
+    private static final long BATCH_TICK = 10;
+    private static final int BATCH_WHEEL_SIZE = 256;
+    private static final int DEFAULT_DRAIN_BUDGET = 64;
+    private static final int DEFAULT_WORKER_THREADS = 2;
+    private static final int DEFAULT_WORKER_QUEUE_SIZE = 256;
+    private static final long WORKER_KEEP_ALIVE = 1000 * 30;
+    private static final int DEFAULT_LISTENER_QUEUE_SIZE = 64;
+    private static final int DEFAULT_LISTENER_CREDITS = 2;
+    private static final int SIGNAL_QUEUE_SIZE = 1024;
+    private static final int SIGNAL_BATCH_SIZE = 64;
+    private static final long DEFAULT_LISTENER_BLOCK_TIMEOUT = 1000;
 
     private static final long AJ_SIGNAL_FOUND_ADV_NAME = (((alljoynConstants.AJ_BUS_ID_FLAG) << 24) | (((1)) << 16) | (((0)) << 8) | (1));   /**< signal for found advertising name */
     private static final long AJ_RED_ID_FLAG = 0x80;
@@ -54,18 +76,102 @@ public class AllJoynCordova extends CordovaPlugin
     private AJ_BusAttachment bus;
     private AJ_Object proxyObjects;
     private AJ_Object appObjects;
-    private Timer m_pTimer = null;
-    private boolean m_bStartTimer = false;
-    private HashMap m_pMessageHandlers = new HashMap<String, String>();
+    private MsgLoopThread m_pMsgLoopThread = null;
+    private volatile boolean m_bStartMsgLoop = false;
+    private volatile boolean m_bShutdown = false;
+
+    // Max number of messages the msg loop dispatches per wakeup before yielding
+    private volatile int m_nDrainBudget = DEFAULT_DRAIN_BUDGET;
+
+    // Handlers for received messages, keyed by message id
+    private final MessageHandlerRegistry<MsgHandler> m_pMessageHandlers = new MessageHandlerRegistry<MsgHandler>();
     private _AJ_Message m_pMsg = new _AJ_Message();
 
-    // Indicates if there is a callback to the web app in progress
-    // This usually means we need to stop processing messages on the loop until it is done
-    boolean m_isCallbackInProgress = false;
-    _AJ_Message m_pCallbackMessagePtr = null;
+    // Method calls and session requests waiting for the web app to reply, keyed by request token.
+    // Each one holds a copy of its reply context, so the msg loop keeps running while JS works on it.
+    private final ConcurrentHashMap<Integer, PendingReply> m_pPendingReplies = new ConcurrentHashMap<Integer, PendingReply>();
+    private final AtomicInteger m_nNextReplyToken = new AtomicInteger(0);
+
+    // Method calls waiting for their reply, keyed by the serial number of the outgoing call
+    private final ConcurrentHashMap<Long, InFlightCall> m_pInFlightCalls = new ConcurrentHashMap<Long, InFlightCall>();
+
+    // Members prepared for repeated invocation, keyed by the handle given to JS
+    private final ConcurrentHashMap<Integer, PreparedMember> m_pPreparedMembers = new ConcurrentHashMap<Integer, PreparedMember>();
+    private final AtomicInteger m_nNextMemberHandle = new AtomicInteger(0);
+
+    // Last path set on each proxy object, guarded by m_pBusLock
+    private final String[] m_pProxyPaths = new String[256];
+
+    // Queues of BLOCK listeners that went over their capacity during a dispatch; only used by the msg loop thread
+    private final ArrayList<ListenerQueue> m_pBlockedQueues = new ArrayList<ListenerQueue>();
+
+    // Handlers of the listeners added with addListener, keyed by the listener id JS assigned
+    private final ConcurrentHashMap<Integer, RegisteredListener> m_pListeners = new ConcurrentHashMap<Integer, RegisteredListener>();
+
+    // Inbound queues of the flow controlled listeners, keyed by the listener id JS assigned
+    private final ConcurrentHashMap<Integer, ListenerQueue> m_pListenerQueues = new ConcurrentHashMap<Integer, ListenerQueue>();
+
+    // Filters of the listeners that JS can replace, keyed by the listener id JS assigned
+    private final ConcurrentHashMap<Integer, FilterSlot> m_pListenerFilters = new ConcurrentHashMap<Integer, FilterSlot>();
+    private final AtomicLong m_nFilteredMessages = new AtomicLong(0);
+
+    // Rate controls of the listeners, keyed by the listener id JS assigned
+    private final ConcurrentHashMap<Integer, ListenerRate> m_pListenerRates = new ConcurrentHashMap<Integer, ListenerRate>();
+
+    // Fails replies that don't arrive in time
+    private final TimeoutWheel m_pTimeoutWheel = new TimeoutWheel("AllJoynTimeouts", TIMEOUT_TICK, TIMEOUT_WHEEL_SIZE);
+
+    // Flushes listener batches when their window has passed; batch windows are short, so it ticks finer
+    private final TimeoutWheel m_pBatchWheel = new TimeoutWheel("AllJoynBatches", BATCH_TICK, BATCH_WHEEL_SIZE);
+
+    // Default time to wait for a reply, in milliseconds
+    private volatile long m_nMethodTimeout = METHOD_TIMEOUT;
+
+    // Unmarshal message bodies with one native call instead of one per value
+    private volatile boolean m_bNativeDecoder = true;
+
+    // Marshal and unmarshal message bodies with AllJoynWireCodec, as raw bytes
+    private volatile boolean m_bJavaCodec = false;
+
+    // Runs connect, registerObjects and invokeMember off the Cordova thread
+    private final AtomicInteger m_nNextWorkerId = new AtomicInteger(0);
+    private final AtomicLong m_nRejectedTasks = new AtomicLong(0);
+    private volatile ThreadPoolExecutor m_pWorkers = createWorkers(DEFAULT_WORKER_THREADS, DEFAULT_WORKER_QUEUE_SIZE);
+
+    // Serializes use of the bus transmit path between the msg loop and the other threads
+    private final Object m_pBusLock = new Object();
+
+    // Sends the signals of emitSignals in batches, without acknowledging each one
+    private final SignalSender<PendingSignal> m_pSignalSender = new SignalSender<PendingSignal>
+    (
+        "AllJoynSignals",
+        SIGNAL_QUEUE_SIZE,
+        SIGNAL_BATCH_SIZE,
+        m_pBusLock,
+        new SignalSender.Sink<PendingSignal>()
+        {
+            public String send(PendingSignal signal)
+            {
+                try
+                {
+                    return EmitSignal(signal);
+                }
+                catch (Exception e)
+                {
+                    return e.toString();
+                }
+            }
+        }
+    );
 
     // Indicates if the app is connected to the bus or not
-    boolean m_isConnectedToBus;
+    volatile boolean m_isConnectedToBus;
+
+    // Guards the msg loop state above; the msg loop thread waits on it while there is nothing to receive
+    private final Object m_pMsgLoopLock = new Object();
+
+    // Indicates if the msg loop thread is currently inside AJ_UnmarshalMsg or dispatching a message
+    private boolean m_isReceiving = false;
 
     /**
      * Sets the context of the Command. This can then be used to do things like
@@ -84,80 +190,96 @@ public class AllJoynCordova extends CordovaPlugin
         proxyObjects = new AJ_Object();
         appObjects = new AJ_Object();
 
-        // Initialize timer for msg loop
-        m_pTimer = new Timer();
-        m_pTimer.scheduleAtFixedRate
-        (
-                new TimerTask()
-                {
-                    @Override
-                    public void run()
-                    {
-                        if (!m_bStartTimer || !m_isConnectedToBus || m_isCallbackInProgress)
-                        {
-                            return;
-                        }
+        // Start the thread that receives and dispatches bus messages
+        m_pMsgLoopThread = new MsgLoopThread();
+        m_pMsgLoopThread.start();
 
-                        AJ_Status status = alljoyn.AJ_UnmarshalMsg(bus, m_pMsg, UNMARSHAL_TIMEOUT);
+        m_isConnectedToBus = false;
+        m_bStartMsgLoop = false;
 
-                        if (status == AJ_Status.AJ_OK)
-                        {
-                            final long msgId = m_pMsg.getMsgId();
-                            Log.i(TAG, "Received msgId: " + msgId);
+        Log.i(TAG, "Initialization completed.");
+    }
 
-                            if (m_pMessageHandlers.containsKey(msgId))
-                            {
-                                MsgHandler handler = (MsgHandler)m_pMessageHandlers.get(msgId);
+    /**
+     * The final call you receive before your activity is destroyed.
+     */
+    @Override
+    public void onDestroy()
+    {
+        Log.i(TAG, "Stopping msg loop.");
+        m_bShutdown = true;
+        wakeMsgLoop(true);
+        m_pTimeoutWheel.stop();
+        m_pBatchWheel.stop();
+        m_pSignalSender.stop();
+        m_pWorkers.shutdownNow();
+
+        for (ListenerQueue listenerQueue : m_pListenerQueues.values())
+        {
+            listenerQueue.close();
+        }
 
-                                try
-                                {
-                                    handler.callback(m_pMsg);
-                                }
-                                catch (Exception e)
-                                {
-                                    Log.i(TAG, "Error in msg loop: " + e.getMessage());
-                                }
-                            }
-                            else
-                            {
-                                /*
-                                 * Pass to the built-in bus message handlers
-                                 */
-                                Log.i(TAG, "AJ_BusHandleBusMessage() msgId=" + msgId);
-                                status = alljoyn.AJ_BusHandleBusMessage(m_pMsg);
-                            }
+        super.onDestroy();
+    }
 
-                            if (!m_isCallbackInProgress)
-                            {
-                                alljoyn.AJ_CloseMsg(m_pMsg);
-                            }
-                        }
-                        else if(status == AJ_Status.AJ_ERR_TIMEOUT)
-                        {
-                            // Nothing to do for now, continue i guess
-                            Log.i(TAG, "Timeout getting MSG. Will try again...");
-                            status = AJ_Status.AJ_OK;
-                        }
-                        else if (status == AJ_Status.AJ_ERR_NO_MATCH)
-                        {
-                            // Ignore unknown messages
-                            Log.i(TAG, "AJ_ERR_NO_MATCH in main loop. Ignoring!");
-                            status = AJ_Status.AJ_OK;
-                        }
-                        else
-                        {
-                            Log.i(TAG, " -- MainLoopError AJ_UnmarshalMsg returned status=" + alljoyn.AJ_StatusText(status));
-                        }
-                    }
-                },
-                AJ_MESSAGE_FAST_LOOP_INTERVAL,
-                AJ_MESSAGE_FAST_LOOP_INTERVAL
-        );
+    /**
+     * Called when the WebView navigates or reloads: the JS listeners are gone, so their handlers,
+     * queues, filters and rate controls are dropped, as are the prepared members, the requests
+     * still waiting for a reply from JS and the calls still waiting for theirs.
+     */
+    @Override
+    public void onReset()
+    {
+        Log.i(TAG, "Removing listeners.");
 
-        m_isConnectedToBus = false;
-        m_bStartTimer = false;
+        for (Integer listenerId : m_pListeners.keySet())
+        {
+            removeListener(listenerId);
+        }
 
-        Log.i(TAG, "Initialization completed.");
+        for (ListenerQueue listenerQueue : m_pListenerQueues.values())
+        {
+            listenerQueue.close();
+        }
+
+        m_pListenerQueues.clear();
+        m_pListenerFilters.clear();
+        m_pListenerRates.clear();
+        m_pSignalSender.setErrorCallback(null);
+
+        m_pPreparedMembers.clear();
+        clearPendingReplies();
+        clearInFlightCalls("Reset");
+        super.onReset();
+    }
+
+    /**
+     * Unregisters the handler of a listener added with addListener, and drops its queue, filter
+     * and rate control.
+     *
+     * @return  False if there is no listener with this id.
+     */
+    boolean removeListener(int listenerId)
+    {
+        RegisteredListener listener = m_pListeners.remove(listenerId);
+        ListenerQueue listenerQueue = m_pListenerQueues.remove(listenerId);
+
+        m_pListenerFilters.remove(listenerId);
+        m_pListenerRates.remove(listenerId);
+
+        if (listenerQueue != null)
+        {
+            listenerQueue.close();
+        }
+
+        if (listener == null)
+        {
+            return false;
+        }
+
+        m_pMessageHandlers.remove(listener.msgId, listener.handler);
+        listener.queue.close();
+        return true;
     }
 
     /**
@@ -171,12 +293,115 @@ public class AllJoynCordova extends CordovaPlugin
     @Override
     public boolean execute(String action, final JSONArray data, final CallbackContext callbackContext) throws JSONException
     {
+        if (action.equals("configure"))
+        {
+            Log.i(TAG, "AllJoyn.configure");
+            JSONObject options = data.optJSONObject(0);
+
+            if (options == null)
+            {
+                callbackContext.error("configure: Invalid argument");
+                return false;
+            }
+
+            if (options.has("drainBudget"))
+            {
+                // 1 turns draining off: one message per wakeup
+                m_nDrainBudget = Math.max(1, options.getInt("drainBudget"));
+            }
+
+            if (options.has("methodTimeout"))
+            {
+                m_nMethodTimeout = Math.max(TIMEOUT_TICK, options.getLong("methodTimeout"));
+            }
+
+            if (options.has("nativeDecoder"))
+            {
+                m_bNativeDecoder = options.getBoolean("nativeDecoder");
+            }
+
+            if (options.has("javaCodec"))
+            {
+                m_bJavaCodec = options.getBoolean("javaCodec");
+            }
+
+            if (options.has("workerThreads") || options.has("workerQueueSize"))
+            {
+                ThreadPoolExecutor current = m_pWorkers;
+                int threads = Math.max(1, options.optInt("workerThreads", current.getMaximumPoolSize()));
+                int queueSize = Math.max(1, options.optInt("workerQueueSize", current.getQueue().size() + current.getQueue().remainingCapacity()));
+
+                // The queue can't be resized; start a new pool and let the old one finish what it has queued
+                m_pWorkers = createWorkers(threads, queueSize);
+                current.shutdown();
+            }
+
+            callbackContext.success("Configured");
+            return true;
+        }
+        if (action.equals("getStatistics"))
+        {
+            ThreadPoolExecutor workers = m_pWorkers;
+            JSONObject statistics = new JSONObject();
+            statistics.put("workerThreads", workers.getPoolSize());
+            statistics.put("workerActive", workers.getActiveCount());
+            statistics.put("workerQueueDepth", workers.getQueue().size());
+            statistics.put("workerRejected", m_nRejectedTasks.get());
+            statistics.put("workerCompleted", workers.getCompletedTaskCount());
+            statistics.put("inFlightCalls", m_pInFlightCalls.size());
+            statistics.put("pendingReplies", m_pPendingReplies.size());
+            statistics.put("pendingTimeouts", m_pTimeoutWheel.size());
+
+            long listenerDropped = 0;
+            JSONObject listeners = new JSONObject();
+
+            for (Integer listenerId : m_pListenerQueues.keySet())
+            {
+                ListenerQueue listenerQueue = m_pListenerQueues.get(listenerId);
+
+                if (listenerQueue != null)
+                {
+                    JSONObject listenerStatistics = listenerQueue.getStatistics();
+                    listenerDropped += listenerStatistics.getLong("dropped");
+                    listeners.put(listenerId.toString(), listenerStatistics);
+                }
+            }
+
+            long listenerSuppressed = 0;
+
+            for (Integer listenerId : m_pListenerRates.keySet())
+            {
+                ListenerRate rate = m_pListenerRates.get(listenerId);
+
+                if (rate != null)
+                {
+                    JSONObject listenerStatistics = listeners.optJSONObject(listenerId.toString());
+
+                    if (listenerStatistics == null)
+                    {
+                        listenerStatistics = new JSONObject();
+                        listeners.put(listenerId.toString(), listenerStatistics);
+                    }
+
+                    listenerStatistics.put("suppressed", rate.getSuppressed());
+                    listenerSuppressed += rate.getSuppressed();
+                }
+            }
+
+            statistics.put("listenerDropped", listenerDropped);
+            statistics.put("listenerFiltered", m_nFilteredMessages.get());
+            statistics.put("listenerSuppressed", listenerSuppressed);
+            statistics.put("listeners", listeners);
+            statistics.put("signals", m_pSignalSender.getStatistics());
+            callbackContext.success(statistics);
+            return true;
+        }
         if (action.equals("connect"))
         {
             Log.i(TAG, "AllJoyn.connect");
             if (!m_isConnectedToBus)
             {
-                new BackgroundTask()
+                new BackgroundTask(callbackContext)
                 {
                     public void run()
                     {
@@ -198,13 +423,17 @@ public class AllJoynCordova extends CordovaPlugin
                             AJ_Status status = null;
                             Log.i(TAG, "AllJoyn.connect("+bus+","+serviceName+","+timeout+")");
 
-                            status = alljoyn.AJ_FindBusAndConnect(bus, serviceName, timeout);
+                            synchronized (m_pBusLock)
+                            {
+                                status = alljoyn.AJ_FindBusAndConnect(bus, serviceName, timeout);
+                            }
 
                             Log.i(TAG, "Called AJ_FindBusAndConnect, status = " + status);
 
                             if (status == AJ_Status.AJ_OK)
                             {
                                 m_isConnectedToBus = true;
+                                wakeMsgLoop(false);
                                 Log.i(TAG, "Connected to router!");
                                 callbackContext.success("Connected to router!");
                             }
@@ -229,20 +458,27 @@ public class AllJoynCordova extends CordovaPlugin
         if (action.equals("disconnect"))
         {
             Log.i(TAG, "AllJoyn.disconnect");
-            // Disconnect bus
-            alljoyn.AJ_Disconnect(bus);
+            // Stop background tasks and wait for the msg loop to leave the native receive
             m_isConnectedToBus = false;
+            m_bStartMsgLoop = false;
+            waitForMsgLoopIdle();
+
+            // Disconnect bus
+            clearPendingReplies();
+            clearInFlightCalls("Disconnected");
+            synchronized (m_pBusLock)
+            {
+                alljoyn.AJ_Disconnect(bus);
+            }
             bus = null;
             System.gc();
 
-            // Stop background tasks
-            m_bStartTimer = false;
             callbackContext.success("Disconnected");
             return true;
         }
         else if (action.equals("registerObjects"))
         {
-            new BackgroundTask()
+            new BackgroundTask(callbackContext)
             {
                 public void run()
                 {
@@ -360,7 +596,16 @@ public class AllJoynCordova extends CordovaPlugin
                             Log.i(TAG, "AllJoyn.registerObjects() Remote: " + remoteObjects.toString() + " => " + remote.toString());
                         }
 
-                        alljoyn.AJ_RegisterObjects(local, remote);
+                        synchronized (m_pBusLock)
+                        {
+                            alljoyn.AJ_RegisterObjects(local, remote);
+                            Arrays.fill(m_pProxyPaths, null);
+                        }
+
+                        for (PreparedMember member : m_pPreparedMembers.values())
+                        {
+                            member.forgetMemberTypes();
+                        }
                         Log.i(TAG, "AllJoyn.registerObjects succeeded.");
                         callbackContext.success("Registered objects!");
                     }
@@ -377,8 +622,14 @@ public class AllJoynCordova extends CordovaPlugin
         {
             Log.i(TAG, "AllJoyn.addAdvertisedNameListener");
             String serviceName = data.getString(0);
-            AJ_Status status = alljoyn.AJ_BusFindAdvertisedName(bus, serviceName, alljoynConstants.AJ_BUS_START_FINDING);
-            m_bStartTimer = true;
+            AJ_Status status;
+
+            synchronized (m_pBusLock)
+            {
+                status = alljoyn.AJ_BusFindAdvertisedName(bus, serviceName, alljoynConstants.AJ_BUS_START_FINDING);
+            }
+            m_bStartMsgLoop = true;
+            wakeMsgLoop(false);
 
             if( status == AJ_Status.AJ_OK)
             {
@@ -425,11 +676,18 @@ public class AllJoynCordova extends CordovaPlugin
             }
             else
             {
-                // Make sure msgId matches current callback
-                if (msgId == alljoyn.getMsgPointer(m_pCallbackMessagePtr))
+                // Make sure msgId matches a pending request
+                PendingReply pendingReply = m_pPendingReplies.remove((int)msgId);
+
+                if (pendingReply != null)
                 {
                     // Accept or reject session
-                    AJ_Status status = alljoyn.AJ_BusReplyAcceptSession(m_pMsg, response);
+                    AJ_Status status;
+
+                    synchronized (m_pBusLock)
+                    {
+                        status = alljoyn.AJ_BusReplyAcceptSession(pendingReply.getMsg(), response);
+                    }
 
                     if (status != AJ_Status.AJ_OK)
                     {
@@ -438,16 +696,13 @@ public class AllJoynCordova extends CordovaPlugin
                     else
                     {
                         callbackContext.success("replyAcceptSession: Success");
-                        alljoyn.AJ_CloseMsg(m_pMsg);
                     }
 
-                    // Unblock msg queue
-                    m_pCallbackMessagePtr = null;
-                    m_isCallbackInProgress = false;
+                    pendingReply.release();
                 }
                 else
                 {
-                    callbackContext.error("Mismatch, or i failed to compare");
+                    callbackContext.error("replyAcceptSession: Invalid argument (no pending request " + msgId + ")");
                 }
             }
 
@@ -465,17 +720,13 @@ public class AllJoynCordova extends CordovaPlugin
                 {
                     public boolean callback(_AJ_Message pMsg) throws JSONException
                     {
-                        // Save the msg and stop the msg oop
-                        m_pCallbackMessagePtr = pMsg;
-                        m_isCallbackInProgress = true;
-
                         JSONArray retObj = AJ_UnmarshalArgs(pMsg, "qus");
                         AJ_Status status = (AJ_Status)retObj.get(0);
                         JSONArray retArgs = retObj.getJSONArray(1);
 
                         JSONArray callbackArguments = new JSONArray();
                         callbackArguments.put(retArgs);
-                        callbackArguments.put(alljoyn.getMsgPointer(pMsg));
+                        callbackArguments.put(addPendingReply(pMsg));
 
                         sendSuccessMultipart(callbackArguments, this.callbackContext, true);
                         return true;
@@ -528,10 +779,6 @@ public class AllJoynCordova extends CordovaPlugin
                 {
                     public boolean callback(_AJ_Message pMsg) throws JSONException
                     {
-                        // Save the msg and stop the msg oop
-                        m_pCallbackMessagePtr = pMsg;
-                        m_isCallbackInProgress = true;
-
                         JSONArray retObj =  AJ_UnmarshalArgs(pMsg, responseType);
                         AJ_Status status = (AJ_Status)retObj.get(0);
                         JSONArray retArgs = retObj.getJSONArray(1);
@@ -544,7 +791,7 @@ public class AllJoynCordova extends CordovaPlugin
                         {
                             JSONArray msgWithResults = new JSONArray();
                             msgWithResults.put(callbackArguments);
-                            msgWithResults.put(alljoyn.getMsgPointer(pMsg));
+                            msgWithResults.put(addPendingReply(pMsg));
                             msgWithResults.put(null);
                             sendSuccessMultipart(msgWithResults, this.callbackContext, true);
                         }
@@ -558,7 +805,8 @@ public class AllJoynCordova extends CordovaPlugin
                 }
             );
 
-            m_bStartTimer = true;
+            m_bStartMsgLoop = true;
+            wakeMsgLoop(false);
             return true;
         }
         else if (action.equals("sendErrorReply"))
@@ -573,41 +821,42 @@ public class AllJoynCordova extends CordovaPlugin
             }
             else
             {
-                // Make sure msgId matches current callback
-                if (msgId == alljoyn.getMsgPointer(m_pCallbackMessagePtr))
-                {
-                    _AJ_Message replyMsg = new _AJ_Message();
-                    AJ_Status status = alljoyn.AJ_MarshalErrorMsg(m_pMsg, replyMsg, errorMessage);
+                // Make sure msgId matches a pending request
+                PendingReply pendingReply = m_pPendingReplies.remove((int)msgId);
 
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        callbackContext.error("Error status: " + status);
-                    }
-                    else
+                if (pendingReply != null)
+                {
+                    synchronized (m_pBusLock)
                     {
-                        status = alljoyn.AJ_DeliverMsg(replyMsg);
+                        _AJ_Message replyMsg = new _AJ_Message();
+                        AJ_Status status = alljoyn.AJ_MarshalErrorMsg(pendingReply.getMsg(), replyMsg, errorMessage);
 
-                        if (status == AJ_Status.AJ_OK)
+                        if (status != AJ_Status.AJ_OK)
                         {
-                            callbackContext.success("success");
+                            callbackContext.error("Error status: " + status);
                         }
                         else
                         {
-                            callbackContext.error("Error status: " + status);
-                        }
+                            status = alljoyn.AJ_DeliverMsg(replyMsg);
 
-                        alljoyn.AJ_CloseMsg(replyMsg);
-                    }
+                            if (status == AJ_Status.AJ_OK)
+                            {
+                                callbackContext.success("success");
+                            }
+                            else
+                            {
+                                callbackContext.error("Error status: " + status);
+                            }
 
-                    alljoyn.AJ_CloseMsg(m_pMsg);
+                            alljoyn.AJ_CloseMsg(replyMsg);
+                        }
+                    }
 
-                    // Unblock msg queue
-                    m_pCallbackMessagePtr = null;
-                    m_isCallbackInProgress = false;
+                    pendingReply.release();
                 }
                 else
                 {
-                    callbackContext.error("replyMessage: Invalid argument (msgId mismatch)");
+                    callbackContext.error("replyMessage: Invalid argument (no pending request " + msgId + ")");
                 }
             }
 
@@ -637,50 +886,51 @@ public class AllJoynCordova extends CordovaPlugin
             }
             else
             {
-                // Make sure msgId matches current callback
-                if (msgId == alljoyn.getMsgPointer(m_pCallbackMessagePtr))
-                {
-                    _AJ_Message replyMsg = new _AJ_Message();
-                    AJ_Status status = alljoyn.AJ_MarshalReplyMsg(m_pMsg, replyMsg);
+                // Make sure msgId matches a pending request
+                PendingReply pendingReply = m_pPendingReplies.remove((int)msgId);
 
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        callbackContext.error("Error status: " + status);
-                    }
-                    else
+                if (pendingReply != null)
+                {
+                    synchronized (m_pBusLock)
                     {
-                        status = AJ_MarshalArgs(replyMsg, replyArgumentSignature, replyArguments);
+                        _AJ_Message replyMsg = new _AJ_Message();
+                        AJ_Status status = alljoyn.AJ_MarshalReplyMsg(pendingReply.getMsg(), replyMsg);
 
-                        if (status == AJ_Status.AJ_OK)
+                        if (status != AJ_Status.AJ_OK)
                         {
-                            status = alljoyn.AJ_DeliverMsg(replyMsg);
+                            callbackContext.error("Error status: " + status);
+                        }
+                        else
+                        {
+                            status = AJ_MarshalArgs(replyMsg, replyArgumentSignature, replyArguments);
 
                             if (status == AJ_Status.AJ_OK)
                             {
-                                callbackContext.success("success");
+                                status = alljoyn.AJ_DeliverMsg(replyMsg);
+
+                                if (status == AJ_Status.AJ_OK)
+                                {
+                                    callbackContext.success("success");
+                                }
+                                else
+                                {
+                                    callbackContext.error("Error status: " + status);
+                                }
                             }
                             else
                             {
                                 callbackContext.error("Error status: " + status);
                             }
-                        }
-                        else
-                        {
-                            callbackContext.error("Error status: " + status);
-                        }
 
-                        alljoyn.AJ_CloseMsg(replyMsg);
+                            alljoyn.AJ_CloseMsg(replyMsg);
+                        }
                     }
 
-                    alljoyn.AJ_CloseMsg(m_pMsg);
-
-                    // Unblock msg queue
-                    m_pCallbackMessagePtr = null;
-                    m_isCallbackInProgress = false;
+                    pendingReply.release();
                 }
                 else
                 {
-                    callbackContext.error("replyMessage: Invalid argument (msgId mismatch)");
+                    callbackContext.error("replyMessage: Invalid argument (no pending request " + msgId + ")");
                 }
             }
 
@@ -695,7 +945,10 @@ public class AllJoynCordova extends CordovaPlugin
 
             try
             {
-                status = alljoyn.AJ_BusSetSignalRule(bus, ruleString, rule);
+                synchronized (m_pBusLock)
+                {
+                    status = alljoyn.AJ_BusSetSignalRule(bus, ruleString, rule);
+                }
             }
             catch (Exception e)
             {
@@ -743,249 +996,493 @@ public class AllJoynCordova extends CordovaPlugin
             int memberIndex = indexList.getInt(3);
             final long msgId = AJ_Encode_Message_ID(listIndex, objectIndex, interfaceIndex, memberIndex);
 
-            m_pMessageHandlers.put
-            (
-                msgId,
-                new MsgHandler(callbackContext)
+            // Optional delivery options, see addListener in www/AllJoyn.js
+            JSONObject listenerOptions = data.optJSONObject(3);
+            final boolean binary = (listenerOptions != null) && listenerOptions.optBoolean("binary", false);
+            final int chunkSize = (listenerOptions == null) ? 0 : listenerOptions.optInt("chunkSize", 0);
+            final boolean dictionaries = (listenerOptions != null) && listenerOptions.optBoolean("dictionaries", false);
+            final ListenerQueue listenerQueue;
+
+            if (listenerOptions == null)
+            {
+                listenerQueue = new ListenerQueue(callbackContext, m_pBatchWheel, 1, 0);
+            }
+            else
+            {
+                ListenerQueue.OverflowPolicy policy = null;
+
+                if (chunkSize > 0 && listenerOptions.optBoolean("conflate", false))
                 {
-                    public boolean callback(_AJ_Message pMsg) throws JSONException
-                    {
-                        JSONArray retObj =  AJ_UnmarshalArgs(pMsg, responseType);
-                        AJ_Status status = (AJ_Status)retObj.get(0);
-                        JSONArray retArgs = retObj.getJSONArray(1);
+                    // A conflated message would leave the chunks it replaced without an end
+                    callbackContext.error("addListener: chunkSize can't be combined with conflate");
+                    return false;
+                }
 
-                        if (status != AJ_Status.AJ_OK)
-                        {
-                            callbackContext.error("Failure unmarshalling response: " + alljoyn.AJ_StatusText(status));
-                            return true;
-                        }
+                if (listenerOptions.has("policy") || listenerOptions.optBoolean("conflate", false))
+                {
+                    // Conflation needs a queue to conflate in, so it turns on flow control as well
+                    policy = ListenerQueue.OverflowPolicy.fromName(listenerOptions.optString("policy", "dropOldest"));
 
-                        sendSuccessArray(retArgs, this.callbackContext, true, pMsg);
-                        return true;
+                    if (policy == null || !listenerOptions.has("listenerId"))
+                    {
+                        callbackContext.error("addListener: Invalid policy or missing listenerId");
+                        return false;
                     }
                 }
-            );
-
-            m_bStartTimer = true;
-            return true;
-        }
-        else if (action.equals("startAdvertisingName"))
-        {
-            final String nameToAdvertise = data.getString(0);
-            final int portToHostOn = data.getInt(1);
 
-            if (nameToAdvertise == null || nameToAdvertise.equals("null"))
-            {
-                callbackContext.error("startAdvertisingName: Invalid argument(s)");
-                return false;
+                listenerQueue = new ListenerQueue
+                (
+                    callbackContext,
+                    m_pBatchWheel,
+                    listenerOptions.optInt("batchSize", 1),
+                    listenerOptions.optLong("batchWindow", 0),
+                    listenerOptions.optInt("queueSize", DEFAULT_LISTENER_QUEUE_SIZE),
+                    policy,
+                    listenerOptions.optInt("credits", DEFAULT_LISTENER_CREDITS),
+                    listenerOptions.optLong("blockTimeout", DEFAULT_LISTENER_BLOCK_TIMEOUT),
+                    listenerOptions.optBoolean("conflate", false)
+                );
             }
 
-            AJ_Status status = AJ_Status.AJ_OK;
-            AJ_SessionOpts sessionOptions = null;
-
-            Log.i(TAG, "Calling AJ_BusBindSessionPort Port=" + portToHostOn);
-            status = alljoyn.AJ_BusBindSessionPort(bus, portToHostOn, sessionOptions, 0);
+            final FilterSlot filterSlot;
+            final ListenerRate rate;
 
-            if (status == AJ_Status.AJ_OK)
+            try
             {
-                final long bindSessionPortReplyKey = AJ_Reply_ID(AJ_METHOD_BIND_SESSION_PORT);
+                filterSlot = new FilterSlot(responseType);
+                rate = ListenerRate.fromOptions(listenerOptions);
 
-                m_pMessageHandlers.put
-                (
-                    bindSessionPortReplyKey,
-                    new MsgHandler(callbackContext)
-                    {
-                        public boolean callback(_AJ_Message pMsg) throws JSONException
-                        {
-                            m_pMessageHandlers.remove(bindSessionPortReplyKey);
-                            Log.i(TAG, "Got bindSessionPort reply");
-                            Log.i(TAG, "Calling AJ_BusRequestName for " + nameToAdvertise);
-                            AJ_Status status = alljoyn.AJ_BusRequestName(bus, nameToAdvertise, 0);
+                if (listenerOptions != null && listenerOptions.has("filter"))
+                {
+                    filterSlot.filter = new ListenerFilter(listenerOptions.getJSONObject("filter"), filterSlot.plan);
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                callbackContext.error("addListener: " + e.getMessage());
+                return false;
+            }
 
-                            if (status == AJ_Status.AJ_OK)
-                            {
-                                final long requestNameReplyKey = AJ_Reply_ID(AJ_METHOD_REQUEST_NAME);
+            // All options are valid, register the listener
+            if (listenerOptions != null && listenerOptions.has("listenerId"))
+            {
+                int listenerId = listenerOptions.getInt("listenerId");
 
-                                m_pMessageHandlers.put
-                                (
-                                    requestNameReplyKey,
-                                    new MsgHandler(callbackContext)
-                                    {
-                                        public boolean callback(_AJ_Message pMsg) throws JSONException
-                                        {
-                                            m_pMessageHandlers.remove(requestNameReplyKey);
-                                            Log.i(TAG, "Got busRequestName reply");
-                                            Log.i(TAG, "Calling AJ_BusAdvertiseName");
-                                            AJ_Status status = alljoyn.AJ_BusAdvertiseName(bus, nameToAdvertise, alljoynConstants.AJ_TRANSPORT_ANY, alljoynConstants.AJ_BUS_START_ADVERTISING, 0);
+                // Ids start over when the page reloads; an old listener with the same id goes away
+                removeListener(listenerId);
 
-                                            if (status == AJ_Status.AJ_OK)
-                                            {
-                                                final long busAdvertiseNameReplyKey = AJ_Reply_ID(AJ_METHOD_ADVERTISE_NAME);
+                if (listenerQueue.isFlowControlled())
+                {
+                    m_pListenerQueues.put(listenerId, listenerQueue);
+                }
 
-                                                m_pMessageHandlers.put
-                                                (
-                                                    busAdvertiseNameReplyKey,
-                                                    new MsgHandler(callbackContext)
-                                                    {
-                                                        public boolean callback(_AJ_Message pMsg) throws JSONException
-                                                        {
-                                                            m_pMessageHandlers.remove(busAdvertiseNameReplyKey);
-                                                            Log.i(TAG, "Got busAdvertiseName Reply");
+                m_pListenerFilters.put(listenerId, filterSlot);
 
-                                                            if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
-                                                            {
-                                                                callbackContext.error("startAdvertisingName: Failure reply received.");
-                                                            }
-                                                            else
-                                                            {
-                                                                Log.i(TAG, "About INIT!");
-                                                                AJ_Status status = alljoyn.AJ_AboutInit(bus, portToHostOn);
+                if (rate != null)
+                {
+                    m_pListenerRates.put(listenerId, rate);
+                }
+            }
 
-                                                                if (status != AJ_Status.AJ_OK)
-                                                                {
-                                                                    Log.i(TAG, "Failure initializing about " + alljoyn.AJ_StatusText(status));
-                                                                }
+            MsgHandler handler = new MsgHandler(callbackContext)
+            {
+                // Only used by the msg loop thread
+                private long m_nNextStreamId = 0;
 
-                                                                Log.i(TAG, "startAdvertisingName: Success");
-                                                                callbackContext.success("startAdvertisingName: Success");
-                                                            }
+                public boolean callback(_AJ_Message pMsg) throws JSONException
+                {
+                    ListenerFilter filter = filterSlot.filter;
 
-                                                            return true; // busAdvertiseNameReply
-                                                        }
-                                                    }
-                                                );
-                                            }
-                                            else
-                                            {
-                                                callbackContext.error("startAdvertisingName: Failure in AJ_BusAdvertiseName " + alljoyn.AJ_StatusText(status));
-                                            }
+                    if (filter != null && !filter.matchesHeader(pMsg.getSender(), pMsg.getObjPath(), pMsg.getSessionId()))
+                    {
+                        m_nFilteredMessages.incrementAndGet();
+                        return true;
+                    }
 
-                                            return true; // requestNameReplyHandler
-                                        }
-                                    }
-                                );
-                            }
-                            else
-                            {
-                                callbackContext.error("startAdvertisingName: Failure in AJ_BusRequestName " + alljoyn.AJ_StatusText(status));
-                            }
+                    BinaryParts binaryParts = binary ? new BinaryParts() : null;
+                    ChunkStream chunks = (chunkSize > 0) ? new ChunkStream(callbackContext, chunkSize, m_nNextStreamId, binary) : null;
+                    JSONArray retObj;
 
-                            return true; // bindSessionPortHandler
+                    if (filter != null && filter.hasArgConditions())
+                    {
+                        // Rate control only counts the messages that pass the filter
+                        retObj = UnmarshalFilteredArgs(pMsg, filter, rate, listenerQueue, binaryParts, dictionaries, chunks);
+
+                        if (retObj == null)
+                        {
+                            return true;
                         }
                     }
-                );
+                    else
+                    {
+                        if (rate != null && !rate.admit())
+                        {
+                            return true;
+                        }
+
+                        if (!listenerQueue.admit(pMsg.getSender(), pMsg.getObjPath(), pMsg.getMember()))
+                        {
+                            return true;
+                        }
+
+                        retObj = AJ_UnmarshalArgs(pMsg, filterSlot.plan, binaryParts, dictionaries, chunks);
+                    }
+
+                    if (chunks != null)
+                    {
+                        m_nNextStreamId++;
+                    }
+
+                    AJ_Status status = (AJ_Status)retObj.get(0);
+                    JSONArray retArgs = retObj.getJSONArray(1);
+
+                    if (status != AJ_Status.AJ_OK)
+                    {
+                        if (listenerQueue.isBatching() || listenerQueue.isFlowControlled())
+                        {
+                            // Keep the callback; queued results still have to reach the listener
+                            Log.i(TAG, "Failure unmarshalling signal: " + alljoyn.AJ_StatusText(status));
+                            return true;
+                        }
+
+                        callbackContext.error("Failure unmarshalling response: " + alljoyn.AJ_StatusText(status));
+                        return true;
+                    }
+
+                    if (listenerQueue.offer(new ListenerQueue.Message(pMsg.getSender(), pMsg.getObjPath(), pMsg.getMember(), pMsg.getSignature(), pMsg.getIface(), retArgs, binaryParts)))
+                    {
+                        m_pBlockedQueues.add(listenerQueue);
+                    }
+
+                    return true;
+                }
+            };
+
+            if (listenerOptions != null && listenerOptions.has("listenerId"))
+            {
+                m_pListeners.put(listenerOptions.getInt("listenerId"), new RegisteredListener(msgId, handler, listenerQueue));
             }
-            else
+
+            m_pMessageHandlers.add(msgId, handler);
+            m_bStartMsgLoop = true;
+            wakeMsgLoop(false);
+            return true;
+        }
+        else if (action.equals("listenerAck"))
+        {
+            // [[listenerId, count], ...]: results the JS listeners have finished with
+            JSONArray acks = data.getJSONArray(0);
+
+            for (int i = 0; i < acks.length(); i++)
             {
-                callbackContext.error("startAdvertisingName: Failure in AJ_BusBindSessionPort " + alljoyn.AJ_StatusText(status));
-                return false;
+                JSONArray ack = acks.getJSONArray(i);
+                ListenerQueue listenerQueue = m_pListenerQueues.get(ack.getInt(0));
+
+                if (listenerQueue != null)
+                {
+                    listenerQueue.ack(ack.getInt(1));
+                }
             }
 
+            callbackContext.success();
             return true;
         }
-        else if (action.equals("stopAdvertisingName"))
+        else if (action.equals("removeListener"))
         {
-            final String wellKnownName = data.getString(0);
-            final int port = data.getInt(1);
-            AJ_Status status = alljoyn.AJ_BusUnbindSession(bus, port);
+            // [listenerId]: no more messages for a listener added with addListener
+            if (!removeListener(data.getInt(0)))
+            {
+                callbackContext.error("removeListener: Unknown listener " + data.getInt(0));
+                return true;
+            }
+
+            callbackContext.success();
+            return true;
+        }
+        else if (action.equals("setListenerFilter"))
+        {
+            // [listenerId, filter or null]: replaces the filter of a listener added with one
+            FilterSlot filterSlot = m_pListenerFilters.get(data.getInt(0));
 
-            if(status == AJ_Status.AJ_OK)
+            if (filterSlot == null)
             {
-                final long unbindSessionReplyKey = AJ_Reply_ID(AJ_METHOD_UNBIND_SESSION);
+                callbackContext.error("setListenerFilter: Unknown listener " + data.getInt(0));
+                return true;
+            }
 
-                m_pMessageHandlers.put
-                (
-                    unbindSessionReplyKey,
-                    new MsgHandler(callbackContext)
-                    {
-                        public boolean callback(_AJ_Message pMsg) throws JSONException
-                        {
-                            m_pMessageHandlers.remove(unbindSessionReplyKey);
+            try
+            {
+                filterSlot.filter = data.isNull(1) ? null : new ListenerFilter(data.getJSONObject(1), filterSlot.plan);
+            }
+            catch (IllegalArgumentException e)
+            {
+                callbackContext.error("setListenerFilter: " + e.getMessage());
+                return true;
+            }
 
-                            if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
-                            {
-                                callbackContext.error("stopAdvertisingName has failed with status: " + AJ_Status.AJ_ERR_FAILURE);
-                            }
-                            else
+            callbackContext.success();
+            return true;
+        }
+        else if (action.equals("startAdvertisingName"))
+        {
+            final String nameToAdvertise = data.getString(0);
+            final int portToHostOn = data.getInt(1);
+
+            if (nameToAdvertise == null || nameToAdvertise.equals("null"))
+            {
+                callbackContext.error("startAdvertisingName: Invalid argument(s)");
+                return false;
+            }
+
+            AJ_Status status = AJ_Status.AJ_OK;
+            AJ_SessionOpts sessionOptions = null;
+
+            Log.i(TAG, "Calling AJ_BusBindSessionPort Port=" + portToHostOn);
+            // Hold the bus lock until the reply handler is registered, so the msg loop can't dispatch the reply first
+            synchronized (m_pBusLock)
+            {
+                status = alljoyn.AJ_BusBindSessionPort(bus, portToHostOn, sessionOptions, 0);
+
+                if (status == AJ_Status.AJ_OK)
+                {
+                    final long bindSessionPortReplyKey = AJ_Reply_ID(AJ_METHOD_BIND_SESSION_PORT);
+
+                    putReplyHandler
+                    (
+                        bindSessionPortReplyKey,
+                        new MsgHandler(callbackContext)
+                        {
+                            public boolean callback(_AJ_Message pMsg) throws JSONException
                             {
-                                AJ_Status status = alljoyn.AJ_BusReleaseName(bus, wellKnownName);
+                                if (!takeReplyHandler(bindSessionPortReplyKey, this))
+                                {
+                                    // Already timed out
+                                    return true;
+                                }
+
+                                Log.i(TAG, "Got bindSessionPort reply");
+                                Log.i(TAG, "Calling AJ_BusRequestName for " + nameToAdvertise);
+                                AJ_Status status = alljoyn.AJ_BusRequestName(bus, nameToAdvertise, 0);
 
                                 if (status == AJ_Status.AJ_OK)
                                 {
-                                    final long releaseNameReplyKey = AJ_Reply_ID(AJ_METHOD_RELEASE_NAME);
+                                    final long requestNameReplyKey = AJ_Reply_ID(AJ_METHOD_REQUEST_NAME);
 
-                                    m_pMessageHandlers.put
+                                    putReplyHandler
                                     (
-                                        releaseNameReplyKey,
+                                        requestNameReplyKey,
                                         new MsgHandler(callbackContext)
                                         {
                                             public boolean callback(_AJ_Message pMsg) throws JSONException
                                             {
-                                                m_pMessageHandlers.remove(releaseNameReplyKey);
-
-                                                if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
+                                                if (!takeReplyHandler(requestNameReplyKey, this))
                                                 {
-                                                    callbackContext.error("stopAdvertisingName has failed with status: " + AJ_Status.AJ_ERR_FAILURE);
+                                                    // Already timed out
+                                                    return true;
                                                 }
-                                                else
-                                                {
-                                                    AJ_Status status = alljoyn.AJ_BusAdvertiseName(bus, wellKnownName, alljoynConstants.AJ_TRANSPORT_ANY, alljoynConstants.AJ_BUS_STOP_ADVERTISING, 0);
 
-                                                    if (status == AJ_Status.AJ_OK)
-                                                    {
-                                                        final long stopAdvertiseNameReplyKey = AJ_Reply_ID(AJ_METHOD_ADVERTISE_NAME);
+                                                Log.i(TAG, "Got busRequestName reply");
+                                                Log.i(TAG, "Calling AJ_BusAdvertiseName");
+                                                AJ_Status status = alljoyn.AJ_BusAdvertiseName(bus, nameToAdvertise, alljoynConstants.AJ_TRANSPORT_ANY, alljoynConstants.AJ_BUS_START_ADVERTISING, 0);
 
-                                                        m_pMessageHandlers.put
-                                                        (
-                                                            stopAdvertiseNameReplyKey,
-                                                            new MsgHandler(callbackContext)
+                                                if (status == AJ_Status.AJ_OK)
+                                                {
+                                                    final long busAdvertiseNameReplyKey = AJ_Reply_ID(AJ_METHOD_ADVERTISE_NAME);
+
+                                                    putReplyHandler
+                                                    (
+                                                        busAdvertiseNameReplyKey,
+                                                        new MsgHandler(callbackContext)
+                                                        {
+                                                            public boolean callback(_AJ_Message pMsg) throws JSONException
                                                             {
-                                                                public boolean callback(_AJ_Message pMsg) throws JSONException
+                                                                if (!takeReplyHandler(busAdvertiseNameReplyKey, this))
                                                                 {
-                                                                    m_pMessageHandlers.remove(stopAdvertiseNameReplyKey);
+                                                                    // Already timed out
+                                                                    return true;
+                                                                }
 
-                                                                    if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
-                                                                    {
-                                                                        callbackContext.error("stopAdvertisingName has failed with status: " + AJ_Status.AJ_ERR_FAILURE);
-                                                                    }
-                                                                    else
+                                                                Log.i(TAG, "Got busAdvertiseName Reply");
+
+                                                                if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
+                                                                {
+                                                                    callbackContext.error("startAdvertisingName: Failure reply received.");
+                                                                }
+                                                                else
+                                                                {
+                                                                    Log.i(TAG, "About INIT!");
+                                                                    AJ_Status status = alljoyn.AJ_AboutInit(bus, portToHostOn);
+
+                                                                    if (status != AJ_Status.AJ_OK)
                                                                     {
-                                                                        callbackContext.success("stopAdvertisingName: Success");
+                                                                        Log.i(TAG, "Failure initializing about " + alljoyn.AJ_StatusText(status));
                                                                     }
 
-                                                                    return true;
+                                                                    Log.i(TAG, "startAdvertisingName: Success");
+                                                                    callbackContext.success("startAdvertisingName: Success");
                                                                 }
+
+                                                                return true; // busAdvertiseNameReply
                                                             }
-                                                        );
+                                                        },
+                                                        m_nMethodTimeout
+                                                    );
+                                                }
+                                                else
+                                                {
+                                                    callbackContext.error("startAdvertisingName: Failure in AJ_BusAdvertiseName " + alljoyn.AJ_StatusText(status));
+                                                }
+
+                                                return true; // requestNameReplyHandler
+                                            }
+                                        },
+                                        m_nMethodTimeout
+                                    );
+                                }
+                                else
+                                {
+                                    callbackContext.error("startAdvertisingName: Failure in AJ_BusRequestName " + alljoyn.AJ_StatusText(status));
+                                }
+
+                                return true; // bindSessionPortHandler
+                            }
+                        },
+                        m_nMethodTimeout
+                    );
+                }
+                else
+                {
+                    callbackContext.error("startAdvertisingName: Failure in AJ_BusBindSessionPort " + alljoyn.AJ_StatusText(status));
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        else if (action.equals("stopAdvertisingName"))
+        {
+            final String wellKnownName = data.getString(0);
+            final int port = data.getInt(1);
+            AJ_Status status;
+
+            // Hold the bus lock until the reply handler is registered, so the msg loop can't dispatch the reply first
+            synchronized (m_pBusLock)
+            {
+                status = alljoyn.AJ_BusUnbindSession(bus, port);
+
+                if(status == AJ_Status.AJ_OK)
+                {
+                    final long unbindSessionReplyKey = AJ_Reply_ID(AJ_METHOD_UNBIND_SESSION);
+
+                    putReplyHandler
+                    (
+                        unbindSessionReplyKey,
+                        new MsgHandler(callbackContext)
+                        {
+                            public boolean callback(_AJ_Message pMsg) throws JSONException
+                            {
+                                if (!takeReplyHandler(unbindSessionReplyKey, this))
+                                {
+                                    // Already timed out
+                                    return true;
+                                }
+
+                                if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
+                                {
+                                    callbackContext.error("stopAdvertisingName has failed with status: " + AJ_Status.AJ_ERR_FAILURE);
+                                }
+                                else
+                                {
+                                    AJ_Status status = alljoyn.AJ_BusReleaseName(bus, wellKnownName);
+
+                                    if (status == AJ_Status.AJ_OK)
+                                    {
+                                        final long releaseNameReplyKey = AJ_Reply_ID(AJ_METHOD_RELEASE_NAME);
+
+                                        putReplyHandler
+                                        (
+                                            releaseNameReplyKey,
+                                            new MsgHandler(callbackContext)
+                                            {
+                                                public boolean callback(_AJ_Message pMsg) throws JSONException
+                                                {
+                                                    if (!takeReplyHandler(releaseNameReplyKey, this))
+                                                    {
+                                                        // Already timed out
+                                                        return true;
+                                                    }
+
+                                                    if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
+                                                    {
+                                                        callbackContext.error("stopAdvertisingName has failed with status: " + AJ_Status.AJ_ERR_FAILURE);
                                                     }
                                                     else
                                                     {
-                                                        callbackContext.error("stopAdvertisingName has failed with status: " + alljoyn.AJ_StatusText(status));
+                                                        AJ_Status status = alljoyn.AJ_BusAdvertiseName(bus, wellKnownName, alljoynConstants.AJ_TRANSPORT_ANY, alljoynConstants.AJ_BUS_STOP_ADVERTISING, 0);
+
+                                                        if (status == AJ_Status.AJ_OK)
+                                                        {
+                                                            final long stopAdvertiseNameReplyKey = AJ_Reply_ID(AJ_METHOD_ADVERTISE_NAME);
+
+                                                            putReplyHandler
+                                                            (
+                                                                stopAdvertiseNameReplyKey,
+                                                                new MsgHandler(callbackContext)
+                                                                {
+                                                                    public boolean callback(_AJ_Message pMsg) throws JSONException
+                                                                    {
+                                                                        if (!takeReplyHandler(stopAdvertiseNameReplyKey, this))
+                                                                        {
+                                                                            // Already timed out
+                                                                            return true;
+                                                                        }
+
+                                                                        if (pMsg == null || pMsg.getHdr() == null || pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
+                                                                        {
+                                                                            callbackContext.error("stopAdvertisingName has failed with status: " + AJ_Status.AJ_ERR_FAILURE);
+                                                                        }
+                                                                        else
+                                                                        {
+                                                                            callbackContext.success("stopAdvertisingName: Success");
+                                                                        }
+
+                                                                        return true;
+                                                                    }
+                                                                },
+                                                                m_nMethodTimeout
+                                                            );
+                                                        }
+                                                        else
+                                                        {
+                                                            callbackContext.error("stopAdvertisingName has failed with status: " + alljoyn.AJ_StatusText(status));
+                                                        }
                                                     }
+
+                                                    return true;
                                                 }
+                                            },
+                                            m_nMethodTimeout
+                                        );
 
-                                                return true;
-                                            }
-                                        }
-                                    );
+                                        return true;
+                                    }
 
-                                    return true;
+                                    callbackContext.success("startAdvertisingName: Success");
                                 }
 
-                                callbackContext.success("startAdvertisingName: Success");
+                                return true;
                             }
+                        },
+                        m_nMethodTimeout
+                    );
 
-                            return true;
-                        }
-                    }
-                );
-
-                return true;
-            }
-            else
-            {
-                callbackContext.error("stopAdvertisingName has failed.");
-                return false;
+                    return true;
+                }
+                else
+                {
+                    callbackContext.error("stopAdvertisingName has failed.");
+                    return false;
+                }
             }
         }
         else if (action.equals("joinSession"))
@@ -1002,81 +1499,97 @@ public class AllJoynCordova extends CordovaPlugin
             JSONObject server = data.getJSONObject(0);
             int port = (Integer)server.get("port");
             final String name = (String)server.get("name");
-            status = alljoyn.AJ_BusJoinSession(bus, name, port, null);
-
-            if (status == AJ_Status.AJ_OK)
+            long joinTimeout = server.optLong("timeout", m_nMethodTimeout);
+            // Hold the bus lock until the reply handler is registered, so the msg loop can't dispatch the reply first
+            synchronized (m_pBusLock)
             {
-                final long msgId = AJ_Reply_ID(AJ_METHOD_JOIN_SESSION);
-                m_pMessageHandlers.put
-                (
-                    msgId,
-                    new MsgHandler(callbackContext)
-                    {
-                        public boolean callback(_AJ_Message pMsg) throws JSONException
-                        {
-                            m_pMessageHandlers.remove(msgId);
-                            Log.i(TAG, " -- Got reply to JoinSession ---");
-                            Log.i(TAG, "MsgType: " + pMsg.getHdr().getMsgType());
-                            long replyCode;
-                            long sessionId;
+                status = alljoyn.AJ_BusJoinSession(bus, name, port, null);
 
-                            if (pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
-                            {
-                                callbackContext.error("Failure joining session MSG ERROR");
-                            }
-                            else
+                if (status == AJ_Status.AJ_OK)
+                {
+                    final long msgId = AJ_Reply_ID(AJ_METHOD_JOIN_SESSION);
+                    putReplyHandler
+                    (
+                        msgId,
+                        new MsgHandler(callbackContext)
+                        {
+                            public boolean callback(_AJ_Message pMsg) throws JSONException
                             {
-                                JSONArray args = AJ_UnmarshalArgs(pMsg, "uu");
-                                replyCode = args.getJSONArray(1).getLong(0);
-                                sessionId = args.getJSONArray(1).getLong(1);
-                                Log.i(TAG, "replyCode=" + replyCode +  " sessionId=" + sessionId);
-
-                                if (replyCode == alljoynConstants.AJ_JOINSESSION_REPLY_SUCCESS)
+                                if (!takeReplyHandler(msgId, this))
                                 {
-                                    // Init responseArray
-                                    JSONArray responseArray = new JSONArray();
-                                    responseArray.put(sessionId);
-                                    responseArray.put(name);
-                                    sendSuccessArray(responseArray, this.callbackContext, false, pMsg);
+                                    // Already timed out
                                     return true;
                                 }
+
+                                Log.i(TAG, " -- Got reply to JoinSession ---");
+                                Log.i(TAG, "MsgType: " + pMsg.getHdr().getMsgType());
+                                long replyCode;
+                                long sessionId;
+
+                                if (pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
+                                {
+                                    callbackContext.error("Failure joining session MSG ERROR");
+                                }
                                 else
                                 {
-                                    if (replyCode == alljoynConstants.AJ_JOINSESSION_REPLY_ALREADY_JOINED)
+                                    JSONArray args = AJ_UnmarshalArgs(pMsg, "uu");
+                                    replyCode = args.getJSONArray(1).getLong(0);
+                                    sessionId = args.getJSONArray(1).getLong(1);
+                                    Log.i(TAG, "replyCode=" + replyCode +  " sessionId=" + sessionId);
+
+                                    if (replyCode == alljoynConstants.AJ_JOINSESSION_REPLY_SUCCESS)
                                     {
                                         // Init responseArray
                                         JSONArray responseArray = new JSONArray();
-                                        responseArray.put(pMsg.getSessionId());
+                                        responseArray.put(sessionId);
                                         responseArray.put(name);
                                         sendSuccessArray(responseArray, this.callbackContext, false, pMsg);
                                         return true;
                                     }
                                     else
                                     {
-                                        callbackContext.error("Failure joining session replyCode = " + replyCode);
-                                        return false;
+                                        if (replyCode == alljoynConstants.AJ_JOINSESSION_REPLY_ALREADY_JOINED)
+                                        {
+                                            // Init responseArray
+                                            JSONArray responseArray = new JSONArray();
+                                            responseArray.put(pMsg.getSessionId());
+                                            responseArray.put(name);
+                                            sendSuccessArray(responseArray, this.callbackContext, false, pMsg);
+                                            return true;
+                                        }
+                                        else
+                                        {
+                                            callbackContext.error("Failure joining session replyCode = " + replyCode);
+                                            return false;
+                                        }
                                     }
                                 }
-                            }
 
-                            return true;
-                        }
-                    }
-                );
+                                return true;
+                            }
+                        },
+                        joinTimeout
+                    );
 
-                return true;
-            }
-            else
-            {
-                callbackContext.error("Error: " + status.toString());
-                return false;
+                    return true;
+                }
+                else
+                {
+                    callbackContext.error("Error: " + status.toString());
+                    return false;
+                }
             }
         }
         else if (action.equals("leaveSession"))
         {
             Log.i(TAG, "AllJoyn.leaveSession");
             long sessionId = data.getLong(0);
-            AJ_Status status = alljoyn.AJ_BusLeaveSession(bus, sessionId);
+            AJ_Status status;
+
+            synchronized (m_pBusLock)
+            {
+                status = alljoyn.AJ_BusLeaveSession(bus, sessionId);
+            }
 
             if (status == AJ_Status.AJ_OK)
             {
@@ -1091,7 +1604,7 @@ public class AllJoynCordova extends CordovaPlugin
         }
         else if (action.equals("invokeMember"))
         {
-            new BackgroundTask()
+            new BackgroundTask(callbackContext)
             {
                 public void run()
                 {
@@ -1105,9 +1618,8 @@ public class AllJoynCordova extends CordovaPlugin
                         JSONArray indexList = data.getJSONArray(4);
                         String parameterTypes = data.getString(5);
                         JSONArray parameters = data.getJSONArray(6);
-                        final String outParameterSignature = (data.length() == 7) ? null : data.getString(7);
-                        boolean isOwnSession = false;
-                        AJ_Status status = AJ_Status.AJ_OK;
+                        String outParameterSignature = (data.length() == 7) ? null : data.getString(7);
+                        JSONObject callOptions = data.optJSONObject(8);
 
                         if (signature == null || indexList == null)
                         {
@@ -1115,170 +1627,211 @@ public class AllJoynCordova extends CordovaPlugin
                             return;
                         }
 
-                        if (indexList.length() < 4)
-                        {
-                            callbackContext.error("invokeMember: Expected 4 indices in indexList");
-                            return;
-                        }
-
-                        int listIndex = indexList.getInt(0);
-                        int objectIndex = indexList.getInt(1);
-                        int interfaceIndex = indexList.getInt(2);
-                        int memberIndex = indexList.getInt(3);
-
-                        if (sessionId == 0)
-                        {
-                            Log.i(TAG, "SessionId is 0, overriding listIndex to 1");
-                            listIndex = 1;
-                            isOwnSession = true;
-                        }
-
-                        long msgId = AJ_Encode_Message_ID(listIndex, objectIndex, interfaceIndex, memberIndex);
-                        Log.i(TAG, "Message id: " + msgId);
-
-                        SWIGTYPE_p_p_char memberSignature = new SWIGTYPE_p_p_char();
-                        SWIGTYPE_p_uint8_t isSecure = new SWIGTYPE_p_uint8_t();
+                        PreparedMember member = new PreparedMember(destination, path, indexList, parameterTypes, outParameterSignature, callOptions);
+                        invokeMember(member, sessionId, parameters, callbackContext);
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        callbackContext.error("invokeMember: " + e.getMessage());
+                    }
+                    catch (Exception e)
+                    {
+                        Log.i(TAG, "Exception: " + e.toString());
+                    }
+                }
+            };
 
-                        AJ_MemberType memberType = alljoyn.AJ_GetMemberType(msgId, memberSignature, isSecure);
-                        _AJ_Message msg = new _AJ_Message();
+            return true;
+        }
+        else if (action.equals("invokeBatch"))
+        {
+            new BackgroundTask(callbackContext)
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Log.i(TAG, "AllJoyn.invokeBatch");
+                        long sessionId = data.getLong(0);
+                        JSONArray items = data.getJSONArray(1);
+                        JSONObject batchOptions = data.optJSONObject(2);
+                        boolean stream = (batchOptions != null) && batchOptions.optBoolean("stream", false);
+                        BatchCall batch = new BatchCall(callbackContext, webView, items.length(), stream);
 
-                        if (path != null && path.length() > 0 && !path.equals("null")) // Checking null parameter passed from JS layer
+                        // Each call takes the bus lock on its own, so the msg loop and other calls can go in between
+                        for (int i = 0; i < items.length(); i++)
                         {
-                            status = alljoyn.AJ_SetProxyObjectPath(proxyObjects, msgId, path);
+                            CallbackContext itemContext = batch.getItemContext(i);
 
-                            if(status != AJ_Status.AJ_OK)
+                            try
                             {
-                                Log.i(TAG, "AJ_SetProxyObjectPath failed with " + alljoyn.AJ_StatusText(status));
-                                callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
-                                return;
-                            }
-                        }
-
-                        String destinationChars = "";
+                                JSONObject item = items.getJSONObject(i);
+                                PreparedMember member;
 
-                        if (destination != null && !destination.equals("null"))
-                        {
-                            destinationChars = destination;
-                        }
-
-                        if (memberType == AJ_MemberType.AJ_METHOD_MEMBER)
-                        {
-                            status = alljoyn.AJ_MarshalMethodCall(bus, msg, msgId, destinationChars, sessionId, 0, 0);
+                                if (item.has("member"))
+                                {
+                                    member = m_pPreparedMembers.get(item.getInt("member"));
+                                }
+                                else
+                                {
+                                    member = new PreparedMember(item.optString("destination", null), item.optString("path", null), item.getJSONArray("indexList"), item.optString("inParameterType", null), item.optString("outParameterType", null), item.optJSONObject("options"));
+                                }
 
-                            if (status != AJ_Status.AJ_OK)
-                            {
-                                Log.i(TAG, "Failure marshalling method call");
-                                callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
-                                return;
+                                if (member == null)
+                                {
+                                    itemContext.error("invokeBatch: Unknown handle " + item.getInt("member"));
+                                }
+                                else if (member.binary || member.chunkSize > 0)
+                                {
+                                    itemContext.error("invokeBatch: The binary and chunkSize options are not supported in a batch");
+                                }
+                                else
+                                {
+                                    JSONArray parameters = item.optJSONArray("parameters");
+                                    invokeMember(member, item.optLong("sessionId", sessionId), (parameters == null) ? new JSONArray() : parameters, itemContext);
+                                }
                             }
-
-                            if (parameterTypes != null && parameterTypes.length() > 0 && !parameterTypes.equals("null"))
+                            catch (IllegalArgumentException e)
                             {
-                                status = AJ_MarshalArgs(msg, parameterTypes, parameters);
+                                itemContext.error("invokeBatch: " + e.getMessage());
                             }
-                        }
-                        else if (memberType == AJ_MemberType.AJ_SIGNAL_MEMBER)
-                        {
-                            int signalFlags = 0;
-                            long ttl = 0;
-
-                            if (isOwnSession)
+                            catch (JSONException e)
                             {
-                                signalFlags = alljoynConstants.AJ_FLAG_GLOBAL_BROADCAST;
+                                itemContext.error("invokeBatch: Invalid invocation: " + e.getMessage());
                             }
-
-                            if (sessionId == 0 && destinationChars == "")
+                            catch (RuntimeException e)
                             {
-                                Log.i(TAG, "Sessionless signal");
-                                signalFlags |= alljoynConstants.AJ_FLAG_SESSIONLESS;
+                                // The batch only ends once every item has a result
+                                Log.i(TAG, "Exception: " + e.toString());
+                                itemContext.error("invokeBatch: " + e.toString());
                             }
+                        }
 
-                            status = alljoyn.AJ_MarshalSignal(bus, msg, msgId, destinationChars, sessionId, signalFlags, ttl);
+                        batch.start();
+                    }
+                    catch (Exception e)
+                    {
+                        Log.i(TAG, "Exception: " + e.toString());
+                        callbackContext.error("invokeBatch: Invalid Argument: " + e.getMessage());
+                    }
+                }
+            };
 
-                            if (status != AJ_Status.AJ_OK)
-                            {
-                                Log.i(TAG, "AJ_MarshalSignal failed with " + alljoyn.AJ_StatusText(status));
-                                callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
-                                return;
-                            }
+            return true;
+        }
+        else if (action.equals("emitSignals"))
+        {
+            // No reply: the signals are sent later, and failures go to the signal error listener
+            JSONArray signals = data.getJSONArray(0);
+            boolean failed = false;
 
-                            if (parameterTypes != null && parameterTypes.length() > 0)
-                            {
-                                status = AJ_MarshalArgs(msg, parameterTypes, parameters);
+            for (int i = 0; i < signals.length(); i++)
+            {
+                try
+                {
+                    JSONObject signal = signals.getJSONObject(i);
+                    PreparedMember member;
 
-                                if (status != AJ_Status.AJ_OK)
-                                {
-                                    Log.i(TAG, "Failure marshalling arguments: " + alljoyn.AJ_StatusText(status));
-                                    callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
-                                    return;
-                                }
-                            }
-                        }
-                        else if (memberType == AJ_MemberType.AJ_PROPERTY_MEMBER)
-                        {
-                            // Do nothing
-                        }
-                        else
-                        {
-                            status = AJ_Status.AJ_ERR_FAILURE;
-                        }
+                    if (signal.has("member"))
+                    {
+                        member = m_pPreparedMembers.get(signal.getInt("member"));
+                    }
+                    else
+                    {
+                        member = new PreparedMember(signal.optString("destination", null), signal.optString("path", null), signal.getJSONArray("indexList"), signal.optString("inParameterType", null), null, null);
+                    }
 
-                        if (AJ_Status.AJ_OK == status)
-                        {
-                            status = alljoyn.AJ_DeliverMsg(msg);
+                    if (member == null)
+                    {
+                        m_pSignalSender.fail("Unknown handle " + signal.getInt("member"));
+                        failed = true;
+                    }
+                    else
+                    {
+                        JSONArray parameters = signal.optJSONArray("parameters");
+                        m_pSignalSender.emit(new PendingSignal(member, signal.optLong("sessionId", 0), (parameters == null) ? new JSONArray() : parameters));
+                    }
+                }
+                catch (IllegalArgumentException e)
+                {
+                    m_pSignalSender.fail(e.getMessage());
+                    failed = true;
+                }
+                catch (JSONException e)
+                {
+                    m_pSignalSender.fail("Invalid signal: " + e.getMessage());
+                    failed = true;
+                }
+            }
 
-                            if (memberType != AJ_MemberType.AJ_SIGNAL_MEMBER)
-                            {
-                                final long replyMsgId = AJ_Reply_ID(msgId);
+            if (failed)
+            {
+                m_pSignalSender.reportErrors();
+            }
 
-                                m_pMessageHandlers.put
-                                (
-                                    replyMsgId,
-                                    new MsgHandler(callbackContext)
-                                    {
-                                        public boolean callback(_AJ_Message pMsg) throws JSONException
-                                        {
-                                            AJ_Status status = AJ_Status.AJ_OK;
-                                            JSONArray outValues = null;
-                                            m_pMessageHandlers.remove(replyMsgId);
+            return true;
+        }
+        else if (action.equals("setSignalErrorListener"))
+        {
+            m_pSignalSender.setErrorCallback(callbackContext);
 
-                                            if (pMsg == null || pMsg.getHdr() == null)
-                                            {
-                                                // Error
-                                                callbackContext.error("Error" + alljoyn.AJ_StatusText(status));
-                                                return true;
-                                            }
+            PluginResult pluginResult = new PluginResult(PluginResult.Status.NO_RESULT);
+            pluginResult.setKeepCallback(true);
+            callbackContext.sendPluginResult(pluginResult);
+            return true;
+        }
+        else if (action.equals("prepareMember"))
+        {
+            Log.i(TAG, "AllJoyn.prepareMember");
+            String destination = data.getString(0);
+            String path = data.getString(1);
+            JSONArray indexList = data.getJSONArray(2);
+            String parameterTypes = data.getString(3);
+            String outParameterSignature = data.isNull(4) ? null : data.getString(4);
+            JSONObject callOptions = data.optJSONObject(5);
+            PreparedMember member;
 
-                                            if (pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
-                                            {
-                                                callbackContext.error(pMsg.getError());
-                                                return true;
-                                            }
+            try
+            {
+                member = new PreparedMember(destination, path, indexList, parameterTypes, outParameterSignature, callOptions);
+            }
+            catch (IllegalArgumentException e)
+            {
+                callbackContext.error("prepareMember: " + e.getMessage());
+                return true;
+            }
 
-                                            if (outParameterSignature != null && outParameterSignature.length() > 0 && !outParameterSignature.equals("null"))
-                                            {
-                                                JSONArray retObj =  AJ_UnmarshalArgs(pMsg, outParameterSignature);
-                                                status = (AJ_Status)retObj.get(0);
-                                                outValues = retObj.getJSONArray(1);
-                                            }
+            // Resolve the member now, so that a handle is only given out for a member that exists
+            if (member.getMemberType(false) == AJ_MemberType.AJ_INVALID_MEMBER)
+            {
+                callbackContext.error("prepareMember: No member at indexList " + indexList.toString());
+                return true;
+            }
 
-                                            if (status != AJ_Status.AJ_OK)
-                                            {
-                                                callbackContext.error("Failure unmarshalling response: " + alljoyn.AJ_StatusText(status));
-                                                return true;
-                                            }
+            int handle = m_nNextMemberHandle.incrementAndGet();
+            m_pPreparedMembers.put(handle, member);
+            callbackContext.success(handle);
+            return true;
+        }
+        else if (action.equals("invokePrepared"))
+        {
+            new BackgroundTask(callbackContext)
+            {
+                public void run()
+                {
+                    try
+                    {
+                        PreparedMember member = m_pPreparedMembers.get(data.getInt(0));
+                        long sessionId = data.getLong(1);
+                        JSONArray parameters = data.getJSONArray(2);
 
-                                            sendSuccessArray(outValues, this.callbackContext, false, pMsg);
-                                            return true;
-                                        }
-                                    }
-                                );
-                            }
-                            else
-                            {
-                                callbackContext.success("Send signal successfully!");
-                            }
+                        if (member == null)
+                        {
+                            callbackContext.error("invokePrepared: Unknown handle " + data.getInt(0));
+                            return;
                         }
+
+                        invokeMember(member, sessionId, parameters, callbackContext);
                     }
                     catch (Exception e)
                     {
@@ -1289,86 +1842,390 @@ public class AllJoynCordova extends CordovaPlugin
 
             return true;
         }
-
-        return false;
-    }
-
-    public static long AJ_Encode_Message_ID(int o, int p, int i, int m)
-    {
-        return ((o << 24) | ((p) << 16) | ((i) << 8) | (m));
-    }
-
-    long AJ_Reply_ID(long id)
-    {
-        return ((id) | (long)((long)(AJ_RED_ID_FLAG) << 24));
-    }
-
-    JSONObject getMsgInfo(_AJ_Message pMsg) throws JSONException
-    {
-        JSONObject msgInfo = null;
-
-        if (pMsg != null)
+        else if (action.equals("releaseMember"))
         {
-            msgInfo = new JSONObject();
+            Log.i(TAG, "AllJoyn.releaseMember");
 
-            if (pMsg.getSender() != null)
+            if (m_pPreparedMembers.remove(data.getInt(0)) == null)
             {
-                msgInfo.put("sender", pMsg.getSender());
+                callbackContext.error("releaseMember: Unknown handle " + data.getInt(0));
             }
-
-            if (pMsg.getSignature()!= null)
+            else
             {
-                msgInfo.put("signature", pMsg.getSignature());
+                callbackContext.success();
             }
 
-            if (pMsg.getIface() != null)
-            {
-                msgInfo.put("iface", pMsg.getIface());
-            }
+            return true;
         }
 
-        return msgInfo;
+        return false;
     }
 
-    void sendSuccessArray(JSONArray argumentValues, CallbackContext callbackContext, boolean keepCallback, _AJ_Message pMsg) throws JSONException
+    /**
+     * Marshals and delivers a method call or signal to a member, and sends its reply or the
+     * failure to the callback.
+     *
+     * @param sessionId     The session to call in, or 0 to send to the app objects without one.
+     */
+    void invokeMember(PreparedMember member, long sessionId, JSONArray parameters, final CallbackContext callbackContext) throws JSONException
     {
-        // Init message info
-        JSONObject msgInfo = getMsgInfo(pMsg);
-
-        // Init callback results
-        JSONArray callbackResults = new JSONArray();
-        callbackResults.put(msgInfo);
-        callbackResults.put(argumentValues);
-        callbackResults.put(null);
+        boolean isOwnSession = (sessionId == 0);
+        long msgId = member.getMsgId(isOwnSession);
+        AJ_MemberType memberType = member.getMemberType(isOwnSession);
+        long timeout = (member.timeout >= 0) ? member.timeout : m_nMethodTimeout;
+        final boolean binary = member.binary;
+        final int chunkSize = member.chunkSize;
+        final boolean dictionaries = member.dictionaries;
+        final SignaturePlan outPlan = member.outPlan;
+        String destinationChars = member.destination;
+        AJ_Status status = AJ_Status.AJ_OK;
+        long callSerial = 0;
 
-        // Send plugin result
-        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, callbackResults);
-        pluginResult.setKeepCallback(keepCallback);
-        callbackContext.sendPluginResult(pluginResult);
-    }
+        if (isOwnSession)
+        {
+            Log.i(TAG, "SessionId is 0, overriding listIndex to 1");
+        }
 
-    void sendSuccessMultipart(JSONArray array, CallbackContext callbackContext, boolean keepCallback) throws JSONException
-    {
-        // Convert from JSONArray to List
-        List<PluginResult> results = new ArrayList<PluginResult>();
+        Log.i(TAG, "Message id: " + msgId);
+        _AJ_Message msg = new _AJ_Message();
 
-        for (int i = 0; i < array.length(); i++)
+        // The proxy path, the marshalled message and its delivery all use shared native state
+        synchronized (m_pBusLock)
         {
-            if (array.isNull(i))
+            status = SetProxyPath(member, msgId);
+
+            if (status != AJ_Status.AJ_OK)
             {
-                results.add(i, new PluginResult(PluginResult.Status.OK));
+                callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
+                return;
             }
-            else if (array.get(i) instanceof String)
+
+            if (memberType == AJ_MemberType.AJ_METHOD_MEMBER)
             {
-                results.add(i, new PluginResult(PluginResult.Status.OK, array.getString(i)));
+                status = alljoyn.AJ_MarshalMethodCall(bus, msg, msgId, destinationChars, sessionId, 0, timeout);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    Log.i(TAG, "Failure marshalling method call");
+                    callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
+                    return;
+                }
+
+                // Read before the args: marshalling a big body can flush the buffer the header is in
+                callSerial = alljoyn.getMsgSerial(msg);
+
+                if (member.inPlan != null)
+                {
+                    status = AJ_MarshalArgs(msg, member.inPlan, parameters);
+                }
             }
-            else if (array.get(i) instanceof JSONArray)
+            else if (memberType == AJ_MemberType.AJ_SIGNAL_MEMBER)
             {
-                results.add(i, new PluginResult(PluginResult.Status.OK, array.getJSONArray(i)));
+                status = MarshalSignal(msg, member, msgId, sessionId, parameters);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
+                    return;
+                }
             }
-            else if (array.get(i) instanceof JSONObject )
+            else if (memberType == AJ_MemberType.AJ_PROPERTY_MEMBER)
             {
-                results.add(i, new PluginResult(PluginResult.Status.OK, array.getJSONObject(i)));
+                // Do nothing
+            }
+            else
+            {
+                status = AJ_Status.AJ_ERR_FAILURE;
+            }
+
+            if (AJ_Status.AJ_OK == status)
+            {
+                if (memberType != AJ_MemberType.AJ_SIGNAL_MEMBER)
+                {
+                    // Register under the serial of this call before delivering it, so concurrent
+                    // calls to the same member each get their own reply
+                    final long serial = callSerial;
+                    MsgHandler replyHandler = new MsgHandler(callbackContext)
+                    {
+                        public boolean callback(_AJ_Message pMsg) throws JSONException
+                        {
+                            AJ_Status status = AJ_Status.AJ_OK;
+                            JSONArray outValues = null;
+                            BinaryParts binaryParts = binary ? new BinaryParts() : null;
+
+                            if (pMsg == null || pMsg.getHdr() == null)
+                            {
+                                // Error
+                                callbackContext.error("Error" + alljoyn.AJ_StatusText(status));
+                                return true;
+                            }
+
+                            if (pMsg.getHdr().getMsgType() == alljoynConstants.AJ_MSG_ERROR)
+                            {
+                                callbackContext.error(pMsg.getError());
+                                return true;
+                            }
+
+                            if (outPlan != null)
+                            {
+                                ChunkStream chunks = (chunkSize > 0) ? new ChunkStream(callbackContext, chunkSize, 0, binary) : null;
+                                JSONArray retObj =  AJ_UnmarshalArgs(pMsg, outPlan, binaryParts, dictionaries, chunks);
+                                status = (AJ_Status)retObj.get(0);
+                                outValues = retObj.getJSONArray(1);
+                            }
+
+                            if (status != AJ_Status.AJ_OK)
+                            {
+                                callbackContext.error("Failure unmarshalling response: " + alljoyn.AJ_StatusText(status));
+                                return true;
+                            }
+
+                            sendSuccessArray(outValues, this.callbackContext, false, pMsg, binaryParts);
+                            return true;
+                        }
+                    };
+
+                    final InFlightCall inFlightCall = new InFlightCall(destinationChars, replyHandler);
+
+                    m_pInFlightCalls.put(serial, inFlightCall);
+
+                    // Whoever removes the call from the table first, the reply or the deadline, completes it
+                    inFlightCall.timeout = m_pTimeoutWheel.schedule
+                    (
+                        timeout,
+                        new Runnable()
+                        {
+                            public void run()
+                            {
+                                if (m_pInFlightCalls.remove(serial, inFlightCall))
+                                {
+                                    callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(AJ_Status.AJ_ERR_TIMEOUT));
+                                }
+                            }
+                        }
+                    );
+
+                    status = alljoyn.AJ_DeliverMsg(msg);
+
+                    if (status != AJ_Status.AJ_OK && m_pInFlightCalls.remove(serial, inFlightCall))
+                    {
+                        inFlightCall.timeout.cancel();
+                        callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
+                    }
+                }
+                else
+                {
+                    status = alljoyn.AJ_DeliverMsg(msg);
+
+                    if (status != AJ_Status.AJ_OK)
+                    {
+                        Log.i(TAG, "Failure delivering signal: " + alljoyn.AJ_StatusText(status));
+                        callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
+                        return;
+                    }
+
+                    callbackContext.success("Send signal successfully!");
+                }
+            }
+            else
+            {
+                Log.i(TAG, "Failure marshalling arguments: " + alljoyn.AJ_StatusText(status));
+                callbackContext.error("InvokeMember failure: " + alljoyn.AJ_StatusText(status));
+            }
+        }
+    }
+
+    /**
+     * Sets the path of the proxy object of a member, unless it is the path set last. Repeated
+     * calls to the same object mostly keep it. Callers hold m_pBusLock.
+     */
+    AJ_Status SetProxyPath(PreparedMember member, long msgId)
+    {
+        if (member.path == null)
+        {
+            return AJ_Status.AJ_OK;
+        }
+
+        int objectIndex = (int)((msgId >> 16) & 0xFF);
+
+        if (member.path.equals(m_pProxyPaths[objectIndex]))
+        {
+            return AJ_Status.AJ_OK;
+        }
+
+        AJ_Status status = alljoyn.setProxyObjectPath(proxyObjects, msgId, member.path);
+
+        if (status != AJ_Status.AJ_OK)
+        {
+            Log.i(TAG, "AJ_SetProxyObjectPath failed with " + alljoyn.AJ_StatusText(status));
+            return status;
+        }
+
+        m_pProxyPaths[objectIndex] = member.path;
+        return status;
+    }
+
+    /**
+     * Marshals the header and args of a signal. Callers hold m_pBusLock.
+     *
+     * @param sessionId     The session to send in, or 0 to broadcast; sessionless without a destination.
+     */
+    AJ_Status MarshalSignal(_AJ_Message msg, PreparedMember member, long msgId, long sessionId, JSONArray parameters)
+    {
+        int signalFlags = 0;
+        long ttl = 0;
+
+        if (sessionId == 0)
+        {
+            signalFlags = alljoynConstants.AJ_FLAG_GLOBAL_BROADCAST;
+
+            if (member.destination.length() == 0)
+            {
+                signalFlags |= alljoynConstants.AJ_FLAG_SESSIONLESS;
+            }
+        }
+
+        AJ_Status status = alljoyn.AJ_MarshalSignal(bus, msg, msgId, member.destination, sessionId, signalFlags, ttl);
+
+        if (status != AJ_Status.AJ_OK)
+        {
+            Log.i(TAG, "AJ_MarshalSignal failed with " + alljoyn.AJ_StatusText(status));
+            return status;
+        }
+
+        if (member.inPlan != null)
+        {
+            status = AJ_MarshalArgs(msg, member.inPlan, parameters);
+
+            if (status != AJ_Status.AJ_OK)
+            {
+                Log.i(TAG, "Failure marshalling arguments: " + alljoyn.AJ_StatusText(status));
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Marshals and delivers a signal queued by emitSignals. Called on the signal sender thread with m_pBusLock held.
+     *
+     * @return  Null if the signal was delivered, or what went wrong.
+     */
+    String EmitSignal(PendingSignal signal)
+    {
+        if (!m_isConnectedToBus || bus == null)
+        {
+            return "Not connected";
+        }
+
+        boolean isOwnSession = (signal.sessionId == 0);
+        long msgId = signal.member.getMsgId(isOwnSession);
+
+        if (signal.member.getMemberType(isOwnSession) != AJ_MemberType.AJ_SIGNAL_MEMBER)
+        {
+            return "Not a signal: " + msgId;
+        }
+
+        AJ_Status status = SetProxyPath(signal.member, msgId);
+
+        if (status == AJ_Status.AJ_OK)
+        {
+            _AJ_Message msg = new _AJ_Message();
+            status = MarshalSignal(msg, signal.member, msgId, signal.sessionId, signal.parameters);
+
+            if (status == AJ_Status.AJ_OK)
+            {
+                status = alljoyn.AJ_DeliverMsg(msg);
+            }
+        }
+
+        return (status == AJ_Status.AJ_OK) ? null : alljoyn.AJ_StatusText(status);
+    }
+
+    public static long AJ_Encode_Message_ID(int o, int p, int i, int m)
+    {
+        return ((o << 24) | ((p) << 16) | ((i) << 8) | (m));
+    }
+
+    long AJ_Reply_ID(long id)
+    {
+        return ((id) | (long)((long)(AJ_RED_ID_FLAG) << 24));
+    }
+
+    JSONObject getMsgInfo(_AJ_Message pMsg) throws JSONException
+    {
+        JSONObject msgInfo = null;
+
+        if (pMsg != null)
+        {
+            msgInfo = new JSONObject();
+
+            if (pMsg.getSender() != null)
+            {
+                msgInfo.put("sender", pMsg.getSender());
+            }
+
+            if (pMsg.getSignature()!= null)
+            {
+                msgInfo.put("signature", pMsg.getSignature());
+            }
+
+            if (pMsg.getIface() != null)
+            {
+                msgInfo.put("iface", pMsg.getIface());
+            }
+        }
+
+        return msgInfo;
+    }
+
+    void sendSuccessArray(JSONArray argumentValues, CallbackContext callbackContext, boolean keepCallback, _AJ_Message pMsg) throws JSONException
+    {
+        sendSuccessArray(argumentValues, callbackContext, keepCallback, pMsg, null);
+    }
+
+    /**
+     * @param binary    Byte arrays whose placeholders are in argumentValues, sent as binary parts; or null.
+     */
+    void sendSuccessArray(JSONArray argumentValues, CallbackContext callbackContext, boolean keepCallback, _AJ_Message pMsg, BinaryParts binary) throws JSONException
+    {
+        // Init message info
+        JSONObject msgInfo = getMsgInfo(pMsg);
+
+        // Init callback results
+        JSONArray callbackResults = new JSONArray();
+        callbackResults.put(msgInfo);
+        callbackResults.put(argumentValues);
+        callbackResults.put(null);
+
+        // Send plugin result
+        PluginResult pluginResult = BinaryParts.toPluginResult(callbackResults, binary);
+        pluginResult.setKeepCallback(keepCallback);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+
+    void sendSuccessMultipart(JSONArray array, CallbackContext callbackContext, boolean keepCallback) throws JSONException
+    {
+        // Convert from JSONArray to List
+        List<PluginResult> results = new ArrayList<PluginResult>();
+
+        for (int i = 0; i < array.length(); i++)
+        {
+            if (array.isNull(i))
+            {
+                results.add(i, new PluginResult(PluginResult.Status.OK));
+            }
+            else if (array.get(i) instanceof String)
+            {
+                results.add(i, new PluginResult(PluginResult.Status.OK, array.getString(i)));
+            }
+            else if (array.get(i) instanceof JSONArray)
+            {
+                results.add(i, new PluginResult(PluginResult.Status.OK, array.getJSONArray(i)));
+            }
+            else if (array.get(i) instanceof JSONObject )
+            {
+                results.add(i, new PluginResult(PluginResult.Status.OK, array.getJSONObject(i)));
             }
             else if (array.get(i) instanceof Integer)
             {
@@ -1411,6 +2268,9 @@ public class AllJoynCordova extends CordovaPlugin
     {
         public CallbackContext callbackContext;
 
+        // Deadline of a one-shot reply handler, see putReplyHandler()
+        volatile TimeoutWheel.Timeout timeout;
+
         public MsgHandler(CallbackContext callbackContext)
         {
             this.callbackContext = callbackContext;
@@ -1419,472 +2279,1467 @@ public class AllJoynCordova extends CordovaPlugin
         public abstract boolean callback(_AJ_Message pMsg) throws JSONException;
     }
 
-    public abstract class BackgroundTask implements Runnable
+    /**
+     * A method call that has been delivered and is waiting for its reply
+     */
+    static class InFlightCall
     {
-        public BackgroundTask()
+        final String destination;
+        final MsgHandler handler;
+        volatile TimeoutWheel.Timeout timeout;
+
+        InFlightCall(String destination, MsgHandler handler)
         {
-            new Thread(this).start();
+            this.destination = destination;
+            this.handler = handler;
         }
 
-        public abstract void run();
+        /**
+         * @return  False if the call went to a unique name and the reply came from someone else.
+         *          Calls to well-known names are answered by the unique name of their owner, so
+         *          any sender matches those.
+         */
+        boolean matchesSender(String sender)
+        {
+            return destination == null || !destination.startsWith(":") || destination.equals(sender);
+        }
     }
 
-    // --------------------------------------------------------------------------
-    // Marshal and Unmarshal
-    // --------------------------------------------------------------------------
+    /**
+     * The filter of a listener, which setListenerFilter can replace while the listener is in use
+     */
+    static class FilterSlot
+    {
+        final SignaturePlan plan;
+        volatile ListenerFilter filter;
 
-    private static final int AJ_SCALAR         = 0x10;
-    private static final int AJ_CONTAINER      = 0x20;
-    private static final int AJ_STRING         = 0x40;
-    private static final int AJ_VARIANT        = 0x80;
+        FilterSlot(String signature)
+        {
+            this.plan = SignaturePlan.get(signature);
+        }
+    }
 
     /**
-     * Characterizes the various argument types
+     * The handler addListener registered for a listener, to unregister it by listener id
      */
-    static final int TypeFlags[] = new int[]
+    static class RegisteredListener
     {
-        0x08 | AJ_CONTAINER,  /* AJ_ARG_STRUCT            '('  */
-        0,                    /*                          ')'  */
-        0x04 | AJ_CONTAINER,  /* AJ_ARG_ARRAY             'a'  */
-        0x04 | AJ_SCALAR,     /* AJ_ARG_BOOLEAN           'b'  */
-        0,
-        0x08 | AJ_SCALAR,     /* AJ_ARG_DOUBLE            'd'  */
-        0,
-        0,
-        0x01 | AJ_STRING,     /* AJ_ARG_SIGNATURE         'g'  */
-        0x04 | AJ_SCALAR,     /* AJ_ARG_HANDLE            'h'  */
-        0x04 | AJ_SCALAR,     /* AJ_ARG_INT32             'i'  */
-        0,
-        0,
-        0,
-        0,
-        0x02 | AJ_SCALAR,     /* AJ_ARG_INT16             'n'  */
-        0x04 | AJ_STRING,     /* AJ_ARG_OBJ_PATH          'o'  */
-        0,
-        0x02 | AJ_SCALAR,     /* AJ_ARG_UINT16            'q'  */
-        0,
-        0x04 | AJ_STRING,     /* AJ_ARG_STRING            's'  */
-        0x08 | AJ_SCALAR,     /* AJ_ARG_UINT64            't'  */
-        0x04 | AJ_SCALAR,     /* AJ_ARG_UINT32            'u'  */
-        0x01 | AJ_VARIANT,    /* AJ_ARG_VARIANT           'v'  */
-        0,
-        0x08 | AJ_SCALAR,     /* AJ_ARG_INT64             'x'  */
-        0x01 | AJ_SCALAR,     /* AJ_ARG_BYTE              'y'  */
-        0,
-        0x08 | AJ_CONTAINER,  /* AJ_ARG_DICT_ENTRY        '{'  */
-        0,
-        0                     /*                          '}'  */
-    };
+        final long msgId;
+        final MsgHandler handler;
+        final ListenerQueue queue;
 
-    /*
-    * Message argument types
-    */
-    private static final int AJ_ARG_INVALID             = '\0';     /**< AllJoyn invalid type */
-    private static final int AJ_ARG_ARRAY               = 'a';      /**< AllJoyn array container type */
-    private static final int AJ_ARG_BOOLEAN             = 'b';      /**< AllJoyn boolean basic type */
-    private static final int AJ_ARG_DOUBLE              = 'd';      /**< AllJoyn IEEE 754 double basic type */
-    private static final int AJ_ARG_SIGNATURE           = 'g';      /**< AllJoyn signature basic type */
-    private static final int AJ_ARG_HANDLE              = 'h';      /**< AllJoyn socket handle basic type */
-    private static final int AJ_ARG_INT32               = 'i';      /**< AllJoyn 32-bit signed integer basic type */
-    private static final int AJ_ARG_INT16               = 'n';      /**< AllJoyn 16-bit signed integer basic type */
-    private static final int AJ_ARG_OBJ_PATH            = 'o';      /**< AllJoyn Name of an AllJoyn object instance basic type */
-    private static final int AJ_ARG_UINT16              = 'q';      /**< AllJoyn 16-bit unsigned integer basic type */
-    private static final int AJ_ARG_STRING              = 's';      /**< AllJoyn UTF-8 NULL terminated string basic type */
-    private static final int AJ_ARG_UINT64              = 't';      /**< AllJoyn 64-bit unsigned integer basic type */
-    private static final int AJ_ARG_UINT32              = 'u';      /**< AllJoyn 32-bit unsigned integer basic type */
-    private static final int AJ_ARG_VARIANT             = 'v';      /**< AllJoyn variant container type */
-    private static final int AJ_ARG_INT64               = 'x';      /**< AllJoyn 64-bit signed integer basic type */
-    private static final int AJ_ARG_BYTE                = 'y';      /**< AllJoyn 8-bit unsigned integer basic type */
-    private static final int AJ_ARG_STRUCT              = '(';      /**< AllJoyn struct container type */
-    private static final int AJ_ARG_DICT_ENTRY          = '{';      /**< AllJoyn dictionary or map container type - an array of key-value pairs */
-    private static final int AJ_STRUCT_CLOSE            = ')';
-    private static final int AJ_DICT_ENTRY_CLOSE        = '}';
+        RegisteredListener(long msgId, MsgHandler handler, ListenerQueue queue)
+        {
+            this.msgId = msgId;
+            this.handler = handler;
+            this.queue = queue;
+        }
+    }
 
     /**
-     * This macro makes sure that the signature contains valid characters
-     * in the TypeFlags array. If the index passed is below ascii 'a'
-     * or above ascii '}' and not ascii '(' or ')' then the signature is invalid.
-     * Below is the macro broken into smaller chunks:
-     *
-     * ((t) == '(' || (t) == ')') ? (t) - '('       --> If the value is ) or (, get the value in TypeFlags
-     * :
-     * (((t) < 'a' || (t) > '}') ? '}' + 2 - 'a'    --> The value is too high or too low, return TypeFlags[30] (0)
-     * :
-     * (t) + 2 - 'a'                                --> The value is valid, get the value in TypeFlags
+     * A signal queued by emitSignals
      */
-    int TYPE_FLAG(char typeId)
+    static class PendingSignal
     {
-        return TypeFlags[((typeId) == '(' || (typeId) == ')') ? (typeId) - '(' : (((typeId) < 'a' || (typeId) > '}') ? '}' + 2 - 'a' : (typeId) + 2 - 'a') ];
+        final PreparedMember member;
+        final long sessionId;
+        final JSONArray parameters;
+
+        PendingSignal(PreparedMember member, long sessionId, JSONArray parameters)
+        {
+            this.member = member;
+            this.sessionId = sessionId;
+            this.parameters = parameters;
+        }
     }
 
-    boolean AJ_IsContainerType(char typeId)
+    /**
+     * The member an invokeMember call goes to, with everything about it that stays the same
+     * from call to call. prepareMember keeps one per handle for repeated calls.
+     */
+    static class PreparedMember
     {
-        return (TYPE_FLAG(typeId) & AJ_CONTAINER) != 0;
+        final String destination;
+        final String path;
+        final int listIndex;
+        final int objectIndex;
+        final int interfaceIndex;
+        final int memberIndex;
+        final SignaturePlan inPlan;
+        final SignaturePlan outPlan;
+        final long timeout;
+        final boolean binary;
+        final int chunkSize;
+        final boolean dictionaries;
+
+        // Resolved on first use, for the list index given and for list 1, which calls without a session go to
+        volatile AJ_MemberType memberType;
+        volatile AJ_MemberType ownMemberType;
+
+        /**
+         * Null strings and "null", as JS may send them, stand for no destination, path or args.
+         *
+         * @throws IllegalArgumentException if the index list or a signature is invalid.
+         */
+        PreparedMember(String destination, String path, JSONArray indexList, String parameterTypes, String outParameterSignature, JSONObject callOptions) throws JSONException
+        {
+            if (indexList.length() < 4)
+            {
+                throw new IllegalArgumentException("Expected 4 indices in indexList");
+            }
+
+            this.destination = isSet(destination) ? destination : "";
+            this.path = isSet(path) ? path : null;
+            this.listIndex = indexList.getInt(0);
+            this.objectIndex = indexList.getInt(1);
+            this.interfaceIndex = indexList.getInt(2);
+            this.memberIndex = indexList.getInt(3);
+            this.inPlan = isSet(parameterTypes) ? SignaturePlan.get(parameterTypes) : null;
+            this.outPlan = isSet(outParameterSignature) ? SignaturePlan.get(outParameterSignature) : null;
+            this.timeout = (callOptions == null) ? -1 : callOptions.optLong("timeout", -1);
+            this.binary = (callOptions != null) && callOptions.optBoolean("binary", false);
+            this.chunkSize = (callOptions == null) ? 0 : callOptions.optInt("chunkSize", 0);
+            this.dictionaries = (callOptions != null) && callOptions.optBoolean("dictionaries", false);
+        }
+
+        long getMsgId(boolean ownSession)
+        {
+            return AJ_Encode_Message_ID(ownSession ? 1 : listIndex, objectIndex, interfaceIndex, memberIndex);
+        }
+
+        AJ_MemberType getMemberType(boolean ownSession)
+        {
+            AJ_MemberType type = ownSession ? ownMemberType : memberType;
+
+            if (type == null)
+            {
+                type = alljoyn.AJ_GetMemberType(getMsgId(ownSession), new SWIGTYPE_p_p_char(), new SWIGTYPE_p_uint8_t());
+
+                if (ownSession)
+                {
+                    ownMemberType = type;
+                }
+                else
+                {
+                    memberType = type;
+                }
+            }
+
+            return type;
+        }
+
+        /**
+         * Drops the resolved member types, after other objects have been registered.
+         */
+        void forgetMemberTypes()
+        {
+            memberType = null;
+            ownMemberType = null;
+        }
+
+        private static boolean isSet(String value)
+        {
+            return value != null && value.length() > 0 && !value.equals("null");
+        }
     }
 
-    /*
-     *  Returns true if the specified type is represented as a number
+    /**
+     * Everything needed to reply to a received method call after the message has been closed
      */
-    boolean AJ_IsScalarType(char typeId)
+    static class PendingReply
     {
-        return (TYPE_FLAG(typeId) & AJ_SCALAR) != 0;
+        private SWIGTYPE_p_AJ_ReplyContext context;
+
+        PendingReply(SWIGTYPE_p_AJ_ReplyContext context)
+        {
+            this.context = context;
+        }
+
+        _AJ_Message getMsg()
+        {
+            return alljoyn.getReplyContextMsg(context);
+        }
+
+        synchronized void release()
+        {
+            if (context != null)
+            {
+                alljoyn.freeReplyContext(context);
+                context = null;
+            }
+        }
     }
 
-    boolean AJ_IsStringType(char typeId)
+    /**
+     * Work that runs on the worker pool. The task is queued as soon as it is created;
+     * if the pool is saturated it is rejected and its callback fails right away.
+     */
+    public abstract class BackgroundTask implements Runnable
     {
-        return (TYPE_FLAG(typeId) & AJ_STRING) != 0;
+        public CallbackContext callbackContext;
+
+        public BackgroundTask(CallbackContext callbackContext)
+        {
+            this.callbackContext = callbackContext;
+            m_pWorkers.execute(this);
+        }
+
+        public abstract void run();
     }
 
-    /*
-     * A basic type is a scalar or one of the string types
+    /**
+     * Creates the bounded worker pool. Idle threads exit after a while, so an idle plugin holds no threads.
      */
-    boolean AJ_IsBasicType(char typeId)
+    ThreadPoolExecutor createWorkers(int threads, int queueSize)
     {
-        return (TYPE_FLAG(typeId) & (AJ_STRING | AJ_SCALAR)) != 0;
+        ThreadPoolExecutor workers = new ThreadPoolExecutor
+        (
+            threads,
+            threads,
+            WORKER_KEEP_ALIVE,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "AllJoynWorker-" + m_nNextWorkerId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            new RejectedExecutionHandler()
+            {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+                {
+                    m_nRejectedTasks.incrementAndGet();
+                    Log.i(TAG, "Worker queue full, rejecting task");
+
+                    if (r instanceof BackgroundTask)
+                    {
+                        ((BackgroundTask)r).callbackContext.error("Busy: " + alljoyn.AJ_StatusText(AJ_Status.AJ_ERR_RESOURCES));
+                    }
+                }
+            }
+        );
+
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
     }
 
-    int AJ_GetTypeSize(char typeId)
+    /**
+     * Wakes the msg loop thread so it re-checks its state.
+     *
+     * @param interruptRecv     True to also cancel a receive blocked in the native socket wait.
+     */
+    void wakeMsgLoop(boolean interruptRecv)
     {
-        return (TYPE_FLAG(typeId) & 0xF);
+        synchronized (m_pMsgLoopLock)
+        {
+            m_pMsgLoopLock.notifyAll();
+        }
+
+        if (interruptRecv)
+        {
+            alljoyn.AJ_Net_Interrupt();
+        }
     }
 
-    AJ_Status UnmarshalArgs(_AJ_Message msg, StringBuffer sig, JSONArray args, StringBuffer nested) throws JSONException
+    /**
+     * Interrupts the msg loop thread and waits until it is no longer using the bus.
+     * The msg loop state must already have been changed so that the thread goes idle.
+     */
+    void waitForMsgLoopIdle()
     {
-        _AJ_Arg structArg = new _AJ_Arg();
-        _AJ_Arg arg = new _AJ_Arg();
-        AJ_Status status = AJ_Status.AJ_OK;
+        wakeMsgLoop(true);
 
-        while (sig.length() != 0)
+        synchronized (m_pMsgLoopLock)
         {
-            char typeId = sig.charAt(0);
-            nested.append(typeId);
-            sig.deleteCharAt(0);
-            char nextTypeId = (sig.length() == 0) ? '\0' : sig.charAt(0);
+            long deadline = System.currentTimeMillis() + UNMARSHAL_TIMEOUT;
 
-            if (!AJ_IsBasicType(typeId))
+            while (m_isReceiving && System.currentTimeMillis() < deadline)
             {
-                if ((typeId == AJ_ARG_STRUCT) || (typeId == AJ_ARG_DICT_ENTRY))
+                try
+                {
+                    m_pMsgLoopLock.wait(UNMARSHAL_TIMEOUT);
+                }
+                catch (InterruptedException e)
                 {
-                    status = alljoyn.AJ_UnmarshalContainer(msg, structArg, typeId);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
 
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        break;
-                    }
+    /**
+     * Receives and dispatches bus messages. Instead of polling, the thread blocks in the native
+     * socket wait (AJ_Net_WaitRxReady) without the bus lock, and wakes up as soon as bytes arrive;
+     * it then takes the lock to unmarshal and dispatch, see receiveMsg(). While it is not connected
+     * or has nothing to dispatch to, it sleeps on m_pMsgLoopLock until wakeMsgLoop() is called.
+     */
+    class MsgLoopThread extends Thread
+    {
+        public MsgLoopThread()
+        {
+            super("AllJoynMsgLoop");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while (!m_bShutdown)
+            {
+                AJ_BusAttachment loopBus;
 
-                    status = UnmarshalArgs(msg, sig, args, nested);
+                synchronized (m_pMsgLoopLock)
+                {
+                    m_isReceiving = false;
+                    m_pMsgLoopLock.notifyAll();
 
-                    if (status == AJ_Status.AJ_OK)
+                    while (!m_bShutdown && (!m_bStartMsgLoop || !m_isConnectedToBus || bus == null))
                     {
-                        int lastNestedTypeId = nested.charAt(nested.length() - 1);
-
-                        if ((lastNestedTypeId == AJ_STRUCT_CLOSE) || (lastNestedTypeId == AJ_DICT_ENTRY_CLOSE))
+                        try
                         {
-                            status = alljoyn.AJ_UnmarshalCloseContainer(msg, structArg);
-
-                            if (status != AJ_Status.AJ_OK)
-                            {
-                                break;
-                            }
+                            m_pMsgLoopLock.wait();
                         }
-                        else
+                        catch (InterruptedException e)
                         {
-                            status = AJ_Status.AJ_ERR_MARSHAL;
-                            break;
+                            return;
                         }
-
-                        continue;
                     }
-                    else
+
+                    if (m_bShutdown)
                     {
                         break;
                     }
-                }
-
-                if ((typeId == AJ_ARG_ARRAY) && AJ_IsBasicType(nextTypeId))
-                {
-                    if (!AJ_IsScalarType(nextTypeId)) // "as"
-                    {
-                        _AJ_Arg arrayArg = new _AJ_Arg();
-                        status = alljoyn.AJ_UnmarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
-                        JSONArray vArgs = new JSONArray();
 
-                        do
-                        {
-                            _AJ_Arg inArg = new _AJ_Arg();
-                            status = alljoyn.AJ_UnmarshalArg(msg, arg);
+                    m_isReceiving = true;
+                    loopBus = bus;
+                }
 
-                            if (status != AJ_Status.AJ_OK)
-                            {
-                                break;
-                            }
+                // Wait for bytes without the bus lock, so that calls and signals can go out meanwhile
+                AJ_Status status = alljoyn.waitForMsg(loopBus, UNMARSHAL_TIMEOUT);
 
-                            vArgs.put(inArg.getVal().getV_string());
-                        }
-                        while (status == AJ_Status.AJ_OK);
+                if (status == AJ_Status.AJ_OK)
+                {
+                    status = receiveMsg(loopBus);
+                }
 
-                        args.put(vArgs);
-                        status = alljoyn.AJ_UnmarshalCloseContainer(msg, arrayArg);
+                if (!handleUnmarshalStatus(status))
+                {
+                    // Back off so a broken connection doesn't spin the loop
+                    try
+                    {
+                        Thread.sleep(AJ_MESSAGE_SLOW_LOOP_INTERVAL);
                     }
-                    else
+                    catch (InterruptedException e)
                     {
-                        _AJ_Arg arrayArg = new _AJ_Arg();
-                        status = alljoyn.AJ_UnmarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
-                        JSONArray vArgs = new JSONArray();
-
-                        do
-                        {
-                            status = alljoyn.AJ_UnmarshalArg(msg, arg);
-
-                            if (status != AJ_Status.AJ_OK)
-                            {
-                                break;
-                            }
-
-                            int sizeOfType = (TYPE_FLAG(nextTypeId) & 0xF);
-
-                            switch (sizeOfType)
-                            {
-                                case 1:
-                                    vArgs.put(Integer.parseInt(alljoyn.getV_byte(arg.getVal().getV_byte())));
-                                    break;
-
-                                case 2:
-                                    if (nextTypeId == 'n')
-                                    {
-                                        vArgs.put(Integer.parseInt(alljoyn.getV_int16(arg.getVal().getV_int16())));
-                                    }
-                                    else
-                                    {
-                                        vArgs.put(Integer.parseInt(alljoyn.getV_uint16(arg.getVal().getV_uint16())) & 0xFFFF);
-                                    }
-                                    break;
-
-                                case 4:
-                                    if (nextTypeId == 'i')
-                                    {
-                                        vArgs.put(Long.parseLong(alljoyn.getV_int32(arg.getVal().getV_int32())));
-                                    }
-                                    else
-                                    {
-                                        vArgs.put(Long.parseLong(alljoyn.getV_uint32(arg.getVal().getV_uint32())) & 0xFFFFFFFF);
-                                    }
-                                    break;
-
-                                case 8:
-                                    if (nextTypeId == 'd')
-                                    {
-                                        try
-                                        {
-                                            vArgs.put(Double.parseDouble(alljoyn.getV_double(arg.getVal().getV_double())));
-                                        }
-                                        catch (Exception e)
-                                        {
-                                            Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_READ");
-                                            return AJ_Status.AJ_ERR_READ;
-                                        }
-                                    }
-                                    else if (nextTypeId == 'x')
-                                    {
-                                        vArgs.put(Long.parseLong(alljoyn.getV_int64(arg.getVal().getV_int64())));
-                                    }
-                                    else
-                                    {
-                                        // TODO: handle big unsigned values
-                                        vArgs.put(Long.parseLong(alljoyn.getV_uint64(arg.getVal().getV_uint64())));
-                                    }
-                                    break;
-                            }
-                        }
-                        while (status == AJ_Status.AJ_OK);
-
-                        args.put(vArgs);
-                        status = alljoyn.AJ_UnmarshalCloseContainer(msg, arrayArg);
+                        return;
                     }
 
-                    sig.deleteCharAt(0);
                     continue;
                 }
 
-                if ((typeId == AJ_STRUCT_CLOSE) || (typeId == AJ_DICT_ENTRY_CLOSE))
-                {
-                    break;
-                }
+                // Drain whatever else already arrived, up to the per-wakeup budget
+                int received = isMsgReceived(status) ? 1 : 0;
 
-                if (typeId == AJ_ARG_VARIANT)
+                while (received > 0 && received < m_nDrainBudget && !m_bShutdown && m_isConnectedToBus && alljoyn.hasPendingMsg(loopBus) != 0)
                 {
-                    StringBuffer inSig = new StringBuffer();
-                    status = AJ_UnmarshalVariant(msg, inSig);
-                    args.put(inSig.toString());
-                    status = UnmarshalArgs(msg, inSig, args, nested);
+                    status = receiveMsg(loopBus);
+                    handleUnmarshalStatus(status);
 
-                    if (status != AJ_Status.AJ_OK)
+                    if (!isMsgReceived(status))
                     {
                         break;
                     }
 
-                    continue;
+                    received++;
                 }
 
-                if ((typeId == AJ_ARG_ARRAY) && !AJ_IsBasicType(nextTypeId))
+                if (received >= m_nDrainBudget)
                 {
-                    _AJ_Arg arrayArg = new _AJ_Arg();
-                    String subSig = new String();
-                    char closeContainer = (nextTypeId == '(') ? ')' : '}';
-                    subSig = sig.toString().substring(0, sig.toString().indexOf(closeContainer) + 1);
-                    status = alljoyn.AJ_UnmarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
-                    JSONArray vArgs = new JSONArray();
-
-                    do
-                    {
-                        StringBuffer inSig = new StringBuffer(subSig);
-                        StringBuffer inNested = new StringBuffer();
-                        JSONArray inArgs = new JSONArray();
-
-                        status = UnmarshalArgs(msg, inSig, inArgs, inNested);
-                        int len = inArgs.length();
+                    // Budget used up, give other threads a chance at the bus before the next wait
+                    Thread.yield();
+                }
+            }
 
-                        if (len != 0)
-                        {
-                            vArgs.put(inArgs);
-                        }
-                    }
-                    while (status == AJ_Status.AJ_OK);
+            synchronized (m_pMsgLoopLock)
+            {
+                m_isReceiving = false;
+                m_pMsgLoopLock.notifyAll();
+            }
+        }
+    }
 
-                    int len = vArgs.length();
-                    args.put(vArgs);
-                    status = alljoyn.AJ_UnmarshalCloseContainer(msg, arrayArg);
+    /**
+     * True if AJ_UnmarshalMsg consumed a message from the connection, even one that was ignored.
+     */
+    static boolean isMsgReceived(AJ_Status status)
+    {
+        return (status == AJ_Status.AJ_OK) || (status == AJ_Status.AJ_ERR_NO_MATCH);
+    }
 
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        break;
-                    }
+    /**
+     * Unmarshals and dispatches one message with the bus lock held, since ajtcl must not be used
+     * by two threads at once. Bytes have arrived already, so the lock is only held for a short
+     * read timeout if the message is incomplete.
+     */
+    AJ_Status receiveMsg(AJ_BusAttachment loopBus)
+    {
+        AJ_Status status;
 
-                    sig.delete(0, subSig.length());
-                    continue;
-                }
+        synchronized (m_pBusLock)
+        {
+            status = alljoyn.AJ_UnmarshalMsg(loopBus, m_pMsg, MSG_READ_TIMEOUT);
 
-                Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_UNEXPECTED");
-                status = AJ_Status.AJ_ERR_UNEXPECTED;
-                break;
-            }
-            else // scalar and string
+            if (status == AJ_Status.AJ_OK)
             {
-                status = alljoyn.AJ_UnmarshalArg(msg, arg);
+                dispatchMsg(m_pMsg);
+            }
+        }
 
-                if (status != AJ_Status.AJ_OK)
-                {
+        // Stall for the listeners that are out of room, now that the bus lock is released
+        for (ListenerQueue listenerQueue : m_pBlockedQueues)
+        {
+            listenerQueue.awaitRoom();
+        }
+
+        m_pBlockedQueues.clear();
+        return status;
+    }
+
+    /**
+     * Logs why no message was received with the given status, if none was.
+     *
+     * @return      False if the status was an unexpected receive error.
+     */
+    boolean handleUnmarshalStatus(AJ_Status status)
+    {
+        if (status == AJ_Status.AJ_ERR_TIMEOUT)
+        {
+            // Nothing arrived, block again
+            Log.i(TAG, "Timeout getting MSG. Will try again...");
+        }
+        else if (status == AJ_Status.AJ_ERR_INTERRUPTED)
+        {
+            // Woken up by wakeMsgLoop(), re-check the loop state
+            Log.i(TAG, "Msg loop interrupted.");
+        }
+        else if (status == AJ_Status.AJ_ERR_NO_MATCH)
+        {
+            // Ignore unknown messages
+            Log.i(TAG, "AJ_ERR_NO_MATCH in main loop. Ignoring!");
+        }
+        else if (status != AJ_Status.AJ_OK)
+        {
+            Log.i(TAG, " -- MainLoopError AJ_UnmarshalMsg returned status=" + alljoyn.AJ_StatusText(status));
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Passes a received message to its registered handler, or to the built-in bus handlers.
+     */
+    void dispatchMsg(_AJ_Message pMsg)
+    {
+        final long msgId = pMsg.getMsgId();
+        Log.i(TAG, "Received msgId: " + msgId);
+
+        synchronized (m_pBusLock)
+        {
+            InFlightCall inFlightCall = null;
+            int msgType = pMsg.getHdr().getMsgType();
+
+            if (msgType == alljoynConstants.AJ_MSG_METHOD_RET || msgType == alljoynConstants.AJ_MSG_ERROR)
+            {
+                // Replies to our own method calls are matched by serial number and sender. Errors
+                // can come from the router instead, e.g. when the destination is gone.
+                long replySerial = alljoyn.getReplySerial(pMsg);
+                boolean checkSender = (msgType == alljoynConstants.AJ_MSG_METHOD_RET);
+                inFlightCall = m_pInFlightCalls.get(replySerial);
+
+                if (inFlightCall != null && ((checkSender && !inFlightCall.matchesSender(pMsg.getSender())) || !m_pInFlightCalls.remove(replySerial, inFlightCall)))
+                {
+                    inFlightCall = null;
+                }
+            }
+
+            if (inFlightCall != null)
+            {
+                cancelTimeout(inFlightCall.timeout);
+
+                try
+                {
+                    inFlightCall.handler.callback(pMsg);
+                }
+                catch (Exception e)
+                {
+                    Log.i(TAG, "Error in msg loop: " + e.getMessage());
+                }
+            }
+            else
+            {
+                Object[] handlers = m_pMessageHandlers.get(msgId);
+
+                if (handlers.length > 0)
+                {
+                    for (int i = 0; i < handlers.length; i++)
+                    {
+                        if (i > 0)
+                        {
+                            // Let the next handler unmarshal the body from the start
+                            alljoyn.AJ_ResetArgs(pMsg);
+                        }
+
+                        try
+                        {
+                            ((MsgHandler)handlers[i]).callback(pMsg);
+                        }
+                        catch (Exception e)
+                        {
+                            Log.i(TAG, "Error in msg loop: " + e.getMessage());
+                        }
+                    }
+                }
+                else
+                {
+                    /*
+                     * Pass to the built-in bus message handlers
+                     */
+                    Log.i(TAG, "AJ_BusHandleBusMessage() msgId=" + msgId);
+                    alljoyn.AJ_BusHandleBusMessage(pMsg);
+                }
+            }
+
+            alljoyn.AJ_CloseMsg(pMsg);
+        }
+    }
+
+    /**
+     * Copies the reply context of a received method call into the pending reply table,
+     * so the message itself can be closed right away.
+     *
+     * @return      The request token the web app passes back with its reply.
+     */
+    int addPendingReply(_AJ_Message pMsg)
+    {
+        int token = m_nNextReplyToken.incrementAndGet();
+        m_pPendingReplies.put(token, new PendingReply(alljoyn.detachReplyContext(pMsg)));
+        return token;
+    }
+
+    /**
+     * Registers a one-shot handler for the reply to a bus method call. If the reply doesn't
+     * arrive before the timeout, the handler is removed and its callback fails.
+     */
+    void putReplyHandler(final long replyKey, final MsgHandler handler, long timeout)
+    {
+        m_pMessageHandlers.put(replyKey, handler);
+
+        handler.timeout = m_pTimeoutWheel.schedule
+        (
+            timeout,
+            new Runnable()
+            {
+                public void run()
+                {
+                    if (m_pMessageHandlers.remove(replyKey, handler))
+                    {
+                        handler.callbackContext.error("Timeout waiting for reply: " + alljoyn.AJ_StatusText(AJ_Status.AJ_ERR_TIMEOUT));
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Removes a one-shot reply handler when its reply arrives.
+     *
+     * @return  False if the handler has already timed out, in which case the reply must be ignored.
+     */
+    boolean takeReplyHandler(long replyKey, MsgHandler handler)
+    {
+        if (!m_pMessageHandlers.remove(replyKey, handler))
+        {
+            return false;
+        }
+
+        cancelTimeout(handler.timeout);
+        return true;
+    }
+
+    static void cancelTimeout(TimeoutWheel.Timeout timeout)
+    {
+        // Null when the reply beat the scheduling of its own deadline; the deadline is then a no-op
+        if (timeout != null)
+        {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Fails all method calls that are still waiting for a reply.
+     */
+    void clearInFlightCalls(String reason)
+    {
+        for (Long serial : m_pInFlightCalls.keySet())
+        {
+            InFlightCall inFlightCall = m_pInFlightCalls.remove(serial);
+
+            if (inFlightCall != null)
+            {
+                cancelTimeout(inFlightCall.timeout);
+                inFlightCall.handler.callbackContext.error(reason);
+            }
+        }
+    }
+
+    /**
+     * Drops all requests the web app has not replied to yet.
+     */
+    void clearPendingReplies()
+    {
+        for (Integer token : m_pPendingReplies.keySet())
+        {
+            PendingReply pendingReply = m_pPendingReplies.remove(token);
+
+            if (pendingReply != null)
+            {
+                pendingReply.release();
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------------
+    // Marshal and Unmarshal
+    // --------------------------------------------------------------------------
+
+    private static final int AJ_SCALAR         = 0x10;
+    private static final int AJ_CONTAINER      = 0x20;
+    private static final int AJ_STRING         = 0x40;
+    private static final int AJ_VARIANT        = 0x80;
+
+    /**
+     * Characterizes the various argument types
+     */
+    static final int TypeFlags[] = new int[]
+    {
+        0x08 | AJ_CONTAINER,  /* AJ_ARG_STRUCT            '('  */
+        0,                    /*                          ')'  */
+        0x04 | AJ_CONTAINER,  /* AJ_ARG_ARRAY             'a'  */
+        0x04 | AJ_SCALAR,     /* AJ_ARG_BOOLEAN           'b'  */
+        0,
+        0x08 | AJ_SCALAR,     /* AJ_ARG_DOUBLE            'd'  */
+        0,
+        0,
+        0x01 | AJ_STRING,     /* AJ_ARG_SIGNATURE         'g'  */
+        0x04 | AJ_SCALAR,     /* AJ_ARG_HANDLE            'h'  */
+        0x04 | AJ_SCALAR,     /* AJ_ARG_INT32             'i'  */
+        0,
+        0,
+        0,
+        0,
+        0x02 | AJ_SCALAR,     /* AJ_ARG_INT16             'n'  */
+        0x04 | AJ_STRING,     /* AJ_ARG_OBJ_PATH          'o'  */
+        0,
+        0x02 | AJ_SCALAR,     /* AJ_ARG_UINT16            'q'  */
+        0,
+        0x04 | AJ_STRING,     /* AJ_ARG_STRING            's'  */
+        0x08 | AJ_SCALAR,     /* AJ_ARG_UINT64            't'  */
+        0x04 | AJ_SCALAR,     /* AJ_ARG_UINT32            'u'  */
+        0x01 | AJ_VARIANT,    /* AJ_ARG_VARIANT           'v'  */
+        0,
+        0x08 | AJ_SCALAR,     /* AJ_ARG_INT64             'x'  */
+        0x01 | AJ_SCALAR,     /* AJ_ARG_BYTE              'y'  */
+        0,
+        0x08 | AJ_CONTAINER,  /* AJ_ARG_DICT_ENTRY        '{'  */
+        0,
+        0                     /*                          '}'  */
+    };
+
+    /*
+    * Message argument types
+    */
+    private static final int AJ_ARG_INVALID             = '\0';     /**< AllJoyn invalid type */
+    private static final int AJ_ARG_ARRAY               = 'a';      /**< AllJoyn array container type */
+    private static final int AJ_ARG_BOOLEAN             = 'b';      /**< AllJoyn boolean basic type */
+    private static final int AJ_ARG_DOUBLE              = 'd';      /**< AllJoyn IEEE 754 double basic type */
+    private static final int AJ_ARG_SIGNATURE           = 'g';      /**< AllJoyn signature basic type */
+    private static final int AJ_ARG_HANDLE              = 'h';      /**< AllJoyn socket handle basic type */
+    private static final int AJ_ARG_INT32               = 'i';      /**< AllJoyn 32-bit signed integer basic type */
+    private static final int AJ_ARG_INT16               = 'n';      /**< AllJoyn 16-bit signed integer basic type */
+    private static final int AJ_ARG_OBJ_PATH            = 'o';      /**< AllJoyn Name of an AllJoyn object instance basic type */
+    private static final int AJ_ARG_UINT16              = 'q';      /**< AllJoyn 16-bit unsigned integer basic type */
+    private static final int AJ_ARG_STRING              = 's';      /**< AllJoyn UTF-8 NULL terminated string basic type */
+    private static final int AJ_ARG_UINT64              = 't';      /**< AllJoyn 64-bit unsigned integer basic type */
+    private static final int AJ_ARG_UINT32              = 'u';      /**< AllJoyn 32-bit unsigned integer basic type */
+    private static final int AJ_ARG_VARIANT             = 'v';      /**< AllJoyn variant container type */
+    private static final int AJ_ARG_INT64               = 'x';      /**< AllJoyn 64-bit signed integer basic type */
+    private static final int AJ_ARG_BYTE                = 'y';      /**< AllJoyn 8-bit unsigned integer basic type */
+    private static final int AJ_ARG_STRUCT              = '(';      /**< AllJoyn struct container type */
+    private static final int AJ_ARG_DICT_ENTRY          = '{';      /**< AllJoyn dictionary or map container type - an array of key-value pairs */
+    private static final int AJ_STRUCT_CLOSE            = ')';
+    private static final int AJ_DICT_ENTRY_CLOSE        = '}';
+
+    /**
+     * This macro makes sure that the signature contains valid characters
+     * in the TypeFlags array. If the index passed is below ascii 'a'
+     * or above ascii '}' and not ascii '(' or ')' then the signature is invalid.
+     * Below is the macro broken into smaller chunks:
+     *
+     * ((t) == '(' || (t) == ')') ? (t) - '('       --> If the value is ) or (, get the value in TypeFlags
+     * :
+     * (((t) < 'a' || (t) > '}') ? '}' + 2 - 'a'    --> The value is too high or too low, return TypeFlags[30] (0)
+     * :
+     * (t) + 2 - 'a'                                --> The value is valid, get the value in TypeFlags
+     */
+    int TYPE_FLAG(char typeId)
+    {
+        return TypeFlags[((typeId) == '(' || (typeId) == ')') ? (typeId) - '(' : (((typeId) < 'a' || (typeId) > '}') ? '}' + 2 - 'a' : (typeId) + 2 - 'a') ];
+    }
+
+    boolean AJ_IsContainerType(char typeId)
+    {
+        return (TYPE_FLAG(typeId) & AJ_CONTAINER) != 0;
+    }
+
+    /*
+     *  Returns true if the specified type is represented as a number
+     */
+    boolean AJ_IsScalarType(char typeId)
+    {
+        return (TYPE_FLAG(typeId) & AJ_SCALAR) != 0;
+    }
+
+    boolean AJ_IsStringType(char typeId)
+    {
+        return (TYPE_FLAG(typeId) & AJ_STRING) != 0;
+    }
+
+    /*
+     * A basic type is a scalar or one of the string types
+     */
+    boolean AJ_IsBasicType(char typeId)
+    {
+        return (TYPE_FLAG(typeId) & (AJ_STRING | AJ_SCALAR)) != 0;
+    }
+
+    int AJ_GetTypeSize(char typeId)
+    {
+        return (TYPE_FLAG(typeId) & 0xF);
+    }
+
+    /**
+     * Appends the value of an unmarshalled scalar arg: an int for 8 and 16 bit types, a long
+     * for 32 and 64 bit types and a double for doubles. The value is read as a primitive,
+     * without going through a string.
+     */
+    void putScalarValue(JSONArray args, char typeId, _AJ_Arg arg) throws JSONException
+    {
+        if (typeId == AJ_ARG_DOUBLE)
+        {
+            args.put(alljoyn.getArgDouble(arg));
+        }
+        else if (AJ_GetTypeSize(typeId) <= 2)
+        {
+            args.put((int)alljoyn.getArgLong(arg));
+        }
+        else if (typeId == AJ_ARG_UINT64)
+        {
+            args.put(AllJoynWireCodec.fromUnsigned64(alljoyn.getArgLong(arg)));
+        }
+        else
+        {
+            args.put(alljoyn.getArgLong(arg));
+        }
+    }
+
+    /**
+     * Marshals a scalar from its JSON value. Numbers, booleans and their string forms are accepted.
+     */
+    AJ_Status MarshalScalar(_AJ_Message msg, char typeId, Object value)
+    {
+        if (typeId == AJ_ARG_DOUBLE)
+        {
+            return alljoyn.marshalDouble(msg, AllJoynWireCodec.toDouble(value));
+        }
+
+        return alljoyn.marshalLong(msg, typeId, AllJoynWireCodec.toLong(value));
+    }
+
+    /**
+     * Marshals an array of scalars in one native call: the elements are packed into a direct
+     * buffer in native byte order, which is how the message stores them.
+     */
+    AJ_Status MarshalScalarArray(_AJ_Message msg, char typeId, JSONArray vArgs) throws JSONException
+    {
+        int size = AJ_GetTypeSize(typeId);
+        int len = vArgs.length();
+        ByteBuffer buffer = ArgScratch.get().getBuffer(len * size);
+
+        for (int k = 0; k < len; k++)
+        {
+            Object value = vArgs.get(k);
+
+            switch (size)
+            {
+                case 1:
+                    buffer.put((byte)AllJoynWireCodec.toLong(value));
+                    break;
+
+                case 2:
+                    buffer.putShort((short)AllJoynWireCodec.toLong(value));
                     break;
+
+                case 4:
+                    buffer.putInt((int)AllJoynWireCodec.toLong(value));
+                    break;
+
+                default:
+                    if (typeId == AJ_ARG_DOUBLE)
+                    {
+                        buffer.putDouble(AllJoynWireCodec.toDouble(value));
+                    }
+                    else
+                    {
+                        buffer.putLong(AllJoynWireCodec.toLong(value));
+                    }
+                    break;
+            }
+        }
+
+        return alljoyn.marshalScalarArray(msg, typeId, buffer, len * size);
+    }
+
+    /**
+     * Marshals an array of scalars JS sent as an ArrayBuffer or typed array: {"$base64": data},
+     * with the raw bytes of the elements in native byte order.
+     */
+    AJ_Status MarshalBinaryArray(_AJ_Message msg, char typeId, JSONObject value) throws JSONException
+    {
+        byte[] bytes = Base64.decode(value.getString(BinaryParts.BASE64_KEY), Base64.DEFAULT);
+
+        if (bytes.length % AJ_GetTypeSize(typeId) != 0)
+        {
+            Log.i(TAG, "AJ_MarshalArgs(): AJ_ERR_MARSHAL");
+            return AJ_Status.AJ_ERR_MARSHAL;
+        }
+
+        ByteBuffer buffer = ArgScratch.get().getBuffer(bytes.length);
+        buffer.put(bytes);
+        return alljoyn.marshalScalarArray(msg, typeId, buffer, bytes.length);
+    }
+
+    /**
+     * Unmarshals an array of scalars in one native call and appends it as one JSONArray,
+     * with the same value types as putScalarValue, or as a binary part for a byte array.
+     *
+     * AJ_UnmarshalArg can only take the whole array at once if it fits in the receive buffer,
+     * so bigger arrays are decoded element by element by decodeBody.
+     */
+    AJ_Status UnmarshalScalarArray(_AJ_Message msg, char typeId, JSONArray args, BinaryParts binary) throws JSONException
+    {
+        if (alljoyn.scalarArrayFitsRxBuffer(msg) == 0)
+        {
+            return DecodeArgs(msg, "a" + typeId, args, binary, false);
+        }
+
+        ArgScratch scratch = ArgScratch.get();
+        _AJ_Arg arg = scratch.push();
+        AJ_Status status;
+        ByteBuffer buffer;
+        int len;
+
+        try
+        {
+            status = alljoyn.AJ_UnmarshalArg(msg, arg);
+
+            if (status != AJ_Status.AJ_OK)
+            {
+                return status;
+            }
+
+            if ((arg.getTypeId() != typeId) || ((arg.getFlags() & alljoynConstants.AJ_ARRAY_FLAG) == 0))
+            {
+                Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_UNMARSHAL");
+                return AJ_Status.AJ_ERR_UNMARSHAL;
+            }
+
+            len = (int)arg.getLen();
+            buffer = scratch.getBuffer(len);
+
+            if (alljoyn.copyArgData(arg, buffer, buffer.capacity()) != len)
+            {
+                return AJ_Status.AJ_ERR_UNMARSHAL;
+            }
+        }
+        finally
+        {
+            scratch.pop();
+        }
+
+        buffer.limit(len);
+        DecodedBodyReader.readScalarArray(buffer, typeId, args, binary);
+        return status;
+    }
+
+    /**
+     * Unmarshals the args of a compiled signature and appends their JSON values.
+     *
+     * Scalars and strings become one value each. The fields of a struct or dict entry, and the
+     * signature and value of a variant, are appended in place. An array becomes one JSONArray,
+     * holding a JSONArray of fields for each struct, dict entry or variant element.
+     *
+     * If binary is not null, byte arrays are added to it and replaced by their placeholder.
+     */
+    AJ_Status UnmarshalSteps(_AJ_Message msg, SignaturePlan.Step[] steps, JSONArray args, BinaryParts binary, boolean dictionaries) throws JSONException
+    {
+        AJ_Status status = AJ_Status.AJ_OK;
+
+        for (SignaturePlan.Step step : steps)
+        {
+            status = UnmarshalStep(msg, step, args, binary, dictionaries);
+
+            if (status != AJ_Status.AJ_OK)
+            {
+                break;
+            }
+        }
+
+        return status;
+    }
+
+    AJ_Status UnmarshalStep(_AJ_Message msg, SignaturePlan.Step step, JSONArray args, BinaryParts binary, boolean dictionaries) throws JSONException
+    {
+        if (step.kind == SignaturePlan.KIND_ARRAY && step.getElement().kind == SignaturePlan.KIND_SCALAR)
+        {
+            return UnmarshalScalarArray(msg, step.getElement().typeId, args, binary);
+        }
+
+        ArgScratch scratch = ArgScratch.get();
+        _AJ_Arg arg = scratch.push();
+
+        try
+        {
+            return UnmarshalStep(msg, step, arg, args, binary, dictionaries);
+        }
+        finally
+        {
+            scratch.pop();
+        }
+    }
+
+    /**
+     * @param arg   Holder for the value, or for the container while its values are unmarshalled.
+     */
+    AJ_Status UnmarshalStep(_AJ_Message msg, SignaturePlan.Step step, _AJ_Arg arg, JSONArray args, BinaryParts binary, boolean dictionaries) throws JSONException
+    {
+        AJ_Status status;
+
+        switch (step.kind)
+        {
+            case SignaturePlan.KIND_SCALAR:
+            case SignaturePlan.KIND_STRING:
+            {
+                status = alljoyn.AJ_UnmarshalArg(msg, arg);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
                 }
 
-                if (arg.getTypeId() != typeId)
+                if (arg.getTypeId() != step.typeId)
                 {
                     Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_UNMARSHAL");
-                    status = AJ_Status.AJ_ERR_UNMARSHAL;
-                    break;
+                    return AJ_Status.AJ_ERR_UNMARSHAL;
+                }
+
+                putBasicValue(args, step, arg);
+                return status;
+            }
+
+            case SignaturePlan.KIND_STRUCT:
+            case SignaturePlan.KIND_DICT_ENTRY:
+            {
+                status = alljoyn.AJ_UnmarshalContainer(msg, arg, step.typeId);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
+                }
+
+                status = UnmarshalSteps(msg, step.children, args, binary, dictionaries);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
+                }
+
+                return alljoyn.AJ_UnmarshalCloseContainer(msg, arg);
+            }
+
+            case SignaturePlan.KIND_VARIANT:
+            {
+                status = alljoyn.AJ_UnmarshalArg(msg, arg);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
+                }
+
+                String inSig = alljoyn.getArgString(arg);
+                args.put(inSig);
+                return UnmarshalSteps(msg, SignaturePlan.get(inSig).getSteps(), args, binary, dictionaries);
+            }
+
+            case SignaturePlan.KIND_ARRAY:
+            {
+                SignaturePlan.Step element = step.getElement();
+                status = alljoyn.AJ_UnmarshalContainer(msg, arg, AJ_ARG_ARRAY);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
                 }
 
-                if (AJ_IsScalarType(typeId))
+                if (dictionaries && element.kind == SignaturePlan.KIND_DICT_ENTRY && element.children[0].typeId == AJ_ARG_STRING)
                 {
-                    int sizeOfType = (TYPE_FLAG(typeId) & 0xF);
+                    JSONObject dictionary = new JSONObject();
+                    status = UnmarshalDictionaryEntries(msg, element, dictionary, binary);
 
-                    switch (sizeOfType)
+                    if (status != AJ_Status.AJ_OK)
                     {
-                        case 1:
-                            args.put(Integer.parseInt(alljoyn.getV_byte(arg.getVal().getV_byte())));
-                            break;
+                        return status;
+                    }
 
-                        case 2:
-                            if (typeId == 'n')
-                            {
-                                args.put(Integer.parseInt(alljoyn.getV_int16(arg.getVal().getV_int16())));
-                            }
-                            else
-                            {
-                                args.put(Integer.parseInt(alljoyn.getV_uint16(arg.getVal().getV_uint16())) & 0xFFFF);
-                            }
-                            break;
+                    args.put(dictionary);
+                    return alljoyn.AJ_UnmarshalCloseContainer(msg, arg);
+                }
 
-                        case 4:
-                            if (typeId == 'i')
-                            {
-                                args.put(Long.parseLong(alljoyn.getV_int32(arg.getVal().getV_int32())));
-                            }
-                            else
-                            {
-                                args.put(Long.parseLong(alljoyn.getV_uint32(arg.getVal().getV_uint32())) & 0xFFFFFFFF);
-                            }
-                            break;
+                JSONArray vArgs = new JSONArray();
+                status = UnmarshalArrayElements(msg, element, vArgs, binary, dictionaries, null);
 
-                        case 8:
-                            if (typeId == 'd')
-                            {
-                                try
-                                {
-                                    args.put(Double.parseDouble(alljoyn.getV_double(arg.getVal().getV_double())));
-                                }
-                                catch (Exception e)
-                                {
-                                    Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_READ");
-                                    return AJ_Status.AJ_ERR_READ;
-                                }
-                            }
-                            else if (typeId == 'x')
-                            {
-                                args.put(Long.parseLong(alljoyn.getV_int64(arg.getVal().getV_int64())));
-                            }
-                            else
-                            {
-                                // TODO: handle big unsigned values
-                                args.put(Long.parseLong(alljoyn.getV_uint64(arg.getVal().getV_uint64())));
-                            }
-                            break;
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
+                }
+
+                args.put(vArgs);
+                return alljoyn.AJ_UnmarshalCloseContainer(msg, arg);
+            }
+        }
+
+        Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_UNEXPECTED");
+        return AJ_Status.AJ_ERR_UNEXPECTED;
+    }
+
+    /**
+     * Unmarshals the entries of an open array of dict entries with string keys into an object,
+     * with each value as a single JSON value, see UnmarshalTypedValue.
+     */
+    AJ_Status UnmarshalDictionaryEntries(_AJ_Message msg, SignaturePlan.Step entry, JSONObject dictionary, BinaryParts binary) throws JSONException
+    {
+        ArgScratch scratch = ArgScratch.get();
+        _AJ_Arg entryArg = scratch.push();
+        AJ_Status status;
+
+        try
+        {
+            while ((status = alljoyn.AJ_UnmarshalContainer(msg, entryArg, AJ_ARG_DICT_ENTRY)) == AJ_Status.AJ_OK)
+            {
+                JSONArray keyAndValue = new JSONArray();
+                status = UnmarshalStep(msg, entry.children[0], keyAndValue, binary, true);
+
+                if (status == AJ_Status.AJ_OK)
+                {
+                    status = UnmarshalTypedValue(msg, entry.children[1], keyAndValue, binary);
+                }
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
+                }
+
+                dictionary.put(keyAndValue.getString(0), keyAndValue.get(1));
+                status = alljoyn.AJ_UnmarshalCloseContainer(msg, entryArg);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
+                }
+            }
+        }
+        finally
+        {
+            scratch.pop();
+        }
+
+        // The end of the array is reported as AJ_ERR_NO_MORE
+        return (status == AJ_Status.AJ_ERR_NO_MORE) ? AJ_Status.AJ_OK : status;
+    }
+
+    /**
+     * Appends a complete type as a single JSON value: a variant as the value it holds, and a
+     * struct as a JSONArray of its fields.
+     */
+    AJ_Status UnmarshalTypedValue(_AJ_Message msg, SignaturePlan.Step step, JSONArray args, BinaryParts binary) throws JSONException
+    {
+        if (step.kind == SignaturePlan.KIND_VARIANT)
+        {
+            ArgScratch scratch = ArgScratch.get();
+            _AJ_Arg arg = scratch.push();
+            String inSig;
+
+            try
+            {
+                AJ_Status status = alljoyn.AJ_UnmarshalArg(msg, arg);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    return status;
+                }
+
+                inSig = alljoyn.getArgString(arg);
+            }
+            finally
+            {
+                scratch.pop();
+            }
+
+            // A variant holds exactly one complete type
+            return UnmarshalTypedValue(msg, SignaturePlan.get(inSig).getSteps()[0], args, binary);
+        }
+
+        if (step.kind == SignaturePlan.KIND_STRUCT)
+        {
+            JSONArray fields = new JSONArray();
+            AJ_Status status = UnmarshalStep(msg, step, fields, binary, true);
+            args.put(fields);
+            return status;
+        }
+
+        return UnmarshalStep(msg, step, args, binary, true);
+    }
+
+    /**
+     * Unmarshals the elements of an open array up to its end.
+     *
+     * @param vArgs     Receives the elements, unless they are streamed.
+     * @param chunks    Receives the elements in chunks instead, or null.
+     */
+    AJ_Status UnmarshalArrayElements(_AJ_Message msg, SignaturePlan.Step element, JSONArray vArgs, BinaryParts binary, boolean dictionaries, ChunkStream chunks) throws JSONException
+    {
+        AJ_Status status;
+
+        if (element.isBasic())
+        {
+            ArgScratch scratch = ArgScratch.get();
+            _AJ_Arg elementArg = scratch.push();
+
+            try
+            {
+                while ((status = alljoyn.AJ_UnmarshalArg(msg, elementArg)) == AJ_Status.AJ_OK)
+                {
+                    if (chunks == null)
+                    {
+                        putBasicValue(vArgs, element, elementArg);
+                    }
+                    else
+                    {
+                        putBasicValue(chunks.getElements(), element, elementArg);
+                        chunks.elementAdded();
                     }
                 }
+            }
+            finally
+            {
+                scratch.pop();
+            }
+        }
+        else
+        {
+            while (true)
+            {
+                JSONArray inArgs = new JSONArray();
+                status = UnmarshalStep(msg, element, inArgs, (chunks == null) ? binary : chunks.getBinary(), dictionaries);
+
+                if (status != AJ_Status.AJ_OK)
+                {
+                    break;
+                }
+
+                // Nested arrays are already wrapped in their own JSONArray
+                Object value = (element.kind == SignaturePlan.KIND_ARRAY) ? inArgs.get(0) : inArgs;
+
+                if (chunks == null)
+                {
+                    vArgs.put(value);
+                }
                 else
                 {
-                    args.put(arg.getVal().getV_string());
+                    chunks.getElements().put(value);
+                    chunks.elementAdded();
+                }
+            }
+        }
+
+        // The end of the array is reported as AJ_ERR_NO_MORE
+        return (status == AJ_Status.AJ_ERR_NO_MORE) ? AJ_Status.AJ_OK : status;
+    }
+
+    /**
+     * Unmarshals like UnmarshalSteps, except that the top-level arrays whose elements aren't
+     * scalars are streamed in chunks and replaced in args by their end markers.
+     */
+    AJ_Status UnmarshalChunkedSteps(_AJ_Message msg, SignaturePlan.Step[] steps, JSONArray args, BinaryParts binary, boolean dictionaries, ChunkStream chunks) throws JSONException
+    {
+        AJ_Status status = AJ_Status.AJ_OK;
+
+        for (SignaturePlan.Step step : steps)
+        {
+            if (step.kind != SignaturePlan.KIND_ARRAY || step.getElement().kind == SignaturePlan.KIND_SCALAR)
+            {
+                status = UnmarshalStep(msg, step, args, binary, dictionaries);
+            }
+            else
+            {
+                ArgScratch scratch = ArgScratch.get();
+                _AJ_Arg arrayArg = scratch.push();
+
+                try
+                {
+                    status = alljoyn.AJ_UnmarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
+
+                    if (status == AJ_Status.AJ_OK)
+                    {
+                        chunks.open(args.length());
+                        status = UnmarshalArrayElements(msg, step.getElement(), null, null, dictionaries, chunks);
+                    }
+
+                    if (status == AJ_Status.AJ_OK)
+                    {
+                        args.put(chunks.close());
+                        status = alljoyn.AJ_UnmarshalCloseContainer(msg, arrayArg);
+                    }
+                }
+                finally
+                {
+                    scratch.pop();
                 }
             }
+
+            if (status != AJ_Status.AJ_OK)
+            {
+                break;
+            }
         }
 
         return status;
     }
 
+    void putBasicValue(JSONArray args, SignaturePlan.Step step, _AJ_Arg arg) throws JSONException
+    {
+        if (step.kind == SignaturePlan.KIND_SCALAR)
+        {
+            putScalarValue(args, step.typeId, arg);
+        }
+        else
+        {
+            args.put(alljoyn.getArgString(arg));
+        }
+    }
+
     JSONArray AJ_UnmarshalArgs(_AJ_Message msg, String signature)
+    {
+        return AJ_UnmarshalArgs(msg, signature, null);
+    }
+
+    /**
+     * @param binary    Receives byte arrays to deliver as binary parts, or null to deliver them as JSON.
+     */
+    JSONArray AJ_UnmarshalArgs(_AJ_Message msg, String signature, BinaryParts binary)
+    {
+        return AJ_UnmarshalArgs(msg, signature, binary, false, null);
+    }
+
+    /**
+     * @param dictionaries  True to unmarshal arrays of dict entries with string keys as JSON objects.
+     * @param chunks        Streams the big top-level arrays in chunks, or null.
+     */
+    JSONArray AJ_UnmarshalArgs(_AJ_Message msg, String signature, BinaryParts binary, boolean dictionaries, ChunkStream chunks)
+    {
+        try
+        {
+            return AJ_UnmarshalArgs(msg, SignaturePlan.get(signature), binary, dictionaries, chunks);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_UNMARSHAL");
+            return new JSONArray().put(AJ_Status.AJ_ERR_UNMARSHAL);
+        }
+    }
+
+    /**
+     * @param plan  The compiled signature of the args.
+     */
+    JSONArray AJ_UnmarshalArgs(_AJ_Message msg, SignaturePlan plan, BinaryParts binary, boolean dictionaries, ChunkStream chunks)
+    {
+        JSONArray retObj = new JSONArray();
+
+        try
+        {
+            JSONArray args = new JSONArray();
+            AJ_Status status;
+
+            if (chunks != null)
+            {
+                // The single call decoders produce the whole body at once, so streaming goes value by value
+                status = UnmarshalChunkedSteps(msg, plan.getSteps(), args, binary, dictionaries, chunks);
+            }
+            else if (m_bJavaCodec)
+            {
+                status = JavaDecodeArgs(msg, plan, args, binary, dictionaries);
+            }
+            else if (m_bNativeDecoder)
+            {
+                status = DecodeArgs(msg, plan.getSignature(), args, binary, dictionaries);
+            }
+            else
+            {
+                status = UnmarshalSteps(msg, plan.getSteps(), args, binary, dictionaries);
+            }
+
+            retObj.put(status);
+            retObj.put(args);
+        }
+        catch (Exception e)
+        {
+            Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_UNMARSHAL");
+            AJ_Status status = AJ_Status.AJ_ERR_UNMARSHAL;
+            retObj.put(status);
+        }
+
+        return retObj;
+    }
+
+    /**
+     * Unmarshals the args the filter looks at value by value, and the rest of the body only if
+     * they match, the rate control lets the message through and the queue doesn't drop it.
+     *
+     * @param rate  The rate control of the listener, or null.
+     * @param queue The queue of the listener.
+     * @return      As AJ_UnmarshalArgs, or null if the message is filtered out, suppressed or dropped.
+     */
+    JSONArray UnmarshalFilteredArgs(_AJ_Message msg, ListenerFilter filter, ListenerRate rate, ListenerQueue queue, BinaryParts binary, boolean dictionaries, ChunkStream chunks)
     {
         JSONArray retObj = new JSONArray();
 
-        try
-        {
-            JSONArray args = new JSONArray();
-            AJ_Status status = UnmarshalArgs(msg, new StringBuffer(signature), args, new StringBuffer());
+        try
+        {
+            JSONArray args = new JSONArray();
+            AJ_Status status = UnmarshalSteps(msg, filter.getArgSteps(), args, binary, dictionaries);
+
+            if (status == AJ_Status.AJ_OK && !filter.matchesArgs(args))
+            {
+                m_nFilteredMessages.incrementAndGet();
+                return null;
+            }
+
+            if (status == AJ_Status.AJ_OK && rate != null && !rate.admit())
+            {
+                return null;
+            }
+
+            if (status == AJ_Status.AJ_OK && !queue.admit(msg.getSender(), msg.getObjPath(), msg.getMember()))
+            {
+                return null;
+            }
+
+            if (status == AJ_Status.AJ_OK && filter.getRestSteps().length > 0)
+            {
+                if (chunks != null)
+                {
+                    status = UnmarshalChunkedSteps(msg, filter.getRestSteps(), args, binary, dictionaries, chunks);
+                }
+                else if (m_bNativeDecoder && !m_bJavaCodec)
+                {
+                    // decodeBody carries on from the current position of the body; the Java codec can't
+                    status = DecodeArgs(msg, filter.getRestSignature(), args, binary, dictionaries);
+                }
+                else
+                {
+                    status = UnmarshalSteps(msg, filter.getRestSteps(), args, binary, dictionaries);
+                }
+            }
+
             retObj.put(status);
             retObj.put(args);
         }
         catch (Exception e)
         {
-            Log.i(TAG, "AJ_UnmarshalArgs(): AJ_ERR_UNMARSHAL");
-            AJ_Status status = AJ_Status.AJ_ERR_UNMARSHAL;
-            retObj.put(status);
+            Log.i(TAG, "UnmarshalFilteredArgs(): AJ_ERR_UNMARSHAL");
+            retObj.put(AJ_Status.AJ_ERR_UNMARSHAL);
         }
 
         return retObj;
     }
 
-    AJ_Status AJ_UnmarshalVariant(_AJ_Message msg, StringBuffer sig)
+    /**
+     * Unmarshals the whole body in one native call into the scratch buffer, then builds the
+     * JSON values from the buffer without crossing JNI again.
+     */
+    AJ_Status DecodeArgs(_AJ_Message msg, String signature, JSONArray args, BinaryParts binary, boolean dictionaries) throws JSONException
     {
-        _AJ_Arg arg = new _AJ_Arg();
-        AJ_Status status = alljoyn.AJ_UnmarshalArg(msg, arg);
+        ByteBuffer buffer = ArgScratch.get().getBuffer((int)alljoyn.getDecodeBufferSize(msg));
+        AJ_Status status = alljoyn.decodeBody(msg, signature, buffer, buffer.capacity());
 
-        if (status == AJ_Status.AJ_OK)
+        if (status != AJ_Status.AJ_OK)
         {
-            if (sig != null)
+            return status;
+        }
+
+        int len = buffer.getInt(0);
+
+        if (len > buffer.capacity() - 4)
+        {
+            // It took more than the guess, so decodeBody kept it natively
+            buffer = ArgScratch.get().getBuffer(4 + len);
+            status = alljoyn.takeDecodeOverflow(buffer, buffer.capacity());
+
+            if (status != AJ_Status.AJ_OK)
             {
-                sig.append(arg.getVal().getV_string());
+                return status;
             }
         }
 
+        buffer.limit(4 + len);
+        buffer.position(4);
+        DecodedBodyReader.read(buffer, args, binary, dictionaries);
+        return status;
+    }
+
+    /**
+     * Copies the raw body into the scratch buffer in one native call and decodes it in Java
+     * with AllJoynWireCodec.
+     */
+    AJ_Status JavaDecodeArgs(_AJ_Message msg, SignaturePlan plan, JSONArray args, BinaryParts binary, boolean dictionaries) throws JSONException
+    {
+        int len = (int)alljoyn.getBodyLength(msg);
+        ByteBuffer buffer = ArgScratch.get().getBuffer(len);
+        AJ_Status status = alljoyn.unmarshalRawBody(msg, buffer, len);
+
+        if (status != AJ_Status.AJ_OK)
+        {
+            return status;
+        }
+
+        buffer.limit(len);
+        buffer.order((alljoyn.getBodyEndianness(msg) == 'l') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        AllJoynWireCodec.decode(plan, buffer, args, (binary != null) ? new CodecBinaryValues(binary) : null, dictionaries);
         return status;
     }
 
@@ -1892,361 +3747,259 @@ public class AllJoynCordova extends CordovaPlugin
     {
         try
         {
-            AJ_Status status = MarshalArgs(msg, new StringBuffer(signature), args, new StringBuffer());
-            return status;
+            return AJ_MarshalArgs(msg, SignaturePlan.get(signature), args);
         }
-        catch (Exception e)
+        catch (IllegalArgumentException e)
         {
             Log.i(TAG, "AJ_MarshalArgs(): AJ_ERR_MARSHAL");
             return AJ_Status.AJ_ERR_MARSHAL;
         }
     }
 
-    public AJ_Status MarshalArgs(_AJ_Message msg, StringBuffer sig, JSONArray args, StringBuffer nested) throws JSONException
+    /**
+     * @param plan  The compiled signature of the args.
+     */
+    public AJ_Status AJ_MarshalArgs(_AJ_Message msg, SignaturePlan plan, JSONArray args)
     {
-        AJ_Status status = AJ_Status.AJ_OK;
-
-        while (sig.length() != 0)
+        try
         {
-            _AJ_Arg structArg = new _AJ_Arg();
-            char typeId = sig.charAt(0);
-            nested.append(typeId);
-            sig.deleteCharAt(0);
-            char nextTypeId = (sig.length() == 0) ? '\0' : sig.charAt(0);
-
-            if (!AJ_IsBasicType(typeId))
+            if (m_bJavaCodec)
             {
-                if ((typeId == AJ_ARG_STRUCT) || (typeId == AJ_ARG_DICT_ENTRY))
-                {
-                    status = alljoyn.AJ_MarshalContainer(msg, structArg, typeId);
-
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        break;
-                    }
-
-                    status = MarshalArgs(msg, sig, args, nested);
-
-                    if (status == AJ_Status.AJ_OK)
-                    {
-                        int lastNestedTypeId = nested.charAt(nested.length() - 1);
-
-                        if ((lastNestedTypeId == AJ_STRUCT_CLOSE) || (lastNestedTypeId == AJ_DICT_ENTRY_CLOSE))
-                        {
-                            status = alljoyn.AJ_MarshalCloseContainer(msg, structArg);
-
-                            if (status != AJ_Status.AJ_OK)
-                            {
-                                break;
-                            }
-                        }
-                        else
-                        {
-                            status = AJ_Status.AJ_ERR_MARSHAL;
-                            break;
-                        }
-
-                        continue;
-                    }
-                    else
-                    {
-                        break;
-                    }
-                }
-
-                if ((typeId == AJ_ARG_ARRAY) && AJ_IsBasicType(nextTypeId))
-                {
-                    if (!AJ_IsScalarType(nextTypeId)) // "as"
-                    {
-                        _AJ_Arg arrayArg = new _AJ_Arg();
-                        status = alljoyn.AJ_MarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
+                return JavaEncodeArgs(msg, plan, args);
+            }
 
-                        if (status != AJ_Status.AJ_OK)
-                        {
-                            break;
-                        }
+            AJ_Status status = MarshalSteps(msg, plan.getSteps(), new ArgList(args));
+            return status;
+        }
+        catch (Exception e)
+        {
+            Log.i(TAG, "AJ_MarshalArgs(): AJ_ERR_MARSHAL");
+            return AJ_Status.AJ_ERR_MARSHAL;
+        }
+    }
 
-                        JSONArray vArgs = args.getJSONArray(0);
-                        args = JSONArray_Remove(args, 0);
-                        int len = vArgs.length();
+    /**
+     * Encodes the body in Java with AllJoynWireCodec and marshals it as raw bytes in one
+     * native call.
+     */
+    AJ_Status JavaEncodeArgs(_AJ_Message msg, SignaturePlan plan, JSONArray args) throws JSONException
+    {
+        ArgScratch scratch = ArgScratch.get();
+        ByteBuffer body = AllJoynWireCodec.encode(plan, args, scratch.getBuffer(0), new CodecBinaryValues(null));
 
-                        for (int k = 0; k < len; k++)
-                        {
-                            _AJ_Arg arg = new _AJ_Arg();
-                            arg.getVal().setV_string(vArgs.getString(k));
-                            alljoyn.AJ_InitArg(arg, nextTypeId, 0, arg.getVal().getV_data(), 0);
-                            status = alljoyn.AJ_MarshalArg(msg, arg);
-                        }
+        // Keep the buffer if the codec had to grow it, the next body is likely as big
+        scratch.setBuffer(body);
 
-                        status = alljoyn.AJ_MarshalCloseContainer(msg, arrayArg);
-                    }
-                    else
-                    {
-                        _AJ_Arg arrayArg = new _AJ_Arg();
-                        status = alljoyn.AJ_MarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
+        if (!body.hasRemaining())
+        {
+            return AJ_Status.AJ_OK;
+        }
 
-                        if (status != AJ_Status.AJ_OK)
-                        {
-                            break;
-                        }
+        return alljoyn.marshalRawBody(msg, body, body.remaining());
+    }
 
-                        JSONArray vArgs = args.getJSONArray(0);
-                        args = JSONArray_Remove(args, 0);
-                        int len = vArgs.length();
-                        int sizeOfType = (TYPE_FLAG(nextTypeId) & 0xF);
+    /**
+     * Marshals the args of a compiled signature from their JSON values, in the layout
+     * UnmarshalSteps produces. Values are consumed from the front of the list, so the
+     * fields of nested structs and variants leave the list positioned after them.
+     */
+    AJ_Status MarshalSteps(_AJ_Message msg, SignaturePlan.Step[] steps, ArgList args) throws JSONException
+    {
+        AJ_Status status = AJ_Status.AJ_OK;
 
-                        for (int k = 0; k < len; k++)
-                        {
-                            _AJ_Arg arg = new _AJ_Arg();
-                            SWIGTYPE_p_uint32_t p_bool = new SWIGTYPE_p_uint32_t();
-                            SWIGTYPE_p_uint8_t p_uint8_t = new SWIGTYPE_p_uint8_t();
-                            SWIGTYPE_p_uint16_t p_uint16_t = new SWIGTYPE_p_uint16_t();
-                            SWIGTYPE_p_uint32_t p_uint32_t = new SWIGTYPE_p_uint32_t();
-                            SWIGTYPE_p_uint64_t p_uint64_t = new SWIGTYPE_p_uint64_t();
-                            SWIGTYPE_p_int16_t p_int16_t = new SWIGTYPE_p_int16_t();
-                            SWIGTYPE_p_int32_t p_int32_t = new SWIGTYPE_p_int32_t();
-                            SWIGTYPE_p_int64_t p_int64_t = new SWIGTYPE_p_int64_t();
-                            SWIGTYPE_p_double p_double = new SWIGTYPE_p_double();
-
-                            switch (sizeOfType)
-                            {
-                                case 1:
-                                    arg.getVal().setV_byte(alljoyn.setV_byte(vArgs.get(k).toString()));
-                                    break;
+        for (SignaturePlan.Step step : steps)
+        {
+            status = MarshalStep(msg, step, args);
 
-                                case 2:
-                                    if (nextTypeId == 'n')
-                                    {
-                                        arg.getVal().setV_int16(alljoyn.setV_int16(vArgs.get(k).toString()));
-                                    }
-                                    else
-                                    {
-                                        arg.getVal().setV_uint16(alljoyn.setV_uint16(vArgs.get(k).toString()));
-                                    }
+            if (status != AJ_Status.AJ_OK)
+            {
+                break;
+            }
+        }
 
-                                    break;
+        return status;
+    }
 
-                                case 4:
-                                    String strVal = vArgs.getString(k);
+    AJ_Status MarshalStep(_AJ_Message msg, SignaturePlan.Step step, ArgList args) throws JSONException
+    {
+        AJ_Status status;
 
-                                    if (strVal.equals("true") || strVal.equals("TRUE"))
-                                    {
-                                        arg.getVal().setV_uint32(alljoyn.setV_uint32("1"));
-                                    }
-                                    else if (strVal.equals("false") || strVal.equals("FALSE"))
-                                    {
-                                        arg.getVal().setV_uint32(alljoyn.setV_uint32("0"));
-                                    }
-                                    else if (nextTypeId == 'i')
-                                    {
-                                        arg.getVal().setV_int32(alljoyn.setV_int32(vArgs.get(k).toString()));
-                                    }
-                                    else
-                                    {
-                                        arg.getVal().setV_uint32(alljoyn.setV_uint32(vArgs.get(k).toString()));
-                                    }
+        switch (step.kind)
+        {
+            case SignaturePlan.KIND_SCALAR:
+            case SignaturePlan.KIND_STRING:
+                return MarshalBasic(msg, step, args.next());
 
-                                    break;
+            case SignaturePlan.KIND_STRUCT:
+            case SignaturePlan.KIND_DICT_ENTRY:
+            {
+                ArgScratch scratch = ArgScratch.get();
+                _AJ_Arg structArg = scratch.push();
 
-                                case 8:
-                                    if (nextTypeId == 'd')
-                                    {
-                                        arg.getVal().setV_double(alljoyn.setV_double(vArgs.get(k).toString()));
-                                    }
-                                    else if (nextTypeId == 'x')
-                                    {
-                                        arg.getVal().setV_int64(alljoyn.setV_int64(vArgs.get(k).toString()));
-                                    }
-                                    else
-                                    {
-                                        arg.getVal().setV_uint64(alljoyn.setV_uint64(vArgs.get(k).toString()));
-                                    }
+                try
+                {
+                    status = alljoyn.AJ_MarshalContainer(msg, structArg, step.typeId);
 
-                                    break;
-                            }
+                    if (status != AJ_Status.AJ_OK)
+                    {
+                        return status;
+                    }
 
-                            alljoyn.AJ_InitArg(arg, nextTypeId, 0, arg.getVal().getV_data(), 0);
-                            status = alljoyn.AJ_MarshalArg(msg, arg);
-                        }
+                    status = MarshalSteps(msg, step.children, args);
 
-                        status = alljoyn.AJ_MarshalCloseContainer(msg, arrayArg);
+                    if (status != AJ_Status.AJ_OK)
+                    {
+                        return status;
                     }
 
-                    sig.deleteCharAt(0);
-                    continue;
+                    return alljoyn.AJ_MarshalCloseContainer(msg, structArg);
                 }
-
-                if ((typeId == AJ_STRUCT_CLOSE) || (typeId == AJ_DICT_ENTRY_CLOSE))
+                finally
                 {
-                    break;
+                    scratch.pop();
                 }
+            }
 
-                if (typeId == AJ_ARG_VARIANT)
+            case SignaturePlan.KIND_VARIANT:
+            {
+                String inSig = args.next().toString();
+                status = alljoyn.AJ_MarshalVariant(msg, inSig);
+
+                if (status != AJ_Status.AJ_OK)
                 {
-                    String _sig = new String(args.getString(0));
-                    args = JSONArray_Remove(args, 0);
-                    status = alljoyn.AJ_MarshalVariant(msg, _sig);
-                    status = MarshalArgs(msg, new StringBuffer(_sig), args, new StringBuffer());
+                    return status;
+                }
 
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        break;
-                    }
+                return MarshalSteps(msg, SignaturePlan.get(inSig).getSteps(), args);
+            }
 
-                    continue;
-                }
+            case SignaturePlan.KIND_ARRAY:
+                return MarshalArray(msg, step, args.next());
+        }
 
-                if ((typeId == AJ_ARG_ARRAY) && !AJ_IsBasicType(nextTypeId))
-                {
-                    _AJ_Arg arrayArg = new _AJ_Arg();
-                    String subSig = new String();
-                    char closeContainer = (nextTypeId == '(') ? ')' : '}';
-                    subSig = sig.toString().substring(0, sig.toString().indexOf(closeContainer) + 1);
-                    status = alljoyn.AJ_MarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
+        Log.i(TAG, "AJ_MarshalArgs(): AJ_ERR_MARSHAL");
+        return AJ_Status.AJ_ERR_UNEXPECTED;
+    }
 
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        break;
-                    }
+    AJ_Status MarshalArray(_AJ_Message msg, SignaturePlan.Step step, Object value) throws JSONException
+    {
+        SignaturePlan.Step element = step.getElement();
 
-                    JSONArray vArgs = args.getJSONArray(0);
+        if (element.kind == SignaturePlan.KIND_SCALAR)
+        {
+            if (value instanceof JSONObject)
+            {
+                return MarshalBinaryArray(msg, element.typeId, (JSONObject)value);
+            }
 
-                    while (vArgs.length() != 0)
-                    {
-                        JSONArray inArgs = vArgs.getJSONArray(0);
-                        status = MarshalArgs(msg, new StringBuffer(subSig), inArgs, new StringBuffer());
+            return MarshalScalarArray(msg, element.typeId, (JSONArray)value);
+        }
 
-                        if (status != AJ_Status.AJ_OK)
-                        {
-                            break;
-                        }
+        ArgScratch scratch = ArgScratch.get();
+        _AJ_Arg arrayArg = scratch.push();
 
-                        vArgs = JSONArray_Remove(vArgs, 0);
-                    }
+        try
+        {
+            return MarshalArray(msg, element, (JSONArray)value, arrayArg);
+        }
+        finally
+        {
+            scratch.pop();
+        }
+    }
 
-                    args = JSONArray_Remove(args, 0);
-                    status = alljoyn.AJ_MarshalCloseContainer(msg, arrayArg);
+    /**
+     * @param arrayArg  Holder for the array container while its elements are marshalled.
+     */
+    AJ_Status MarshalArray(_AJ_Message msg, SignaturePlan.Step element, JSONArray vArgs, _AJ_Arg arrayArg) throws JSONException
+    {
+        AJ_Status status = alljoyn.AJ_MarshalContainer(msg, arrayArg, AJ_ARG_ARRAY);
 
-                    if (status != AJ_Status.AJ_OK)
-                    {
-                        break;
-                    }
+        if (status != AJ_Status.AJ_OK)
+        {
+            return status;
+        }
 
-                    sig.delete(0, subSig.length());
-                    continue;
-                }
+        int len = vArgs.length();
 
-                Log.i(TAG, "AJ_MarshalArgs(): AJ_ERR_MARSHAL");
-                status = AJ_Status.AJ_ERR_UNEXPECTED;
-                break;
+        for (int k = 0; k < len; k++)
+        {
+            if (element.isBasic())
+            {
+                status = MarshalBasic(msg, element, vArgs.get(k));
+            }
+            else if (element.kind == SignaturePlan.KIND_ARRAY)
+            {
+                status = MarshalArray(msg, element, vArgs.get(k));
             }
             else
             {
-                _AJ_Arg arg = new _AJ_Arg();
-
-                if (AJ_IsScalarType(typeId))
-                {
-                    int sizeOfType = (TYPE_FLAG(typeId) & 0xF);
-                    SWIGTYPE_p_uint32_t p_bool = new SWIGTYPE_p_uint32_t();
-                    SWIGTYPE_p_uint8_t p_uint8_t = new SWIGTYPE_p_uint8_t();
-                    SWIGTYPE_p_uint16_t p_uint16_t = new SWIGTYPE_p_uint16_t();
-                    SWIGTYPE_p_uint32_t p_uint32_t = new SWIGTYPE_p_uint32_t();
-                    SWIGTYPE_p_uint64_t p_uint64_t = new SWIGTYPE_p_uint64_t();
-                    SWIGTYPE_p_int16_t p_int16_t = new SWIGTYPE_p_int16_t();
-                    SWIGTYPE_p_int32_t p_int32_t = new SWIGTYPE_p_int32_t();
-                    SWIGTYPE_p_int64_t p_int64_t = new SWIGTYPE_p_int64_t();
-                    SWIGTYPE_p_double p_double = new SWIGTYPE_p_double();
-
-                    switch (sizeOfType)
-                    {
-                        case 1:
-                            arg.getVal().setV_byte(alljoyn.setV_byte( args.get(0).toString()));
-                            args = JSONArray_Remove(args, 0);
-                            break;
-
-                        case 2:
-                            if (typeId == 'n')
-                            {
-                                arg.getVal().setV_int16(alljoyn.setV_int16(args.get(0).toString()));
-                            }
-                            else
-                            {
-                                arg.getVal().setV_uint16(alljoyn.setV_uint16(args.get(0).toString()));
-                            }
-
-                            args = JSONArray_Remove(args, 0);
-                            break;
+                status = MarshalStep(msg, element, new ArgList(vArgs.getJSONArray(k)));
+            }
 
-                        case 4:
-                            String strVal = args.getString(0);
+            if (status != AJ_Status.AJ_OK)
+            {
+                return status;
+            }
+        }
 
-                            if (strVal.equals("true") || strVal.equals("TRUE"))
-                            {
-                                arg.getVal().setV_uint32(alljoyn.setV_uint32("1"));
-                            }
-                            else if (strVal.equals("false") || strVal.equals("FALSE"))
-                            {
-                                arg.getVal().setV_uint32(alljoyn.setV_uint32("0"));
-                            }
-                            else if (typeId == 'i')
-                            {
-                                arg.getVal().setV_int32(alljoyn.setV_int32(args.get(0).toString()));
-                            }
-                            else
-                            {
-                                arg.getVal().setV_uint32(alljoyn.setV_uint32(args.get(0).toString()));
-                            }
+        return alljoyn.AJ_MarshalCloseContainer(msg, arrayArg);
+    }
 
-                            args = JSONArray_Remove(args, 0);
-                            break;
+    AJ_Status MarshalBasic(_AJ_Message msg, SignaturePlan.Step step, Object value)
+    {
+        if (step.kind == SignaturePlan.KIND_SCALAR)
+        {
+            return MarshalScalar(msg, step.typeId, value);
+        }
 
-                        case 8:
-                            if (typeId == 'd')
-                            {
-                                arg.getVal().setV_double(alljoyn.setV_double(args.get(0).toString()));
-                            }
-                            else if (typeId == 'x')
-                            {
-                                arg.getVal().setV_int64(alljoyn.setV_int64(args.get(0).toString()));
-                            }
-                            else
-                            {
-                                arg.getVal().setV_uint64(alljoyn.setV_uint64(args.get(0).toString()));
-                            }
+        return alljoyn.marshalString(msg, step.typeId, value.toString());
+    }
 
-                            args = JSONArray_Remove(args, 0);
-                            break;
-                    }
+    /**
+     * Reads {"$base64": data} values for AllJoynWireCodec, and delivers the byte arrays it
+     * decodes as binary parts.
+     */
+    static class CodecBinaryValues implements AllJoynWireCodec.BinaryValues
+    {
+        private final BinaryParts m_pParts;
 
-                    alljoyn.AJ_InitArg(arg, typeId, 0, arg.getVal().getV_data(), 0);
-                }
-                else
-                {
-                    arg.getVal().setV_string(args.getString(0));
-                    args = JSONArray_Remove(args, 0);
-                    alljoyn.AJ_InitArg(arg, typeId, 0, arg.getVal().getV_data(), 0);
-                }
+        /**
+         * @param parts     Receives decoded byte arrays; may be null when encoding.
+         */
+        CodecBinaryValues(BinaryParts parts)
+        {
+            m_pParts = parts;
+        }
 
-                status = alljoyn.AJ_MarshalArg(msg, arg);
-            }
+        public Object fromBytes(byte[] bytes) throws JSONException
+        {
+            return m_pParts.add(bytes);
         }
 
-        return status;
+        public byte[] toBytes(JSONObject value) throws JSONException
+        {
+            return Base64.decode(value.getString(BinaryParts.BASE64_KEY), Base64.DEFAULT);
+        }
     }
 
-    // Helper function used for API level < 19
-    public JSONArray JSONArray_Remove(JSONArray jsonArray, int index) throws JSONException
+    /**
+     * The JSON values left to marshal for one message or container, consumed front to back
+     * by moving a cursor; the array itself is never copied.
+     */
+    static class ArgList
     {
-        JSONArray retArray = new JSONArray();
+        private final JSONArray m_pArgs;
+        private int m_nNext = 0;
 
-        for (int i = 0; i < jsonArray.length();i++)
+        ArgList(JSONArray args)
         {
-            if (i != index)
-            {
-                retArray.put(jsonArray.get(i));
-            }
+            m_pArgs = args;
         }
 
-        return retArray;
+        Object next() throws JSONException
+        {
+            return m_pArgs.get(m_nNext++);
+        }
     }
 }
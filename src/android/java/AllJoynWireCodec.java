@@ -0,0 +1,718 @@
+package org.allseen.alljoyn;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes AllJoyn (D-Bus) message bodies in Java, on ByteBuffers, following a
+ * compiled signature.
+ *
+ * Values are aligned to their size relative to the start of the body, which is how they are
+ * laid out in a message since the body itself starts on an 8 byte boundary. The byte order is
+ * the order of the buffer: native order for outgoing bodies, and the order given by the
+ * endianness flag of the message for received ones.
+ *
+ * The JSON layout is the one of the plan-driven marshaller in AllJoynCordova: fields of
+ * structs and dict entries, and the signature and values of a variant, follow each other in
+ * the enclosing list; an array is a JSONArray holding a JSONArray of fields for each struct,
+ * dict entry or variant element. Optionally, arrays of dict entries with string keys are
+ * decoded as JSON objects instead, with variants and structs as values unwrapped into single
+ * JSON values.
+ *
+ * This class only depends on org.json and SignaturePlan, so that it can be built, tested and
+ * benchmarked on a plain JVM without the native library (see tests/bench).
+ */
+public final class AllJoynWireCodec
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    /**
+     * Converts byte arrays to and from the JSON values that stand for them, e.g. binary parts
+     * delivered to JS as ArrayBuffers.
+     */
+    public interface BinaryValues
+    {
+        /**
+         * @return  The JSON value to put in place of a decoded byte array.
+         */
+        Object fromBytes(byte[] bytes) throws JSONException;
+
+        /**
+         * @return  The bytes of a scalar array given as a JSON object instead of a JSONArray.
+         */
+        byte[] toBytes(JSONObject value) throws JSONException;
+    }
+
+    private AllJoynWireCodec()
+    {
+    }
+
+    /**
+     * Encodes the values of a signature.
+     *
+     * @param out       Buffer to encode into, starting at its position, which is taken as the
+     *                  start of the body. A bigger buffer with the same byte order is allocated
+     *                  if it runs out of space.
+     * @param binary    Converts JSON objects given for scalar arrays, or null to reject them.
+     * @return          The buffer holding the body, flipped: from the start of the body to
+     *                  its end.
+     */
+    public static ByteBuffer encode(SignaturePlan plan, JSONArray args, ByteBuffer out, BinaryValues binary) throws JSONException
+    {
+        Encoder encoder = new Encoder(out, binary);
+        encoder.encodeSteps(plan.getSteps(), args, 0);
+
+        ByteBuffer body = encoder.m_pOut;
+        body.limit(body.position());
+        body.position(encoder.m_nBase);
+        return body;
+    }
+
+    /**
+     * Decodes the values of a signature from the position of the buffer, which is taken as the
+     * start of the body, and appends them to a list.
+     *
+     * @param binary    Converts byte arrays, or null to append them as JSONArrays of numbers.
+     */
+    public static void decode(SignaturePlan plan, ByteBuffer in, JSONArray args, BinaryValues binary) throws JSONException
+    {
+        decode(plan, in, args, binary, false);
+    }
+
+    /**
+     * @param dictionaries  True to decode arrays of dict entries with string keys as JSON objects.
+     */
+    public static void decode(SignaturePlan plan, ByteBuffer in, JSONArray args, BinaryValues binary, boolean dictionaries) throws JSONException
+    {
+        Decoder decoder = new Decoder(in, binary, dictionaries);
+
+        try
+        {
+            decoder.decodeSteps(plan.getSteps(), args);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new JSONException("Body too short for signature \"" + plan.getSignature() + "\"");
+        }
+    }
+
+    /**
+     * @return  The size of a scalar type, which is also its alignment.
+     */
+    public static int getScalarSize(char typeId)
+    {
+        switch (typeId)
+        {
+            case 'y':
+                return 1;
+
+            case 'n':
+            case 'q':
+                return 2;
+
+            case 'b':
+            case 'i':
+            case 'u':
+            case 'h':
+                return 4;
+
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * @return  The alignment of the complete type of a step.
+     */
+    public static int getAlignment(SignaturePlan.Step step)
+    {
+        switch (step.kind)
+        {
+            case SignaturePlan.KIND_SCALAR:
+                return getScalarSize(step.typeId);
+
+            case SignaturePlan.KIND_STRING:
+                return (step.typeId == 'g') ? 1 : 4;
+
+            case SignaturePlan.KIND_ARRAY:
+                return 4;
+
+            case SignaturePlan.KIND_STRUCT:
+            case SignaturePlan.KIND_DICT_ENTRY:
+                return 8;
+
+            default:
+                return 1;
+        }
+    }
+
+    static double toDouble(Object value)
+    {
+        return (value instanceof Number) ? ((Number)value).doubleValue() : Double.parseDouble(value.toString());
+    }
+
+    /**
+     * @return  The value of a uint64 as a Long, or as a BigInteger if it is beyond Long.MAX_VALUE,
+     *          so that it isn't taken for a negative number.
+     */
+    static Number fromUnsigned64(long value)
+    {
+        if (value >= 0)
+        {
+            return value;
+        }
+
+        return BigInteger.valueOf(value >>> 1).shiftLeft(1).or(BigInteger.valueOf(value & 1));
+    }
+
+    static long toLong(Object value)
+    {
+        if (value instanceof Boolean)
+        {
+            return ((Boolean)value) ? 1 : 0;
+        }
+        else if (value instanceof Number)
+        {
+            return ((Number)value).longValue();
+        }
+
+        String strVal = value.toString();
+
+        if (strVal.equalsIgnoreCase("true"))
+        {
+            return 1;
+        }
+        else if (strVal.equalsIgnoreCase("false"))
+        {
+            return 0;
+        }
+
+        try
+        {
+            return Long.parseLong(strVal);
+        }
+        catch (NumberFormatException e)
+        {
+            return (long)Double.parseDouble(strVal);
+        }
+    }
+
+    private static final class Encoder
+    {
+        private final BinaryValues m_pBinary;
+        private ByteBuffer m_pOut;
+        private int m_nBase;
+
+        Encoder(ByteBuffer out, BinaryValues binary)
+        {
+            m_pOut = out;
+            m_nBase = out.position();
+            m_pBinary = binary;
+        }
+
+        /**
+         * @return  The index of the first value left unused.
+         */
+        int encodeSteps(SignaturePlan.Step[] steps, JSONArray args, int next) throws JSONException
+        {
+            for (SignaturePlan.Step step : steps)
+            {
+                next = encodeStep(step, args, next);
+            }
+
+            return next;
+        }
+
+        int encodeStep(SignaturePlan.Step step, JSONArray args, int next) throws JSONException
+        {
+            switch (step.kind)
+            {
+                case SignaturePlan.KIND_SCALAR:
+                case SignaturePlan.KIND_STRING:
+                    encodeBasic(step, args.get(next));
+                    return next + 1;
+
+                case SignaturePlan.KIND_STRUCT:
+                case SignaturePlan.KIND_DICT_ENTRY:
+                    pad(8);
+                    return encodeSteps(step.children, args, next);
+
+                case SignaturePlan.KIND_VARIANT:
+                {
+                    String inSig = args.get(next).toString();
+                    encodeSignature(inSig);
+                    return encodeSteps(SignaturePlan.get(inSig).getSteps(), args, next + 1);
+                }
+
+                default:
+                    encodeArray(step.getElement(), args.get(next));
+                    return next + 1;
+            }
+        }
+
+        void encodeArray(SignaturePlan.Step element, Object value) throws JSONException
+        {
+            // Offsets from the start of the body stay valid if the body moves to a bigger buffer
+            pad(4);
+            ensure(4);
+            int lengthOffset = m_pOut.position() - m_nBase;
+            m_pOut.putInt(0);
+
+            // The length doesn't count the padding before the first element
+            pad(getAlignment(element));
+            int startOffset = m_pOut.position() - m_nBase;
+
+            if (element.kind == SignaturePlan.KIND_SCALAR && value instanceof JSONObject)
+            {
+                if (m_pBinary == null)
+                {
+                    throw new JSONException("Unexpected binary value for array of '" + element.typeId + "'");
+                }
+
+                byte[] bytes = m_pBinary.toBytes((JSONObject)value);
+
+                if (bytes.length % getScalarSize(element.typeId) != 0)
+                {
+                    throw new JSONException("Binary value of " + bytes.length + " bytes for array of '" + element.typeId + "'");
+                }
+
+                ensure(bytes.length);
+                m_pOut.put(bytes);
+            }
+            else
+            {
+                JSONArray vArgs = (JSONArray)value;
+                int len = vArgs.length();
+
+                for (int k = 0; k < len; k++)
+                {
+                    if (element.isBasic())
+                    {
+                        encodeBasic(element, vArgs.get(k));
+                    }
+                    else if (element.kind == SignaturePlan.KIND_ARRAY)
+                    {
+                        encodeArray(element.getElement(), vArgs.get(k));
+                    }
+                    else
+                    {
+                        encodeStep(element, vArgs.getJSONArray(k), 0);
+                    }
+                }
+            }
+
+            m_pOut.putInt(m_nBase + lengthOffset, m_pOut.position() - m_nBase - startOffset);
+        }
+
+        void encodeBasic(SignaturePlan.Step step, Object value)
+        {
+            switch (step.typeId)
+            {
+                case 'y':
+                    ensure(1);
+                    m_pOut.put((byte)toLong(value));
+                    break;
+
+                case 'n':
+                case 'q':
+                    pad(2);
+                    ensure(2);
+                    m_pOut.putShort((short)toLong(value));
+                    break;
+
+                case 'b':
+                case 'i':
+                case 'u':
+                case 'h':
+                    pad(4);
+                    ensure(4);
+                    m_pOut.putInt((int)toLong(value));
+                    break;
+
+                case 'd':
+                    pad(8);
+                    ensure(8);
+                    m_pOut.putDouble(toDouble(value));
+                    break;
+
+                case 's':
+                case 'o':
+                {
+                    byte[] bytes = value.toString().getBytes(UTF8);
+                    pad(4);
+                    ensure(4 + bytes.length + 1);
+                    m_pOut.putInt(bytes.length);
+                    m_pOut.put(bytes);
+                    m_pOut.put((byte)0);
+                    break;
+                }
+
+                case 'g':
+                    encodeSignature(value.toString());
+                    break;
+
+                default:
+                    pad(8);
+                    ensure(8);
+                    m_pOut.putLong(toLong(value));
+                    break;
+            }
+        }
+
+        void encodeSignature(String signature)
+        {
+            byte[] bytes = signature.getBytes(UTF8);
+            ensure(1 + bytes.length + 1);
+            m_pOut.put((byte)bytes.length);
+            m_pOut.put(bytes);
+            m_pOut.put((byte)0);
+        }
+
+        /**
+         * Writes zeros up to the next multiple of the alignment from the start of the body.
+         */
+        void pad(int alignment)
+        {
+            int padding = -(m_pOut.position() - m_nBase) & (alignment - 1);
+            ensure(padding);
+
+            while (padding-- > 0)
+            {
+                m_pOut.put((byte)0);
+            }
+        }
+
+        /**
+         * Makes room for a number of bytes, moving the body to a bigger buffer if needed.
+         */
+        void ensure(int len)
+        {
+            if (m_pOut.remaining() >= len)
+            {
+                return;
+            }
+
+            int used = m_pOut.position() - m_nBase;
+            int size = Math.max(MIN_BUFFER_SIZE, m_pOut.capacity());
+
+            while (size < used + len)
+            {
+                size <<= 1;
+            }
+
+            ByteBuffer bigger = m_pOut.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            bigger.order(m_pOut.order());
+
+            m_pOut.limit(m_pOut.position());
+            m_pOut.position(m_nBase);
+            bigger.put(m_pOut);
+
+            m_pOut = bigger;
+            m_nBase = 0;
+        }
+    }
+
+    private static final class Decoder
+    {
+        private final ByteBuffer m_pIn;
+        private final int m_nBase;
+        private final BinaryValues m_pBinary;
+        private final boolean m_bDictionaries;
+
+        Decoder(ByteBuffer in, BinaryValues binary, boolean dictionaries)
+        {
+            m_pIn = in;
+            m_nBase = in.position();
+            m_pBinary = binary;
+            m_bDictionaries = dictionaries;
+        }
+
+        void decodeSteps(SignaturePlan.Step[] steps, JSONArray args) throws JSONException
+        {
+            for (SignaturePlan.Step step : steps)
+            {
+                decodeStep(step, args);
+            }
+        }
+
+        void decodeStep(SignaturePlan.Step step, JSONArray args) throws JSONException
+        {
+            switch (step.kind)
+            {
+                case SignaturePlan.KIND_SCALAR:
+                case SignaturePlan.KIND_STRING:
+                    decodeBasic(step.typeId, args);
+                    break;
+
+                case SignaturePlan.KIND_STRUCT:
+                case SignaturePlan.KIND_DICT_ENTRY:
+                    skip(8);
+                    decodeSteps(step.children, args);
+                    break;
+
+                case SignaturePlan.KIND_VARIANT:
+                {
+                    String inSig = decodeSignature();
+                    args.put(inSig);
+                    decodeSteps(getPlan(inSig).getSteps(), args);
+                    break;
+                }
+
+                default:
+                    decodeArray(step.getElement(), args);
+                    break;
+            }
+        }
+
+        void decodeArray(SignaturePlan.Step element, JSONArray args) throws JSONException
+        {
+            skip(4);
+            int len = m_pIn.getInt();
+            skip(getAlignment(element));
+
+            if (len < 0 || len > m_pIn.remaining())
+            {
+                throw new JSONException("Invalid array length " + len);
+            }
+
+            int end = m_pIn.position() + len;
+
+            if (element.kind == SignaturePlan.KIND_SCALAR)
+            {
+                decodeScalarArray(element.typeId, len, args);
+                return;
+            }
+
+            if (m_bDictionaries && element.kind == SignaturePlan.KIND_DICT_ENTRY && element.children[0].typeId == 's')
+            {
+                JSONObject dictionary = new JSONObject();
+
+                while (m_pIn.position() < end)
+                {
+                    skip(8);
+                    JSONArray key = new JSONArray();
+                    decodeBasic('s', key);
+                    dictionary.put(key.getString(0), decodeTypedValue(element.children[1]));
+                }
+
+                if (m_pIn.position() != end)
+                {
+                    throw new JSONException("Array elements overrun its length");
+                }
+
+                args.put(dictionary);
+                return;
+            }
+
+            JSONArray vArgs = new JSONArray();
+
+            while (m_pIn.position() < end)
+            {
+                if (element.isBasic())
+                {
+                    decodeBasic(element.typeId, vArgs);
+                }
+                else if (element.kind == SignaturePlan.KIND_ARRAY)
+                {
+                    decodeArray(element.getElement(), vArgs);
+                }
+                else
+                {
+                    JSONArray inArgs = new JSONArray();
+                    decodeStep(element, inArgs);
+                    vArgs.put(inArgs);
+                }
+            }
+
+            if (m_pIn.position() != end)
+            {
+                throw new JSONException("Array elements overrun its length");
+            }
+
+            args.put(vArgs);
+        }
+
+        /**
+         * Decodes a value as a single JSON value: a variant as the value it holds, and a struct
+         * as a JSONArray of its fields.
+         */
+        Object decodeTypedValue(SignaturePlan.Step step) throws JSONException
+        {
+            if (step.kind == SignaturePlan.KIND_VARIANT)
+            {
+                // A variant holds exactly one complete type
+                return decodeTypedValue(getPlan(decodeSignature()).getSteps()[0]);
+            }
+
+            JSONArray values = new JSONArray();
+            decodeStep(step, values);
+            return (step.kind == SignaturePlan.KIND_STRUCT) ? values : values.get(0);
+        }
+
+        SignaturePlan getPlan(String signature) throws JSONException
+        {
+            try
+            {
+                SignaturePlan plan = SignaturePlan.get(signature);
+
+                if (plan.getSteps().length != 1)
+                {
+                    throw new JSONException("Invalid variant signature \"" + signature + "\"");
+                }
+
+                return plan;
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new JSONException(e.getMessage());
+            }
+        }
+
+        void decodeScalarArray(char typeId, int len, JSONArray args) throws JSONException
+        {
+            int size = getScalarSize(typeId);
+
+            if (len % size != 0)
+            {
+                throw new JSONException("Invalid length " + len + " for array of '" + typeId + "'");
+            }
+
+            if (typeId == 'y' && m_pBinary != null)
+            {
+                byte[] bytes = new byte[len];
+                m_pIn.get(bytes);
+                args.put(m_pBinary.fromBytes(bytes));
+                return;
+            }
+
+            JSONArray vArgs = new JSONArray();
+
+            for (int count = len / size; count > 0; count--)
+            {
+                decodeBasic(typeId, vArgs);
+            }
+
+            args.put(vArgs);
+        }
+
+        /**
+         * Appends a scalar or string, with the same value types as putScalarValue in AllJoynCordova.
+         */
+        void decodeBasic(char typeId, JSONArray args) throws JSONException
+        {
+            switch (typeId)
+            {
+                case 'y':
+                    args.put(m_pIn.get() & 0xFF);
+                    break;
+
+                case 'n':
+                    skip(2);
+                    args.put(m_pIn.getShort());
+                    break;
+
+                case 'q':
+                    skip(2);
+                    args.put(m_pIn.getShort() & 0xFFFF);
+                    break;
+
+                case 'i':
+                case 'h':
+                    skip(4);
+                    args.put((long)m_pIn.getInt());
+                    break;
+
+                case 'b':
+                case 'u':
+                    skip(4);
+                    args.put(m_pIn.getInt() & 0xFFFFFFFFL);
+                    break;
+
+                case 'd':
+                    skip(8);
+                    args.put(m_pIn.getDouble());
+                    break;
+
+                case 's':
+                case 'o':
+                {
+                    skip(4);
+                    int len = m_pIn.getInt();
+                    args.put(decodeString(len));
+                    break;
+                }
+
+                case 'g':
+                    args.put(decodeSignature());
+                    break;
+
+                case 't':
+                    skip(8);
+                    args.put(fromUnsigned64(m_pIn.getLong()));
+                    break;
+
+                default:
+                    skip(8);
+                    args.put(m_pIn.getLong());
+                    break;
+            }
+        }
+
+        String decodeSignature() throws JSONException
+        {
+            return decodeString(m_pIn.get() & 0xFF);
+        }
+
+        String decodeString(int len) throws JSONException
+        {
+            if (len < 0 || len >= m_pIn.remaining())
+            {
+                throw new JSONException("Invalid string length " + len);
+            }
+
+            String value;
+
+            if (m_pIn.hasArray())
+            {
+                value = new String(m_pIn.array(), m_pIn.arrayOffset() + m_pIn.position(), len, UTF8);
+                m_pIn.position(m_pIn.position() + len);
+            }
+            else
+            {
+                byte[] bytes = new byte[len];
+                m_pIn.get(bytes);
+                value = new String(bytes, UTF8);
+            }
+
+            if (m_pIn.get() != 0)
+            {
+                throw new JSONException("Unterminated string");
+            }
+
+            return value;
+        }
+
+        /**
+         * Skips the padding up to the next multiple of the alignment from the start of the body.
+         */
+        void skip(int alignment)
+        {
+            int padding = -(m_pIn.position() - m_nBase) & (alignment - 1);
+
+            if (padding > m_pIn.remaining())
+            {
+                throw new BufferUnderflowException();
+            }
+
+            m_pIn.position(m_pIn.position() + padding);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.allseen.alljoyn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Native arg holders and scratch buffers owned by one thread and reused from message to
+ * message, so that marshalling and unmarshalling don't create a SWIG proxy, and the native
+ * memory and finalizer behind it, for every value.
+ *
+ * Holders are handed out as a stack: a container keeps its holder until it is closed while
+ * the values inside it use the holders above it. Every push() must be paired with a pop().
+ */
+final class ArgScratch
+{
+    private static final int MIN_BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<ArgScratch> SCRATCH = new ThreadLocal<ArgScratch>()
+    {
+        @Override
+        protected ArgScratch initialValue()
+        {
+            return new ArgScratch();
+        }
+    };
+
+    private _AJ_Arg[] m_pArgs = new _AJ_Arg[8];
+    private int m_nDepth = 0;
+    private ByteBuffer m_pBuffer = null;
+    private byte[] m_pBytes = new byte[256];
+
+    private ArgScratch()
+    {
+    }
+
+    /**
+     * @return  The scratch of the calling thread.
+     */
+    static ArgScratch get()
+    {
+        return SCRATCH.get();
+    }
+
+    /**
+     * @return  A holder for one arg, valid until the matching pop().
+     */
+    _AJ_Arg push()
+    {
+        if (m_nDepth == m_pArgs.length)
+        {
+            m_pArgs = Arrays.copyOf(m_pArgs, m_pArgs.length * 2);
+        }
+
+        _AJ_Arg arg = m_pArgs[m_nDepth];
+
+        if (arg == null)
+        {
+            arg = new _AJ_Arg();
+            m_pArgs[m_nDepth] = arg;
+        }
+
+        m_nDepth++;
+        return arg;
+    }
+
+    /**
+     * Gives back the holder of the last push().
+     */
+    void pop()
+    {
+        m_nDepth--;
+    }
+
+    /**
+     * Returns a direct buffer of at least the given capacity, cleared and in native byte order.
+     * It stays valid until the next call on this thread.
+     */
+    ByteBuffer getBuffer(int capacity)
+    {
+        if (m_pBuffer == null || m_pBuffer.capacity() < capacity)
+        {
+            int size = MIN_BUFFER_SIZE;
+
+            while (size < capacity)
+            {
+                size <<= 1;
+            }
+
+            m_pBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+
+        m_pBuffer.clear();
+        m_pBuffer.order(ByteOrder.nativeOrder());
+        return m_pBuffer;
+    }
+
+    /**
+     * Replaces the scratch buffer with a bigger direct buffer, e.g. one grown by a caller that
+     * ran out of space in it. Smaller buffers are ignored.
+     */
+    void setBuffer(ByteBuffer buffer)
+    {
+        if (buffer.isDirect() && (m_pBuffer == null || buffer.capacity() > m_pBuffer.capacity()))
+        {
+            m_pBuffer = buffer;
+        }
+    }
+
+    /**
+     * Returns a byte array of at least the given length, e.g. to decode a string from.
+     * It stays valid until the next call on this thread.
+     */
+    byte[] getBytes(int len)
+    {
+        if (m_pBytes.length < len)
+        {
+            m_pBytes = new byte[Math.max(len, m_pBytes.length * 2)];
+        }
+
+        return m_pBytes;
+    }
+}
@@ -0,0 +1,158 @@
+package org.allseen.alljoyn;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the results of the invocations of one invokeBatch call.
+ *
+ * Each invocation gets its own item callback, which turns the result it is given into
+ * {"$item": index, "ok": true|false, "value": result}. With the stream option, item results
+ * are sent as they arrive with the callback kept, and {"$batch": count} ends the batch once
+ * all have arrived. Without it, the item results are sent together, in item order, once all
+ * have arrived.
+ *
+ * Item results are carried as JSON, so binary parts and chunks are not supported in a batch.
+ */
+final class BatchCall
+{
+    public static final String ITEM_KEY = "$item";
+    public static final String END_KEY = "$batch";
+
+    private final CallbackContext m_pCallbackContext;
+    private final CordovaWebView m_pWebView;
+    private final boolean m_bStream;
+    private final int m_nCount;
+    private final AtomicInteger m_nRemaining;
+    private final JSONArray m_pResults = new JSONArray();
+
+    /**
+     * @param count     Number of invocations in the batch.
+     * @param stream    True to send each item result as soon as it arrives.
+     */
+    BatchCall(CallbackContext callbackContext, CordovaWebView webView, int count, boolean stream)
+    {
+        m_pCallbackContext = callbackContext;
+        m_pWebView = webView;
+        m_bStream = stream;
+        m_nCount = count;
+        m_nRemaining = new AtomicInteger(count);
+    }
+
+    /**
+     * Ends the batch right away if it has no invocations.
+     */
+    void start()
+    {
+        if (m_nCount == 0)
+        {
+            finish();
+        }
+    }
+
+    /**
+     * @return  The callback to give the invocation at the given index.
+     */
+    CallbackContext getItemContext(int index)
+    {
+        return new ItemContext(index);
+    }
+
+    private void complete(int index, PluginResult result)
+    {
+        try
+        {
+            JSONObject item = new JSONObject();
+            item.put(ITEM_KEY, index);
+            item.put("ok", result.getStatus() == PluginResult.Status.OK.ordinal());
+            item.put("value", new JSONTokener(result.getMessage()).nextValue());
+
+            if (m_bStream)
+            {
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, item);
+                pluginResult.setKeepCallback(true);
+                m_pCallbackContext.sendPluginResult(pluginResult);
+            }
+            else
+            {
+                synchronized (m_pResults)
+                {
+                    m_pResults.put(index, item);
+                }
+            }
+        }
+        catch (JSONException e)
+        {
+            // The result came from a plugin result, so it is valid JSON
+        }
+
+        if (m_nRemaining.decrementAndGet() == 0)
+        {
+            finish();
+        }
+    }
+
+    private void finish()
+    {
+        if (m_bStream)
+        {
+            try
+            {
+                JSONObject end = new JSONObject();
+                end.put(END_KEY, m_nCount);
+                m_pCallbackContext.success(end);
+            }
+            catch (JSONException e)
+            {
+                // Not thrown for a constant key
+            }
+        }
+        else
+        {
+            synchronized (m_pResults)
+            {
+                m_pCallbackContext.success(m_pResults);
+            }
+        }
+    }
+
+    /**
+     * Receives the result of one invocation in place of the callback of the batch
+     */
+    private class ItemContext extends CallbackContext
+    {
+        private final int m_nIndex;
+        private boolean m_bDone = false;
+
+        ItemContext(int index)
+        {
+            super(m_pCallbackContext.getCallbackId(), m_pWebView);
+            m_nIndex = index;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult)
+        {
+            synchronized (this)
+            {
+                // Only the first final result of an invocation counts
+                if (m_bDone || pluginResult.getKeepCallback())
+                {
+                    return;
+                }
+
+                m_bDone = true;
+            }
+
+            complete(m_nIndex, pluginResult);
+        }
+    }
+}
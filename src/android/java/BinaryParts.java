@@ -0,0 +1,107 @@
+package org.allseen.alljoyn;
+
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte arrays delivered to JS as ArrayBuffer parts of a multipart plugin result, instead of
+ * as JSON arrays of numbers.
+ *
+ * The JSON payload keeps a {"$binary": index} placeholder where each byte array belongs; the
+ * index counts the byte arrays of the result, starting at 0, and JS swaps the placeholders
+ * for the ArrayBuffers it receives after the payload.
+ *
+ * In the other direction, JS sends ArrayBuffers and typed arrays as {"$base64": data}.
+ */
+public class BinaryParts
+{
+    public static final String PLACEHOLDER_KEY = "$binary";
+    public static final String BASE64_KEY = "$base64";
+
+    private final List<byte[]> m_pParts = new ArrayList<byte[]>();
+    private final List<JSONObject> m_pPlaceholders = new ArrayList<JSONObject>();
+
+    /**
+     * Adds a byte array.
+     *
+     * @return  The placeholder to put in the JSON payload in its place.
+     */
+    public JSONObject add(byte[] bytes) throws JSONException
+    {
+        JSONObject placeholder = new JSONObject();
+        placeholder.put(PLACEHOLDER_KEY, m_pParts.size());
+        m_pParts.add(bytes);
+        m_pPlaceholders.add(placeholder);
+        return placeholder;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_pParts.isEmpty();
+    }
+
+    /**
+     * Moves the byte arrays to the end of another set, renumbering their placeholders, e.g.
+     * to deliver several messages in one result.
+     */
+    public void moveTo(BinaryParts target)
+    {
+        for (int i = 0; i < m_pParts.size(); i++)
+        {
+            JSONObject placeholder = m_pPlaceholders.get(i);
+
+            try
+            {
+                placeholder.put(PLACEHOLDER_KEY, target.m_pParts.size());
+            }
+            catch (JSONException e)
+            {
+                // Only thrown for null keys
+            }
+
+            target.m_pParts.add(m_pParts.get(i));
+            target.m_pPlaceholders.add(placeholder);
+        }
+
+        m_pParts.clear();
+        m_pPlaceholders.clear();
+    }
+
+    /**
+     * Builds the plugin result for a JSON payload: the payload alone if there are no byte
+     * arrays, otherwise a multipart result of the payload followed by the byte arrays.
+     */
+    public static PluginResult toPluginResult(JSONArray payload, BinaryParts parts)
+    {
+        return toPluginResult(new PluginResult(PluginResult.Status.OK, payload), parts);
+    }
+
+    public static PluginResult toPluginResult(JSONObject payload, BinaryParts parts)
+    {
+        return toPluginResult(new PluginResult(PluginResult.Status.OK, payload), parts);
+    }
+
+    private static PluginResult toPluginResult(PluginResult payload, BinaryParts parts)
+    {
+        if (parts == null || parts.isEmpty())
+        {
+            return payload;
+        }
+
+        List<PluginResult> results = new ArrayList<PluginResult>();
+        results.add(payload);
+
+        for (byte[] bytes : parts.m_pParts)
+        {
+            results.add(new PluginResult(PluginResult.Status.OK, bytes));
+        }
+
+        return new PluginResult(PluginResult.Status.OK, results);
+    }
+}
@@ -0,0 +1,125 @@
+package org.allseen.alljoyn;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends the elements of the big top-level arrays of one message to JS in chunks while they
+ * are unmarshalled, so that the whole array is never held as JSON at once.
+ *
+ * Each chunk is its own plugin result, {"$chunk": streamId, "arg": argIndex, "elements": [...]},
+ * sent right away with the callback kept. In the args of the message, the array is replaced
+ * by the end marker {"$chunked": streamId, "count": n}, which reaches JS after all chunks of
+ * the array. Stream ids count the messages of one callback, so that JS can tell the chunks of
+ * a message from those of the next one while the first is still queued.
+ *
+ * Chunks bypass the batching and flow control of listeners: they are paced by unmarshalling.
+ */
+final class ChunkStream
+{
+    public static final String CHUNK_KEY = "$chunk";
+    public static final String END_KEY = "$chunked";
+
+    private final CallbackContext m_pCallbackContext;
+    private final int m_nChunkSize;
+    private final long m_nStreamId;
+    private final boolean m_bBinary;
+
+    private int m_nArgIndex = -1;
+    private int m_nCount = 0;
+    private JSONArray m_pElements = null;
+    private BinaryParts m_pBinary = null;
+
+    /**
+     * @param chunkSize     Number of elements per chunk.
+     * @param streamId      Id of the message among those of the callback.
+     * @param binary        True to send byte arrays of the elements as binary parts.
+     */
+    ChunkStream(CallbackContext callbackContext, int chunkSize, long streamId, boolean binary)
+    {
+        m_pCallbackContext = callbackContext;
+        m_nChunkSize = Math.max(1, chunkSize);
+        m_nStreamId = streamId;
+        m_bBinary = binary;
+    }
+
+    /**
+     * Starts streaming the array at the given index of the message args.
+     */
+    void open(int argIndex)
+    {
+        m_nArgIndex = argIndex;
+        m_nCount = 0;
+        m_pElements = new JSONArray();
+        m_pBinary = m_bBinary ? new BinaryParts() : null;
+    }
+
+    /**
+     * @return  The list to append the next element to.
+     */
+    JSONArray getElements()
+    {
+        return m_pElements;
+    }
+
+    /**
+     * @return  The binary parts of the current chunk, or null without the binary option.
+     */
+    BinaryParts getBinary()
+    {
+        return m_pBinary;
+    }
+
+    /**
+     * Counts the element just appended, and sends the chunk once it is full.
+     */
+    void elementAdded() throws JSONException
+    {
+        m_nCount++;
+
+        if (m_pElements.length() >= m_nChunkSize)
+        {
+            send();
+        }
+    }
+
+    /**
+     * Sends what is left of the array.
+     *
+     * @return  The end marker to put in the message args in place of the array.
+     */
+    JSONObject close() throws JSONException
+    {
+        if (m_pElements.length() > 0)
+        {
+            send();
+        }
+
+        JSONObject marker = new JSONObject();
+        marker.put(END_KEY, m_nStreamId);
+        marker.put("count", m_nCount);
+
+        m_pElements = null;
+        m_pBinary = null;
+        return marker;
+    }
+
+    private void send() throws JSONException
+    {
+        JSONObject chunk = new JSONObject();
+        chunk.put(CHUNK_KEY, m_nStreamId);
+        chunk.put("arg", m_nArgIndex);
+        chunk.put("elements", m_pElements);
+
+        PluginResult pluginResult = BinaryParts.toPluginResult(chunk, m_pBinary);
+        pluginResult.setKeepCallback(true);
+        m_pCallbackContext.sendPluginResult(pluginResult);
+
+        m_pElements = new JSONArray();
+        m_pBinary = m_bBinary ? new BinaryParts() : null;
+    }
+}
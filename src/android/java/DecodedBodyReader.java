@@ -0,0 +1,312 @@
+package org.allseen.alljoyn;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Turns the output of the native decodeBody() into the JSON values JS receives, without
+ * calling back into native code. See AJ_DecodeBuffer in alljoyn.i for the encoding.
+ *
+ * The layout matches the plan-driven unmarshaller: fields of structs and dict entries, and
+ * the signature and values of a variant, are appended in place; an array becomes a JSONArray
+ * holding a JSONArray of fields for each struct, dict entry or variant element.
+ *
+ * Optionally, arrays of dict entries with string keys become JSON objects, see readDictionary().
+ */
+final class DecodedBodyReader
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer m_pIn;
+    private final BinaryParts m_pBinary;
+    private final boolean m_bDictionaries;
+
+    private DecodedBodyReader(ByteBuffer in, BinaryParts binary, boolean dictionaries)
+    {
+        m_pIn = in;
+        m_pBinary = binary;
+        m_bDictionaries = dictionaries;
+    }
+
+    /**
+     * Appends all values between the position and the limit of the buffer.
+     *
+     * @param binary        Receives byte arrays to deliver as binary parts, or null to deliver them as JSON.
+     * @param dictionaries  True to read arrays of dict entries with string keys as JSON objects.
+     */
+    static void read(ByteBuffer in, JSONArray args, BinaryParts binary, boolean dictionaries) throws JSONException
+    {
+        DecodedBodyReader reader = new DecodedBodyReader(in, binary, dictionaries);
+
+        while (in.hasRemaining())
+        {
+            reader.readValue(in.get(), args);
+        }
+    }
+
+    private void readValue(byte tag, JSONArray args) throws JSONException
+    {
+        switch (tag)
+        {
+            case 'y':
+                args.put(m_pIn.get() & 0xFF);
+                break;
+
+            case 'n':
+                args.put(m_pIn.getShort());
+                break;
+
+            case 'q':
+                args.put(m_pIn.getShort() & 0xFFFF);
+                break;
+
+            case 'i':
+            case 'h':
+                args.put((long)m_pIn.getInt());
+                break;
+
+            case 'u':
+            case 'b':
+                args.put(m_pIn.getInt() & 0xFFFFFFFFL);
+                break;
+
+            case 'x':
+                args.put(m_pIn.getLong());
+                break;
+
+            case 't':
+                args.put(AllJoynWireCodec.fromUnsigned64(m_pIn.getLong()));
+                break;
+
+            case 'd':
+                args.put(m_pIn.getDouble());
+                break;
+
+            case 's':
+            case 'o':
+                args.put(readString(m_pIn.getInt()));
+                break;
+
+            case 'g':
+                args.put(readString(m_pIn.get() & 0xFF));
+                break;
+
+            case 'a':
+            {
+                char typeId = (char)m_pIn.get();
+                int len = m_pIn.getInt();
+                int limit = m_pIn.limit();
+                m_pIn.limit(m_pIn.position() + len);
+                readScalarArray(m_pIn, typeId, args, m_pBinary);
+                m_pIn.limit(limit);
+                break;
+            }
+
+            case '@':
+                if (m_bDictionaries)
+                {
+                    args.put(readDictionary());
+                    break;
+                }
+
+                // Otherwise like any other array
+            case '[':
+            {
+                JSONArray vArgs = new JSONArray();
+
+                for (byte elementTag = m_pIn.get(); elementTag != ']'; elementTag = m_pIn.get())
+                {
+                    if (elementTag == '(' || elementTag == '{' || elementTag == '<')
+                    {
+                        JSONArray inArgs = new JSONArray();
+                        readValue(elementTag, inArgs);
+                        vArgs.put(inArgs);
+                    }
+                    else
+                    {
+                        readValue(elementTag, vArgs);
+                    }
+                }
+
+                args.put(vArgs);
+                break;
+            }
+
+            case '(':
+                readUntil((byte)')', args);
+                break;
+
+            case '{':
+                readUntil((byte)'}', args);
+                break;
+
+            case '<':
+                args.put(readString(m_pIn.get() & 0xFF));
+                readUntil((byte)'>', args);
+                break;
+
+            default:
+                throw new JSONException("Invalid tag " + tag + " in decoded body");
+        }
+    }
+
+    private void readUntil(byte close, JSONArray args) throws JSONException
+    {
+        for (byte tag = m_pIn.get(); tag != close; tag = m_pIn.get())
+        {
+            readValue(tag, args);
+        }
+    }
+
+    /**
+     * Reads the entries of a '@' array into an object, with each value as a single JSON value,
+     * see readTypedValue().
+     */
+    private JSONObject readDictionary() throws JSONException
+    {
+        JSONObject dictionary = new JSONObject();
+
+        for (byte tag = m_pIn.get(); tag != ']'; tag = m_pIn.get())
+        {
+            if (tag != '{' || m_pIn.get() != 's')
+            {
+                throw new JSONException("Invalid dictionary entry in decoded body");
+            }
+
+            String key = readString(m_pIn.getInt());
+            dictionary.put(key, readTypedValue(m_pIn.get()));
+
+            if (m_pIn.get() != '}')
+            {
+                throw new JSONException("Invalid dictionary entry in decoded body");
+            }
+        }
+
+        return dictionary;
+    }
+
+    /**
+     * Reads a value as a single JSON value: a variant as the value it holds, and a struct as a
+     * JSONArray of its fields.
+     */
+    private Object readTypedValue(byte tag) throws JSONException
+    {
+        if (tag == '<')
+        {
+            // Skip the signature, the tags tell the type
+            int len = m_pIn.get() & 0xFF;
+            m_pIn.position(m_pIn.position() + len);
+
+            Object value = readTypedValue(m_pIn.get());
+
+            if (m_pIn.get() != '>')
+            {
+                throw new JSONException("Invalid variant in decoded body");
+            }
+
+            return value;
+        }
+
+        JSONArray values = new JSONArray();
+
+        if (tag == '(')
+        {
+            readUntil((byte)')', values);
+            return values;
+        }
+
+        readValue(tag, values);
+        return values.get(0);
+    }
+
+    private String readString(int len)
+    {
+        byte[] bytes = ArgScratch.get().getBytes(len);
+        m_pIn.get(bytes, 0, len);
+        return new String(bytes, 0, len, UTF8);
+    }
+
+    /**
+     * Appends the elements of a scalar array, from the position to the limit of the buffer,
+     * as one JSONArray; or, for a byte array with binary parts, as one binary part.
+     */
+    static void readScalarArray(ByteBuffer in, char typeId, JSONArray args, BinaryParts binary) throws JSONException
+    {
+        if (binary != null && typeId == 'y')
+        {
+            byte[] bytes = new byte[in.remaining()];
+            in.get(bytes);
+            args.put(binary.add(bytes));
+            return;
+        }
+
+        JSONArray vArgs = new JSONArray();
+
+        switch (typeId)
+        {
+            case 'y':
+                while (in.hasRemaining())
+                {
+                    vArgs.put(in.get() & 0xFF);
+                }
+                break;
+
+            case 'n':
+                while (in.hasRemaining())
+                {
+                    vArgs.put(in.getShort());
+                }
+                break;
+
+            case 'q':
+                while (in.hasRemaining())
+                {
+                    vArgs.put(in.getShort() & 0xFFFF);
+                }
+                break;
+
+            case 'i':
+            case 'h':
+                while (in.hasRemaining())
+                {
+                    vArgs.put((long)in.getInt());
+                }
+                break;
+
+            case 'u':
+            case 'b':
+                while (in.hasRemaining())
+                {
+                    vArgs.put(in.getInt() & 0xFFFFFFFFL);
+                }
+                break;
+
+            case 'd':
+                while (in.hasRemaining())
+                {
+                    vArgs.put(in.getDouble());
+                }
+                break;
+
+            case 't':
+                while (in.hasRemaining())
+                {
+                    vArgs.put(AllJoynWireCodec.fromUnsigned64(in.getLong()));
+                }
+                break;
+
+            default:
+                while (in.hasRemaining())
+                {
+                    vArgs.put(in.getLong());
+                }
+                break;
+        }
+
+        args.put(vArgs);
+    }
+}
@@ -0,0 +1,288 @@
+package org.allseen.alljoyn;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Declarative filter of a listener, run by the msg loop before a message is delivered.
+ *
+ * The filter is a JSON object; every condition it holds has to match:
+ *
+ *   sender, path, sessionId    the header field equals the value, or one of the values of an array
+ *   args                       [{ "index": i, "equals": value }, { "index": i, "in": [values] },
+ *                               { "index": i, "min": number, "max": number }, ...]
+ *
+ * Header conditions are checked before anything is unmarshalled. Arg conditions only apply to
+ * top-level args; the args up to the last one they look at are unmarshalled first, and the
+ * rest of the body only once they match, so those args are never streamed in chunks.
+ * Messages that don't match never become JSON.
+ */
+public final class ListenerFilter
+{
+    private final Object[] m_pSenders;
+    private final Object[] m_pPaths;
+    private final Object[] m_pSessionIds;
+    private final ArgCondition[] m_pArgConditions;
+
+    // The signature split at the last arg the conditions look at
+    private final SignaturePlan.Step[] m_pArgSteps;
+    private final SignaturePlan.Step[] m_pRestSteps;
+    private final String m_pRestSignature;
+
+    /**
+     * @param filter    The filter, see above.
+     * @param plan      The signature of the messages of the listener.
+     * @throws IllegalArgumentException if a condition is invalid.
+     */
+    public ListenerFilter(JSONObject filter, SignaturePlan plan) throws JSONException
+    {
+        m_pSenders = getValues(filter, "sender");
+        m_pPaths = getValues(filter, "path");
+        m_pSessionIds = getValues(filter, "sessionId");
+
+        JSONArray args = filter.optJSONArray("args");
+        int argCount = 0;
+
+        m_pArgConditions = new ArgCondition[(args == null) ? 0 : args.length()];
+
+        for (int i = 0; i < m_pArgConditions.length; i++)
+        {
+            ArgCondition condition = new ArgCondition(args.getJSONObject(i));
+
+            if (condition.m_nIndex < 0 || condition.m_nIndex >= plan.getSteps().length)
+            {
+                throw new IllegalArgumentException("No arg " + condition.m_nIndex + " in \"" + plan.getSignature() + "\"");
+            }
+
+            argCount = Math.max(argCount, condition.m_nIndex + 1);
+            m_pArgConditions[i] = condition;
+        }
+
+        SignaturePlan.Step[] steps = plan.getSteps();
+        StringBuilder restSignature = new StringBuilder();
+
+        m_pArgSteps = Arrays.copyOfRange(steps, 0, argCount);
+        m_pRestSteps = Arrays.copyOfRange(steps, argCount, steps.length);
+
+        for (SignaturePlan.Step step : m_pRestSteps)
+        {
+            restSignature.append(step.signature);
+        }
+
+        m_pRestSignature = restSignature.toString();
+    }
+
+    /**
+     * @return  True if the sender, object path and session of the message match.
+     */
+    public boolean matchesHeader(String sender, String path, long sessionId)
+    {
+        return matchesAny(m_pSenders, sender) && matchesAny(m_pPaths, path) && matchesAny(m_pSessionIds, sessionId);
+    }
+
+    /**
+     * @return  True if there are arg conditions, so the args have to be unmarshalled in two parts.
+     */
+    public boolean hasArgConditions()
+    {
+        return m_pArgConditions.length > 0;
+    }
+
+    /**
+     * @return  The steps of the args the conditions look at, from the first arg on.
+     */
+    public SignaturePlan.Step[] getArgSteps()
+    {
+        return m_pArgSteps;
+    }
+
+    /**
+     * @return  The steps of the args after those.
+     */
+    public SignaturePlan.Step[] getRestSteps()
+    {
+        return m_pRestSteps;
+    }
+
+    public String getRestSignature()
+    {
+        return m_pRestSignature;
+    }
+
+    /**
+     * @param args  The unmarshalled args, at least those of getArgSteps().
+     * @return      True if all arg conditions match.
+     */
+    public boolean matchesArgs(JSONArray args)
+    {
+        for (ArgCondition condition : m_pArgConditions)
+        {
+            if (!condition.matches(args.opt(condition.m_nIndex)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return  The value or values of a header condition, or null without one.
+     */
+    private static Object[] getValues(JSONObject filter, String key) throws JSONException
+    {
+        if (!filter.has(key) || filter.isNull(key))
+        {
+            return null;
+        }
+
+        Object value = filter.get(key);
+
+        if (value instanceof JSONArray)
+        {
+            JSONArray array = (JSONArray)value;
+            Object[] values = new Object[array.length()];
+
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = array.get(i);
+            }
+
+            return values;
+        }
+
+        return new Object[] { value };
+    }
+
+    private static boolean matchesAny(Object[] values, Object actual)
+    {
+        if (values == null)
+        {
+            return true;
+        }
+
+        for (Object value : values)
+        {
+            if (valueEquals(value, actual))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compares a value of the filter with an unmarshalled value. Numbers compare by value
+     * whatever their type, and booleans match the 1 and 0 of AllJoyn booleans.
+     */
+    static boolean valueEquals(Object expected, Object actual)
+    {
+        if (expected == null || actual == null)
+        {
+            return expected == actual;
+        }
+
+        if (expected instanceof Boolean && actual instanceof Number)
+        {
+            expected = ((Boolean)expected) ? 1 : 0;
+        }
+
+        if (expected instanceof Number && actual instanceof Number)
+        {
+            if (isIntegral(expected) && isIntegral(actual))
+            {
+                return ((Number)expected).longValue() == ((Number)actual).longValue();
+            }
+
+            return ((Number)expected).doubleValue() == ((Number)actual).doubleValue();
+        }
+
+        if (expected instanceof String || actual instanceof String)
+        {
+            return expected.equals(actual);
+        }
+
+        // Containers compare by their JSON
+        return expected.toString().equals(actual.toString());
+    }
+
+    private static boolean isIntegral(Object value)
+    {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * One condition on a top-level arg
+     */
+    private static final class ArgCondition
+    {
+        final int m_nIndex;
+        final Object[] m_pValues;
+        final Number m_pMin;
+        final Number m_pMax;
+
+        ArgCondition(JSONObject condition) throws JSONException
+        {
+            m_nIndex = condition.getInt("index");
+
+            if (condition.has("equals"))
+            {
+                m_pValues = new Object[] { condition.get("equals") };
+            }
+            else
+            {
+                m_pValues = getValues(condition, "in");
+            }
+
+            m_pMin = getNumber(condition, "min");
+            m_pMax = getNumber(condition, "max");
+
+            if (m_pValues == null && m_pMin == null && m_pMax == null)
+            {
+                throw new IllegalArgumentException("Arg condition without equals, in, min or max");
+            }
+        }
+
+        boolean matches(Object actual)
+        {
+            if (!matchesAny(m_pValues, actual))
+            {
+                return false;
+            }
+
+            if (m_pMin == null && m_pMax == null)
+            {
+                return true;
+            }
+
+            if (!(actual instanceof Number))
+            {
+                return false;
+            }
+
+            double value = ((Number)actual).doubleValue();
+            return (m_pMin == null || value >= m_pMin.doubleValue()) && (m_pMax == null || value <= m_pMax.doubleValue());
+        }
+
+        private static Number getNumber(JSONObject condition, String key) throws JSONException
+        {
+            if (!condition.has(key))
+            {
+                return null;
+            }
+
+            Object value = condition.get(key);
+
+            if (!(value instanceof Number))
+            {
+                throw new IllegalArgumentException("Arg condition " + key + " must be a number");
+            }
+
+            return (Number)value;
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package org.allseen.alljoyn;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the messages received for one listener to its JS callback.
+ *
+ * By default every message becomes its own plugin result as soon as it arrives. In batching
+ * mode, messages are collected until the batch is full or the batch window has passed since
+ * the first one, and then cross the bridge together as one result holding an array of messages.
+ * Without a batch window, a batch waits until it is full, or until the queue is, with flow control.
+ *
+ * With flow control on, at most {@code credits} results are on their way to JS at any time;
+ * JS acknowledges each result once its listener has run. Messages arriving in between wait
+ * in a bounded queue, and the overflow policy decides what happens when it is full. Plugin
+ * results are only built when a message actually leaves the queue.
+ *
+ * In conflation mode, a message replaces the queued message with the same sender, object path
+ * and member, keeping its place in the queue. Only the newest value of each key reaches JS.
+ */
+public class ListenerQueue
+{
+    /**
+     * What to do with a message that arrives while the queue is full.
+     */
+    public enum OverflowPolicy
+    {
+        // Stall the msg loop until JS catches up, for up to the block timeout, see awaitRoom()
+        BLOCK,
+        // Drop the oldest queued message
+        DROP_OLDEST,
+        // Drop the incoming message
+        DROP_NEWEST,
+        // Keep only the newest message
+        LATEST;
+
+        /**
+         * @return  The policy with the given JS name, or null.
+         */
+        public static OverflowPolicy fromName(String name)
+        {
+            if ("block".equals(name))
+            {
+                return BLOCK;
+            }
+            else if ("dropOldest".equals(name))
+            {
+                return DROP_OLDEST;
+            }
+            else if ("dropNewest".equals(name))
+            {
+                return DROP_NEWEST;
+            }
+            else if ("latest".equals(name))
+            {
+                return LATEST;
+            }
+
+            return null;
+        }
+    }
+
+    private final CallbackContext m_pCallbackContext;
+    private final TimeoutWheel m_pTimeoutWheel;
+    private final int m_nBatchSize;
+    private final long m_nBatchWindow;
+    private final int m_nCapacity;
+    private final OverflowPolicy m_pPolicy;
+    private final int m_nCredits;
+    private final long m_nBlockTimeout;
+    private final boolean m_bConflate;
+
+    // Messages waiting to be delivered
+    private final ArrayDeque<Message> m_pQueue = new ArrayDeque<Message>();
+
+    // Queued messages by conflation key, only used in conflation mode
+    private final HashMap<String, Message> m_pConflated = new HashMap<String, Message>();
+
+    // Results sent to JS and not acknowledged yet
+    private int m_nInFlight = 0;
+
+    private long m_nDelivered = 0;
+    private long m_nDropped = 0;
+    private long m_nConflated = 0;
+
+    // Set when the oldest queued message has waited for the whole batch window
+    private boolean m_bFlushDue = false;
+    private TimeoutWheel.Timeout m_pFlushTimeout = null;
+    private boolean m_bClosed = false;
+
+    // Set when the BLOCK policy took a message beyond the capacity, until awaitRoom() is called
+    private boolean m_bOverCapacity = false;
+
+    /**
+     * Creates a queue without flow control: results go to JS as soon as they are ready.
+     *
+     * @param callbackContext   Callback of the JS listener; kept for all results.
+     * @param timeoutWheel      Wheel used to flush batches when their window has passed.
+     * @param batchSize         Max number of messages per batch; 1 or less to deliver messages one by one.
+     * @param batchWindow       Max time in milliseconds a message waits for its batch; 0 to wait until the batch is full.
+     */
+    public ListenerQueue(CallbackContext callbackContext, TimeoutWheel timeoutWheel, int batchSize, long batchWindow)
+    {
+        this(callbackContext, timeoutWheel, batchSize, batchWindow, 0, null, 0, 0, false);
+    }
+
+    /**
+     * @param callbackContext   Callback of the JS listener; kept for all results.
+     * @param timeoutWheel      Wheel used to flush batches when their window has passed.
+     * @param batchSize         Max number of messages per batch; 1 or less to deliver messages one by one.
+     * @param batchWindow       Max time in milliseconds a message waits for its batch; 0 to wait until the batch is full.
+     * @param capacity          Max number of queued messages.
+     * @param policy            What to do with messages beyond the capacity; null turns flow control off.
+     * @param credits           Max number of results JS hasn't acknowledged yet.
+     * @param blockTimeout      How long the BLOCK policy waits for room before dropping the newest message.
+     * @param conflate          True to replace queued messages by newer ones with the same sender, object path and member.
+     */
+    public ListenerQueue(CallbackContext callbackContext, TimeoutWheel timeoutWheel, int batchSize, long batchWindow,
+                         int capacity, OverflowPolicy policy, int credits, long blockTimeout, boolean conflate)
+    {
+        m_pCallbackContext = callbackContext;
+        m_pTimeoutWheel = timeoutWheel;
+        m_nBatchSize = (batchWindow > 0 && batchSize <= 1) ? Integer.MAX_VALUE : Math.max(1, batchSize);
+        m_nBatchWindow = batchWindow;
+        m_pPolicy = policy;
+        m_nCapacity = (policy == OverflowPolicy.LATEST) ? 1 : Math.max(1, capacity);
+        m_nCredits = (policy == null) ? Integer.MAX_VALUE : Math.max(1, credits);
+        m_nBlockTimeout = blockTimeout;
+        m_bConflate = conflate;
+    }
+
+    /**
+     * @return  True when messages are delivered in batches.
+     */
+    public boolean isBatching()
+    {
+        return m_nBatchSize > 1;
+    }
+
+    /**
+     * @return  True when JS has to acknowledge the results it receives.
+     */
+    public boolean isFlowControlled()
+    {
+        return m_pPolicy != null;
+    }
+
+    /**
+     * Decides from the header of a message whether it would be dropped, so that it isn't
+     * unmarshalled for nothing. Only the msg loop offers messages and the queue can only
+     * shrink in between, so offer() takes every message admitted here.
+     *
+     * @return  False if the message is dropped, and counted as such; it mustn't be offered then.
+     */
+    public synchronized boolean admit(String sender, String objPath, String member)
+    {
+        if (m_bClosed)
+        {
+            return false;
+        }
+
+        if (m_pPolicy == OverflowPolicy.DROP_NEWEST && m_pQueue.size() >= m_nCapacity)
+        {
+            // A message that replaces a queued one takes no room
+            if (!m_bConflate || !m_pConflated.containsKey(Message.conflationKey(sender, objPath, member)))
+            {
+                m_nDropped++;
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Queues a message for delivery and delivers what the credits allow.
+     *
+     * @return  True if the BLOCK policy took the message beyond the capacity; the caller then
+     *          has to call awaitRoom() before it receives the next message.
+     */
+    public synchronized boolean offer(Message message)
+    {
+        if (m_bClosed)
+        {
+            return false;
+        }
+
+        if (m_bConflate)
+        {
+            Message queued = m_pConflated.get(message.getConflationKey());
+
+            if (queued != null)
+            {
+                // Newest value wins; the queued message keeps its place
+                queued.args = message.args;
+                queued.binary = message.binary;
+                m_nConflated++;
+                return false;
+            }
+        }
+
+        if (isFlowControlled() && m_pQueue.size() >= m_nCapacity)
+        {
+            switch (m_pPolicy)
+            {
+                case BLOCK:
+                    // The caller may hold the bus lock, so the wait for room is left to awaitRoom()
+                    m_bOverCapacity = true;
+                    break;
+
+                case DROP_NEWEST:
+                    m_nDropped++;
+                    return false;
+
+                case DROP_OLDEST:
+                case LATEST:
+                    poll();
+                    m_nDropped++;
+                    break;
+            }
+        }
+
+        m_pQueue.addLast(message);
+
+        if (m_bConflate)
+        {
+            m_pConflated.put(message.getConflationKey(), message);
+        }
+
+        pump();
+        return m_bOverCapacity;
+    }
+
+    /**
+     * Waits for JS to make room after offer() went beyond the capacity, for up to the block
+     * timeout, and drops the newest messages still beyond it after that. Must be called
+     * without the bus lock, so that other threads can use the bus while the msg loop waits.
+     */
+    public synchronized void awaitRoom()
+    {
+        if (!m_bOverCapacity)
+        {
+            return;
+        }
+
+        m_bOverCapacity = false;
+
+        if (!waitForRoom())
+        {
+            while (m_pQueue.size() > m_nCapacity)
+            {
+                Message message = m_pQueue.pollLast();
+
+                if (m_bConflate)
+                {
+                    m_pConflated.remove(message.getConflationKey());
+                }
+
+                m_nDropped++;
+            }
+        }
+    }
+
+    /**
+     * Returns credits for results JS has finished with, and delivers what is waiting.
+     *
+     * @param count     Number of results acknowledged.
+     */
+    public synchronized void ack(int count)
+    {
+        m_nInFlight = Math.max(0, m_nInFlight - count);
+        pump();
+        notifyAll();
+    }
+
+    /**
+     * Delivers the current batch right away.
+     */
+    public synchronized void flush()
+    {
+        m_bFlushDue = !m_pQueue.isEmpty();
+        m_pFlushTimeout = null;
+        pump();
+    }
+
+    /**
+     * Drops everything queued and wakes up a blocked msg loop. No more messages are accepted.
+     */
+    public synchronized void close()
+    {
+        m_bClosed = true;
+        m_nDropped += m_pQueue.size();
+        m_pQueue.clear();
+        m_pConflated.clear();
+
+        if (m_pFlushTimeout != null)
+        {
+            m_pFlushTimeout.cancel();
+            m_pFlushTimeout = null;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * @return  Counters of this listener: queued, inFlight, delivered, dropped and conflated.
+     */
+    public synchronized JSONObject getStatistics() throws JSONException
+    {
+        JSONObject statistics = new JSONObject();
+        statistics.put("queued", m_pQueue.size());
+        statistics.put("inFlight", m_nInFlight);
+        statistics.put("delivered", m_nDelivered);
+        statistics.put("dropped", m_nDropped);
+        statistics.put("conflated", m_nConflated);
+        return statistics;
+    }
+
+    /**
+     * @return  Number of messages dropped so far.
+     */
+    public synchronized long getDropped()
+    {
+        return m_nDropped;
+    }
+
+    private boolean waitForRoom()
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_nBlockTimeout);
+
+        while (!m_bClosed && m_pQueue.size() > m_nCapacity)
+        {
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0)
+            {
+                return false;
+            }
+
+            try
+            {
+                wait(TimeUnit.NANOSECONDS.toMillis(remaining + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return !m_bClosed;
+    }
+
+    /**
+     * Sends as many results as the credits allow. Must be called with the queue lock held.
+     */
+    private void pump()
+    {
+        boolean sent = false;
+
+        while (!m_pQueue.isEmpty() && m_nInFlight < m_nCredits)
+        {
+            if (!isBatching())
+            {
+                Message message = poll();
+                send(message.toCallbackResults(), message.binary);
+            }
+            else if (isBatchFull() || m_bFlushDue)
+            {
+                JSONArray batch = new JSONArray();
+                BinaryParts binary = null;
+
+                while (!m_pQueue.isEmpty() && batch.length() < m_nBatchSize)
+                {
+                    Message message = poll();
+
+                    if (message.binary != null)
+                    {
+                        binary = (binary == null) ? new BinaryParts() : binary;
+                        message.binary.moveTo(binary);
+                    }
+
+                    batch.put(message.toCallbackResults());
+                }
+
+                m_bFlushDue = false;
+                send(batch, binary);
+            }
+            else
+            {
+                // Wait for more messages, or for the window of the oldest one to pass
+                if (m_pFlushTimeout == null && m_nBatchWindow > 0)
+                {
+                    m_pFlushTimeout = m_pTimeoutWheel.schedule
+                    (
+                        m_nBatchWindow,
+                        new Runnable()
+                        {
+                            public void run()
+                            {
+                                flush();
+                            }
+                        }
+                    );
+                }
+
+                break;
+            }
+
+            sent = true;
+        }
+
+        if (m_pQueue.isEmpty())
+        {
+            m_bFlushDue = false;
+
+            if (m_pFlushTimeout != null)
+            {
+                m_pFlushTimeout.cancel();
+                m_pFlushTimeout = null;
+            }
+        }
+
+        if (sent)
+        {
+            notifyAll();
+        }
+    }
+
+    private boolean isBatchFull()
+    {
+        // A full queue can't grow into a bigger batch, so it goes as it is
+        return m_pQueue.size() >= m_nBatchSize || (isFlowControlled() && m_pQueue.size() >= m_nCapacity);
+    }
+
+    private Message poll()
+    {
+        Message message = m_pQueue.pollFirst();
+
+        if (m_bConflate && message != null)
+        {
+            m_pConflated.remove(message.getConflationKey());
+        }
+
+        return message;
+    }
+
+    private void send(JSONArray results, BinaryParts binary)
+    {
+        if (isFlowControlled())
+        {
+            // Without flow control nothing is acknowledged, so nothing would bring it back down
+            m_nInFlight++;
+        }
+
+        m_nDelivered++;
+        PluginResult pluginResult = BinaryParts.toPluginResult(results, binary);
+        pluginResult.setKeepCallback(true);
+        m_pCallbackContext.sendPluginResult(pluginResult);
+    }
+
+    /**
+     * A received message, kept as plain values until it is delivered.
+     */
+    public static class Message
+    {
+        final String sender;
+        final String objPath;
+        final String member;
+        final String signature;
+        final String iface;
+        JSONArray args;
+        BinaryParts binary;
+        private String conflationKey;
+
+        /**
+         * @param binary    Byte arrays whose placeholders are in args, or null.
+         */
+        public Message(String sender, String objPath, String member, String signature, String iface, JSONArray args, BinaryParts binary)
+        {
+            this.sender = sender;
+            this.objPath = objPath;
+            this.member = member;
+            this.signature = signature;
+            this.iface = iface;
+            this.args = args;
+            this.binary = binary;
+        }
+
+        String getConflationKey()
+        {
+            if (conflationKey == null)
+            {
+                conflationKey = conflationKey(sender, objPath, member);
+            }
+
+            return conflationKey;
+        }
+
+        static String conflationKey(String sender, String objPath, String member)
+        {
+            return sender + '\u0000' + objPath + '\u0000' + member;
+        }
+
+        /**
+         * @return  The callback results JS expects for one message: [msgInfo, args, null].
+         */
+        JSONArray toCallbackResults()
+        {
+            JSONObject msgInfo = new JSONObject();
+            JSONArray callbackResults = new JSONArray();
+
+            try
+            {
+                if (sender != null)
+                {
+                    msgInfo.put("sender", sender);
+                }
+
+                if (signature != null)
+                {
+                    msgInfo.put("signature", signature);
+                }
+
+                if (iface != null)
+                {
+                    msgInfo.put("iface", iface);
+                }
+            }
+            catch (JSONException e)
+            {
+                // Only thrown for null keys
+            }
+
+            callbackResults.put(msgInfo);
+            callbackResults.put(args);
+            callbackResults.put(JSONObject.NULL);
+            return callbackResults;
+        }
+    }
+}
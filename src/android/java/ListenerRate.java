@@ -0,0 +1,109 @@
+package org.allseen.alljoyn;
+
+import org.json.JSONObject;
+
+/**
+ * Rate control of a listener, applied by the msg loop before a message is unmarshalled.
+ *
+ * The options can be combined; a message is delivered only if all of them let it through:
+ *
+ *   maxRate         at most this many deliveries per second on average, from a token bucket
+ *   burst           number of deliveries maxRate allows back to back (default 1)
+ *   sampleEvery     only every k-th message, counting from the first
+ *   sampleInterval  at most one message per this many milliseconds, the first one after each interval
+ *
+ * Suppressed messages are counted. Only the msg loop thread calls admit().
+ */
+public final class ListenerRate
+{
+    private final double m_nMaxRate;
+    private final double m_nBurst;
+    private final int m_nSampleEvery;
+    private final long m_nSampleInterval;
+
+    private double m_nTokens;
+    private long m_nLastRefill;
+    private long m_nLastAdmitted;
+    private long m_nSeen = 0;
+
+    private volatile long m_nSuppressed = 0;
+
+    private ListenerRate(double maxRate, double burst, int sampleEvery, long sampleInterval)
+    {
+        m_nMaxRate = maxRate;
+        m_nBurst = burst;
+        m_nSampleEvery = sampleEvery;
+        m_nSampleInterval = sampleInterval * 1000000L;
+        m_nTokens = burst;
+        m_nLastRefill = System.nanoTime();
+        m_nLastAdmitted = m_nLastRefill - m_nSampleInterval;
+    }
+
+    /**
+     * @param options   The listener options, or null.
+     * @return          The rate control the options ask for, or null if they ask for none.
+     * @throws IllegalArgumentException if an option is out of range.
+     */
+    public static ListenerRate fromOptions(JSONObject options)
+    {
+        if (options == null || !(options.has("maxRate") || options.has("sampleEvery") || options.has("sampleInterval")))
+        {
+            return null;
+        }
+
+        double maxRate = options.optDouble("maxRate", 0);
+        double burst = options.optDouble("burst", 1);
+        int sampleEvery = options.optInt("sampleEvery", 1);
+        long sampleInterval = options.optLong("sampleInterval", 0);
+
+        if ((options.has("maxRate") && !(maxRate > 0)) || !(burst >= 1) || sampleEvery < 1 || sampleInterval < 0)
+        {
+            throw new IllegalArgumentException("maxRate must be positive, burst and sampleEvery at least 1, sampleInterval not negative");
+        }
+
+        return new ListenerRate(maxRate, burst, sampleEvery, sampleInterval);
+    }
+
+    /**
+     * Decides whether a message is delivered, and counts it if not.
+     *
+     * @return  True if the message is to be delivered.
+     */
+    public boolean admit()
+    {
+        long now = System.nanoTime();
+        boolean admitted = (m_nSeen++ % m_nSampleEvery) == 0 && (now - m_nLastAdmitted) >= m_nSampleInterval;
+
+        if (admitted && m_nMaxRate > 0)
+        {
+            m_nTokens = Math.min(m_nBurst, m_nTokens + (now - m_nLastRefill) * m_nMaxRate / 1e9);
+            m_nLastRefill = now;
+
+            if (m_nTokens >= 1)
+            {
+                m_nTokens -= 1;
+            }
+            else
+            {
+                admitted = false;
+            }
+        }
+
+        if (!admitted)
+        {
+            m_nSuppressed++;
+            return false;
+        }
+
+        m_nLastAdmitted = now;
+        return true;
+    }
+
+    /**
+     * @return  Number of messages suppressed so far.
+     */
+    public long getSuppressed()
+    {
+        return m_nSuppressed;
+    }
+}
@@ -0,0 +1,188 @@
+package org.allseen.alljoyn;
+
+import java.util.Arrays;
+
+/**
+ * Maps AllJoyn message ids to the handlers registered for them.
+ *
+ * Lookups happen for every message the msg loop receives, so they read an immutable
+ * open-addressing table through a single volatile field: no locks and no boxing of the
+ * message id. Registration and removal are rare; they copy the table under the registry
+ * lock and publish the new one.
+ *
+ * Several handlers can be registered for the same message id, e.g. two JS listeners on
+ * one signal. They are returned in registration order.
+ */
+public class MessageHandlerRegistry<H>
+{
+    private static final int MIN_CAPACITY = 16;
+    private static final Object[] NO_HANDLERS = new Object[0];
+
+    private volatile Table m_pTable = new Table(MIN_CAPACITY);
+
+    /**
+     * Returns the handlers registered for a message id. The array must not be modified.
+     *
+     * @param msgId     The message id.
+     * @return          The handlers, empty if there are none.
+     */
+    public Object[] get(long msgId)
+    {
+        Table table = m_pTable;
+        int mask = table.keys.length - 1;
+
+        for (int i = hash(msgId) & mask; ; i = (i + 1) & mask)
+        {
+            Object[] handlers = table.handlers[i];
+
+            if (handlers == null)
+            {
+                return NO_HANDLERS;
+            }
+
+            if (table.keys[i] == msgId)
+            {
+                return handlers;
+            }
+        }
+    }
+
+    /**
+     * @return  True when at least one handler is registered for the message id.
+     */
+    public boolean containsKey(long msgId)
+    {
+        return get(msgId).length > 0;
+    }
+
+    /**
+     * Registers a handler as the only handler for a message id, replacing any others.
+     */
+    public synchronized void put(long msgId, H handler)
+    {
+        publish(msgId, new Object[] { handler });
+    }
+
+    /**
+     * Registers a handler in addition to the ones already registered for a message id.
+     */
+    public synchronized void add(long msgId, H handler)
+    {
+        Object[] current = get(msgId);
+        Object[] handlers = Arrays.copyOf(current, current.length + 1);
+        handlers[current.length] = handler;
+        publish(msgId, handlers);
+    }
+
+    /**
+     * Removes all handlers registered for a message id.
+     */
+    public synchronized void remove(long msgId)
+    {
+        publish(msgId, NO_HANDLERS);
+    }
+
+    /**
+     * Removes one handler registered for a message id, leaving the others in place.
+     *
+     * @return  True when the handler was registered.
+     */
+    public synchronized boolean remove(long msgId, H handler)
+    {
+        Object[] current = get(msgId);
+
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i] == handler)
+            {
+                Object[] handlers = new Object[current.length - 1];
+                System.arraycopy(current, 0, handlers, 0, i);
+                System.arraycopy(current, i + 1, handlers, i, current.length - i - 1);
+                publish(msgId, handlers);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes all handlers.
+     */
+    public synchronized void clear()
+    {
+        m_pTable = new Table(MIN_CAPACITY);
+    }
+
+    /**
+     * Builds a copy of the current table with the handlers of one message id replaced
+     * and makes it visible to readers. Must be called with the registry lock held.
+     */
+    private void publish(long msgId, Object[] handlers)
+    {
+        Table current = m_pTable;
+        int size = current.size + 1;
+        int capacity = MIN_CAPACITY;
+
+        // Keep the load factor at or below one half so probe sequences stay short
+        while (capacity < size * 2)
+        {
+            capacity <<= 1;
+        }
+
+        Table table = new Table(capacity);
+
+        for (int i = 0; i < current.keys.length; i++)
+        {
+            if (current.handlers[i] != null && current.keys[i] != msgId)
+            {
+                table.insert(current.keys[i], current.handlers[i]);
+            }
+        }
+
+        if (handlers.length > 0)
+        {
+            table.insert(msgId, handlers);
+        }
+
+        m_pTable = table;
+    }
+
+    private static int hash(long msgId)
+    {
+        // Message ids differ mostly in their low bytes; spread them over the whole int
+        long h = msgId * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /**
+     * Open-addressing table with linear probing. Never modified once published.
+     */
+    private static final class Table
+    {
+        final long[] keys;
+        final Object[][] handlers;
+        int size;
+
+        Table(int capacity)
+        {
+            keys = new long[capacity];
+            handlers = new Object[capacity][];
+        }
+
+        void insert(long msgId, Object[] value)
+        {
+            int mask = keys.length - 1;
+            int i = hash(msgId) & mask;
+
+            while (handlers[i] != null)
+            {
+                i = (i + 1) & mask;
+            }
+
+            keys[i] = msgId;
+            handlers[i] = value;
+            size++;
+        }
+    }
+}
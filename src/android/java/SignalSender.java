@@ -0,0 +1,253 @@
+package org.allseen.alljoyn;
+
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded ring of signals to send without acknowledging each one, drained by one sender thread.
+ *
+ * emit() never blocks: when the ring is full the signal is dropped and counted. The sender
+ * thread, started on first use, takes what has queued up in batches and sends each batch with
+ * the bus lock held once. Failures and drops are not reported per signal; the error callback
+ * gets one {"failed": n, "dropped": n, "lastError": text} result after each batch that had any.
+ */
+public class SignalSender<T>
+{
+    private static final String TAG = "SignalSender";
+
+    /**
+     * Sends one signal; called with the bus lock held.
+     */
+    public interface Sink<T>
+    {
+        /**
+         * @return  Null if the signal was sent, or what went wrong.
+         */
+        String send(T signal);
+    }
+
+    private final String m_pName;
+    private final int m_nMaxBatch;
+    private final Object m_pLock;
+    private final Sink<T> m_pSink;
+    private final ArrayBlockingQueue<T> m_pRing;
+
+    private Thread m_pSender = null;
+    private boolean m_bStopped = false;
+
+    private volatile CallbackContext m_pErrorCallback = null;
+
+    // Totals, and what has not been reported to the error callback yet; guarded by this
+    private long m_nSent = 0;
+    private long m_nFailed = 0;
+    private long m_nDropped = 0;
+    private long m_nUnreportedFailed = 0;
+    private long m_nUnreportedDropped = 0;
+    private String m_pLastError = null;
+
+    /**
+     * @param name          Name of the sender thread.
+     * @param capacity      Number of signals the ring holds.
+     * @param maxBatch      Most signals sent with the lock held once.
+     * @param lock          Lock to hold while sending a batch.
+     */
+    public SignalSender(String name, int capacity, int maxBatch, Object lock, Sink<T> sink)
+    {
+        m_pName = name;
+        m_nMaxBatch = Math.max(1, maxBatch);
+        m_pLock = lock;
+        m_pSink = sink;
+        m_pRing = new ArrayBlockingQueue<T>(Math.max(1, capacity));
+    }
+
+    /**
+     * Queues a signal for sending.
+     *
+     * @return  False if the ring was full and the signal dropped.
+     */
+    public boolean emit(T signal)
+    {
+        synchronized (this)
+        {
+            if (m_bStopped)
+            {
+                return false;
+            }
+
+            if (m_pSender == null)
+            {
+                m_pSender = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        sendLoop();
+                    }
+                }, m_pName);
+                m_pSender.setDaemon(true);
+                m_pSender.start();
+            }
+        }
+
+        if (!m_pRing.offer(signal))
+        {
+            synchronized (this)
+            {
+                m_nDropped++;
+                m_nUnreportedDropped++;
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Counts a signal that could not even be queued, e.g. because its member is unknown.
+     */
+    public synchronized void fail(String error)
+    {
+        m_nFailed++;
+        m_nUnreportedFailed++;
+        m_pLastError = error;
+    }
+
+    /**
+     * @param callbackContext   Receives the error reports, or null for none.
+     */
+    public void setErrorCallback(CallbackContext callbackContext)
+    {
+        m_pErrorCallback = callbackContext;
+    }
+
+    /**
+     * Stops the sender thread and drops the queued signals.
+     */
+    public void stop()
+    {
+        Thread sender;
+
+        synchronized (this)
+        {
+            m_bStopped = true;
+            sender = m_pSender;
+        }
+
+        if (sender != null)
+        {
+            sender.interrupt();
+        }
+
+        m_pRing.clear();
+    }
+
+    public synchronized JSONObject getStatistics() throws JSONException
+    {
+        JSONObject statistics = new JSONObject();
+        statistics.put("queued", m_pRing.size());
+        statistics.put("sent", m_nSent);
+        statistics.put("failed", m_nFailed);
+        statistics.put("dropped", m_nDropped);
+        return statistics;
+    }
+
+    private void sendLoop()
+    {
+        List<T> batch = new ArrayList<T>(m_nMaxBatch);
+
+        try
+        {
+            while (true)
+            {
+                batch.add(m_pRing.take());
+                m_pRing.drainTo(batch, m_nMaxBatch - 1);
+
+                int sent = 0;
+                int failed = 0;
+                String lastError = null;
+
+                synchronized (m_pLock)
+                {
+                    for (T signal : batch)
+                    {
+                        String error = m_pSink.send(signal);
+
+                        if (error == null)
+                        {
+                            sent++;
+                        }
+                        else
+                        {
+                            failed++;
+                            lastError = error;
+                        }
+                    }
+                }
+
+                batch.clear();
+
+                synchronized (this)
+                {
+                    m_nSent += sent;
+                    m_nFailed += failed;
+                    m_nUnreportedFailed += failed;
+
+                    if (lastError != null)
+                    {
+                        m_pLastError = lastError;
+                    }
+                }
+
+                reportErrors();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Log.i(TAG, m_pName + " stopped");
+        }
+    }
+
+    /**
+     * Sends the failures and drops since the last report to the error callback, if there were any.
+     */
+    public void reportErrors()
+    {
+        CallbackContext errorCallback = m_pErrorCallback;
+        JSONObject errors = new JSONObject();
+
+        synchronized (this)
+        {
+            if (errorCallback == null || (m_nUnreportedFailed == 0 && m_nUnreportedDropped == 0))
+            {
+                return;
+            }
+
+            try
+            {
+                errors.put("failed", m_nUnreportedFailed);
+                errors.put("dropped", m_nUnreportedDropped);
+                errors.put("lastError", m_pLastError);
+            }
+            catch (JSONException e)
+            {
+                return;
+            }
+
+            m_nUnreportedFailed = 0;
+            m_nUnreportedDropped = 0;
+        }
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, errors);
+        pluginResult.setKeepCallback(true);
+        errorCallback.sendPluginResult(pluginResult);
+    }
+}
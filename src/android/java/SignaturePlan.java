@@ -0,0 +1,247 @@
+package org.allseen.alljoyn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An AllJoyn signature compiled into a tree of typed steps.
+ *
+ * Marshalling and unmarshalling walk the steps instead of re-parsing the signature string
+ * for every message. Plans are immutable and shared; {@link #get(String)} keeps the most
+ * recently used ones in a bounded cache keyed by signature.
+ */
+public final class SignaturePlan
+{
+    public static final int KIND_SCALAR = 0;
+    public static final int KIND_STRING = 1;
+    public static final int KIND_ARRAY = 2;
+    public static final int KIND_STRUCT = 3;
+    public static final int KIND_DICT_ENTRY = 4;
+    public static final int KIND_VARIANT = 5;
+
+    private static final int MAX_CACHED_PLANS = 64;
+
+    private static final Map<String, SignaturePlan> PLAN_CACHE = new LinkedHashMap<String, SignaturePlan>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SignaturePlan> eldest)
+        {
+            return size() > MAX_CACHED_PLANS;
+        }
+    };
+
+    private final String m_pSignature;
+    private final Step[] m_pSteps;
+
+    private SignaturePlan(String signature, Step[] steps)
+    {
+        m_pSignature = signature;
+        m_pSteps = steps;
+    }
+
+    /**
+     * Returns the plan of a signature, compiling it on first use.
+     *
+     * @param signature     A sequence of complete types, e.g. "sa{sv}".
+     * @return              The plan.
+     * @throws IllegalArgumentException if the signature is invalid.
+     */
+    public static SignaturePlan get(String signature)
+    {
+        synchronized (PLAN_CACHE)
+        {
+            SignaturePlan plan = PLAN_CACHE.get(signature);
+
+            if (plan != null)
+            {
+                return plan;
+            }
+        }
+
+        // Compile outside the lock; two threads compiling the same signature is harmless
+        SignaturePlan plan = compile(signature);
+
+        synchronized (PLAN_CACHE)
+        {
+            PLAN_CACHE.put(signature, plan);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Compiles a signature without caching the result.
+     *
+     * @throws IllegalArgumentException if the signature is invalid.
+     */
+    public static SignaturePlan compile(String signature)
+    {
+        Parser parser = new Parser(signature);
+        List<Step> steps = new ArrayList<Step>();
+
+        while (!parser.atEnd())
+        {
+            steps.add(parser.parseCompleteType());
+        }
+
+        return new SignaturePlan(signature, steps.toArray(new Step[steps.size()]));
+    }
+
+    public String getSignature()
+    {
+        return m_pSignature;
+    }
+
+    /**
+     * @return  The top level steps, one per complete type. The array must not be modified.
+     */
+    public Step[] getSteps()
+    {
+        return m_pSteps;
+    }
+
+    /**
+     * One complete type of a signature.
+     */
+    public static final class Step
+    {
+        /** AllJoyn type id, e.g. 'i', 'a' or '(' */
+        public final char typeId;
+
+        /** One of the KIND_ constants */
+        public final int kind;
+
+        /** Fields of a struct or dict entry, or the single element step of an array; empty otherwise */
+        public final Step[] children;
+
+        /** Signature of this complete type, e.g. "a(is)" */
+        public final String signature;
+
+        Step(char typeId, int kind, Step[] children, String signature)
+        {
+            this.typeId = typeId;
+            this.kind = kind;
+            this.children = children;
+            this.signature = signature;
+        }
+
+        /**
+         * @return  True for scalars and strings, which map to a single JSON value.
+         */
+        public boolean isBasic()
+        {
+            return kind == KIND_SCALAR || kind == KIND_STRING;
+        }
+
+        /**
+         * @return  The element step of an array.
+         */
+        public Step getElement()
+        {
+            return children[0];
+        }
+    }
+
+    private static final Step[] NO_STEPS = new Step[0];
+
+    /**
+     * Recursive descent over the signature string.
+     */
+    private static final class Parser
+    {
+        private final String m_pSignature;
+        private int m_nPos = 0;
+
+        Parser(String signature)
+        {
+            if (signature == null)
+            {
+                throw new IllegalArgumentException("Null signature");
+            }
+
+            m_pSignature = signature;
+        }
+
+        boolean atEnd()
+        {
+            return m_nPos >= m_pSignature.length();
+        }
+
+        Step parseCompleteType()
+        {
+            if (atEnd())
+            {
+                throw error("Incomplete type");
+            }
+
+            int start = m_nPos;
+            char typeId = m_pSignature.charAt(m_nPos++);
+
+            switch (typeId)
+            {
+                case 'y':
+                case 'b':
+                case 'n':
+                case 'q':
+                case 'i':
+                case 'u':
+                case 'x':
+                case 't':
+                case 'd':
+                case 'h':
+                    return new Step(typeId, KIND_SCALAR, NO_STEPS, m_pSignature.substring(start, m_nPos));
+
+                case 's':
+                case 'o':
+                case 'g':
+                    return new Step(typeId, KIND_STRING, NO_STEPS, m_pSignature.substring(start, m_nPos));
+
+                case 'v':
+                    return new Step(typeId, KIND_VARIANT, NO_STEPS, m_pSignature.substring(start, m_nPos));
+
+                case 'a':
+                {
+                    Step element = parseCompleteType();
+                    return new Step(typeId, KIND_ARRAY, new Step[] { element }, m_pSignature.substring(start, m_nPos));
+                }
+
+                case '(':
+                case '{':
+                {
+                    char close = (typeId == '(') ? ')' : '}';
+                    List<Step> fields = new ArrayList<Step>();
+
+                    while (!atEnd() && m_pSignature.charAt(m_nPos) != close)
+                    {
+                        fields.add(parseCompleteType());
+                    }
+
+                    if (atEnd())
+                    {
+                        throw error("Unterminated container");
+                    }
+
+                    m_nPos++;
+
+                    if (fields.isEmpty() || (typeId == '{' && fields.size() != 2))
+                    {
+                        throw error("Invalid container");
+                    }
+
+                    int kind = (typeId == '(') ? KIND_STRUCT : KIND_DICT_ENTRY;
+                    return new Step(typeId, kind, fields.toArray(new Step[fields.size()]), m_pSignature.substring(start, m_nPos));
+                }
+
+                default:
+                    throw error("Invalid type '" + typeId + "'");
+            }
+        }
+
+        private IllegalArgumentException error(String reason)
+        {
+            return new IllegalArgumentException(reason + " in signature \"" + m_pSignature + "\" at " + m_nPos);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package org.allseen.alljoyn;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for reply deadlines and listener batch windows.
+ *
+ * Scheduling and cancelling a timeout are O(1): each timeout is linked into the bucket
+ * its deadline falls in, and each tick only looks at one bucket. Timeouts that are more
+ * than one revolution away stay in their bucket until their remaining rounds run out.
+ *
+ * Deadlines are measured on System.nanoTime() and rounded up to the next tick, so a task
+ * never runs before its delay has passed, and normally less than one tick after.
+ *
+ * Expired tasks run on the wheel's ticker thread, which sleeps while the wheel is empty.
+ * Tasks should be short; they must not block.
+ */
+public class TimeoutWheel
+{
+    // In nanoseconds
+    private final long m_nTickDuration;
+    private final Timeout[] m_pBuckets;
+    private final int m_nMask;
+    private final String m_pName;
+
+    // Number of scheduled timeouts that have not expired or been cancelled
+    private int m_nPending = 0;
+
+    // Tick the ticker thread handles next, and the System.nanoTime() it is due
+    private long m_nTick = 0;
+    private long m_nNextTickTime = 0;
+
+    private Thread m_pTicker = null;
+    private boolean m_bStopped = false;
+
+    /**
+     * @param name              Name of the ticker thread.
+     * @param tickDuration      Resolution of the wheel in milliseconds.
+     * @param ticksPerWheel     Number of buckets, rounded up to a power of two.
+     */
+    public TimeoutWheel(String name, long tickDuration, int ticksPerWheel)
+    {
+        int size = 1;
+
+        while (size < ticksPerWheel)
+        {
+            size <<= 1;
+        }
+
+        m_pName = name;
+        m_nTickDuration = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickDuration));
+        m_pBuckets = new Timeout[size];
+        m_nMask = size - 1;
+    }
+
+    /**
+     * Schedules a task to run once the delay has passed, unless the timeout is cancelled first.
+     *
+     * @param delay     Delay in milliseconds.
+     * @param task      Task to run on expiry.
+     * @return          The timeout, which can be cancelled.
+     */
+    public synchronized Timeout schedule(long delay, Runnable task)
+    {
+        Timeout timeout = new Timeout(this, task);
+
+        if (m_bStopped)
+        {
+            return timeout;
+        }
+
+        long now = System.nanoTime();
+
+        if (m_pTicker == null)
+        {
+            m_pTicker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    tickLoop();
+                }
+            }, m_pName);
+            m_pTicker.setDaemon(true);
+            m_pTicker.start();
+        }
+
+        if (m_nPending == 0)
+        {
+            // The ticker is parked on an empty wheel, or about to be; tick again from now on
+            m_nNextTickTime = now + m_nTickDuration;
+        }
+
+        // The timeout goes in the first tick due at or after its deadline, which can't be handled earlier
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+        long ticks = Math.max(0, (deadline - m_nNextTickTime + m_nTickDuration - 1) / m_nTickDuration);
+        long deadlineTick = m_nTick + ticks;
+
+        timeout.m_nRounds = ticks / m_pBuckets.length;
+        timeout.m_nBucket = (int)(deadlineTick & m_nMask);
+        link(timeout);
+
+        if (m_nPending++ == 0)
+        {
+            notifyAll();
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Stops the ticker thread. Pending timeouts are dropped without running.
+     */
+    public synchronized void stop()
+    {
+        m_bStopped = true;
+
+        for (int i = 0; i < m_pBuckets.length; i++)
+        {
+            while (m_pBuckets[i] != null)
+            {
+                Timeout timeout = m_pBuckets[i];
+                unlink(timeout);
+                timeout.m_nState = Timeout.STATE_CANCELLED;
+            }
+        }
+
+        m_nPending = 0;
+        notifyAll();
+    }
+
+    /**
+     * @return  Number of timeouts currently scheduled.
+     */
+    public synchronized int size()
+    {
+        return m_nPending;
+    }
+
+    private synchronized boolean cancel(Timeout timeout)
+    {
+        if (timeout.m_nState != Timeout.STATE_SCHEDULED)
+        {
+            return false;
+        }
+
+        timeout.m_nState = Timeout.STATE_CANCELLED;
+
+        if (timeout.m_nBucket >= 0)
+        {
+            unlink(timeout);
+            m_nPending--;
+        }
+
+        return true;
+    }
+
+    private void link(Timeout timeout)
+    {
+        Timeout head = m_pBuckets[timeout.m_nBucket];
+        timeout.m_pNext = head;
+
+        if (head != null)
+        {
+            head.m_pPrev = timeout;
+        }
+
+        m_pBuckets[timeout.m_nBucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout)
+    {
+        if (timeout.m_pPrev != null)
+        {
+            timeout.m_pPrev.m_pNext = timeout.m_pNext;
+        }
+        else
+        {
+            m_pBuckets[timeout.m_nBucket] = timeout.m_pNext;
+        }
+
+        if (timeout.m_pNext != null)
+        {
+            timeout.m_pNext.m_pPrev = timeout.m_pPrev;
+        }
+
+        timeout.m_pPrev = null;
+        timeout.m_pNext = null;
+        timeout.m_nBucket = -1;
+    }
+
+    private void tickLoop()
+    {
+        while (true)
+        {
+            Timeout expired = null;
+
+            synchronized (this)
+            {
+                while (!m_bStopped)
+                {
+                    if (m_nPending == 0)
+                    {
+                        // Nothing to time out, sleep until schedule() wakes us
+                        try
+                        {
+                            wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+
+                        continue;
+                    }
+
+                    long delay = m_nNextTickTime - System.nanoTime();
+
+                    if (delay <= 0)
+                    {
+                        break;
+                    }
+
+                    try
+                    {
+                        // Round up, so that the tick isn't handled before it is due
+                        wait(TimeUnit.NANOSECONDS.toMillis(delay + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+
+                if (m_bStopped)
+                {
+                    m_pTicker = null;
+                    return;
+                }
+
+                // Collect the expired timeouts of this tick; run them outside the lock
+                int bucket = (int)(m_nTick & m_nMask);
+                Timeout timeout = m_pBuckets[bucket];
+
+                while (timeout != null)
+                {
+                    Timeout next = timeout.m_pNext;
+
+                    if (timeout.m_nRounds <= 0)
+                    {
+                        unlink(timeout);
+                        timeout.m_nState = Timeout.STATE_EXPIRED;
+                        timeout.m_pNext = expired;
+                        expired = timeout;
+                        m_nPending--;
+                    }
+                    else
+                    {
+                        timeout.m_nRounds--;
+                    }
+
+                    timeout = next;
+                }
+
+                m_nTick++;
+                m_nNextTickTime += m_nTickDuration;
+            }
+
+            while (expired != null)
+            {
+                Timeout next = expired.m_pNext;
+                expired.m_pNext = null;
+
+                try
+                {
+                    expired.m_pTask.run();
+                }
+                catch (RuntimeException e)
+                {
+                    // Keep ticking; one failing task must not stall the other deadlines
+                }
+
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * A scheduled task. All fields are guarded by the wheel lock.
+     */
+    public static final class Timeout
+    {
+        static final int STATE_SCHEDULED = 0;
+        static final int STATE_CANCELLED = 1;
+        static final int STATE_EXPIRED = 2;
+
+        private final TimeoutWheel m_pWheel;
+        private final Runnable m_pTask;
+        private int m_nState = STATE_SCHEDULED;
+        private int m_nBucket = -1;
+        private long m_nRounds;
+        private Timeout m_pPrev;
+        private Timeout m_pNext;
+
+        Timeout(TimeoutWheel wheel, Runnable task)
+        {
+            m_pWheel = wheel;
+            m_pTask = task;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return  True if the task will not run; false if it already ran, or is running.
+         */
+        public boolean cancel()
+        {
+            return m_pWheel.cancel(this);
+        }
+    }
+}
@@ -183,18 +183,17 @@ AJ_Status AJ_Net_Send(AJ_IOBuffer* buf)
 static int interruptFd = INVALID_SOCKET;
 
 /*
- * The socket that is blocked in select
- */
-static uint8_t blocked;
-
-/*
- * This function is called to cancel a pending select.
+ * This function is called to cancel a pending select. The Java msg loop blocks in
+ * AJ_Net_Recv() and calls this to wake up on disconnect or shutdown, so the event is
+ * signalled even if the select has not been entered yet; eventfd keeps the count and
+ * the next select returns right away with AJ_ERR_INTERRUPTED.
  */
 void AJ_Net_Interrupt()
 {
-    if (blocked) {
-        uint64_t u64;
-        write(interruptFd, &u64, sizeof(u64));
+    int fd = interruptFd;
+    if (fd >= 0) {
+        uint64_t u64 = 1;
+        write(fd, &u64, sizeof(u64));
     }
 }
 
@@ -218,9 +217,7 @@ AJ_Status AJ_Net_Recv(AJ_IOBuffer* buf, uint32_t len, uint32_t timeout)
         FD_SET(interruptFd, &fds);
         maxFd = max(maxFd, interruptFd);
     }
-    blocked = TRUE;
     rc = select(maxFd + 1, &fds, NULL, NULL, &tv);
-    blocked = FALSE;
     if (rc == 0) {
         return AJ_ERR_TIMEOUT;
     }
@@ -243,6 +240,63 @@ AJ_Status AJ_Net_Recv(AJ_IOBuffer* buf, uint32_t len, uint32_t timeout)
     return status;
 }
 
+/*
+ * Returns TRUE if the connection has bytes waiting to be read. The Java msg loop uses this
+ * to keep draining messages after a wakeup without blocking in AJ_Net_Recv().
+ */
+uint8_t AJ_Net_RxReady(AJ_IOBuffer* buf)
+{
+    NetContext* context = (NetContext*) buf->context;
+    fd_set fds;
+    struct timeval tv = { 0, 0 };
+
+    if (!context || (context->tcpSock == INVALID_SOCKET)) {
+        return FALSE;
+    }
+    FD_ZERO(&fds);
+    FD_SET(context->tcpSock, &fds);
+    return (select(context->tcpSock + 1, &fds, NULL, NULL, &tv) > 0) ? TRUE : FALSE;
+}
+
+/*
+ * Waits until the connection has bytes to read, without reading them, so that the Java msg loop
+ * can wait without holding the bus lock. Returns AJ_ERR_TIMEOUT and AJ_ERR_INTERRUPTED as
+ * AJ_Net_Recv() does.
+ */
+AJ_Status AJ_Net_WaitRxReady(AJ_IOBuffer* buf, uint32_t timeout)
+{
+    NetContext* context = (NetContext*) buf->context;
+    fd_set fds;
+    int rc = 0;
+    int maxFd;
+    struct timeval tv = { timeout / 1000, 1000 * (timeout % 1000) };
+
+    if (!context || (context->tcpSock == INVALID_SOCKET)) {
+        return AJ_ERR_READ;
+    }
+    maxFd = context->tcpSock;
+    FD_ZERO(&fds);
+    FD_SET(context->tcpSock, &fds);
+    if (interruptFd >= 0) {
+        FD_SET(interruptFd, &fds);
+        maxFd = max(maxFd, interruptFd);
+    }
+    rc = select(maxFd + 1, &fds, NULL, NULL, &tv);
+    if (rc == 0) {
+        return AJ_ERR_TIMEOUT;
+    }
+    if (rc < 0) {
+        AJ_ErrPrintf(("AJ_Net_WaitRxReady(): select() failed. errno=\"%s\", status=AJ_ERR_READ\n", strerror(errno)));
+        return AJ_ERR_READ;
+    }
+    if ((interruptFd >= 0) && FD_ISSET(interruptFd, &fds)) {
+        uint64_t u64;
+        read(interruptFd, &u64, sizeof(u64));
+        return AJ_ERR_INTERRUPTED;
+    }
+    return AJ_OK;
+}
+
 static uint8_t rxData[1024];
 static uint8_t txData[1500];
 
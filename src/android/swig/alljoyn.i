@@ -7,13 +7,383 @@
 #include <alljoyn.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 
-static char buffer[64];
-static uint8_t u8;
-static uint16_t u16;
-static uint32_t u32;
-static uint64_t u64;
-static double d;
+extern uint8_t AJ_Net_RxReady(AJ_IOBuffer* buf);
+extern AJ_Status AJ_Net_WaitRxReady(AJ_IOBuffer* buf, uint32_t timeout);
+
+#define REPLY_CONTEXT_MAX_SENDER 256
+
+/*
+ * The parts of a received method call that are needed to reply to it. The message
+ * itself points into the receive buffer, so it can't be kept once it has been closed.
+ */
+typedef struct {
+	AJ_Message msg;
+	AJ_MsgHeader hdr;
+	char sender[REPLY_CONTEXT_MAX_SENDER];
+} AJ_ReplyContext;
+
+/*
+ * Output of decodeBody(): a self-describing encoding of the values of a message body, in
+ * native byte order. Each value starts with a one byte tag:
+ *
+ *   y n q i u x t d h b    scalar, followed by its value in its own size
+ *   s o                    string, followed by a uint32 length and the UTF-8 bytes
+ *   g                      signature, followed by a uint8 length and the bytes
+ *   a                      array of scalars, followed by the element type, a uint32 length
+ *                          in bytes and the elements
+ *   [ ... ]                any other array, holding its elements
+ *   @ ... ]                array of dict entries with string keys, holding its entries
+ *   ( ... ) { ... }        struct and dict entry, holding their fields
+ *   < ... >                variant, followed by a uint8 length and its signature, then its values
+ */
+typedef struct {
+	uint8_t* buf;
+	uint32_t pos;
+	uint32_t capacity;
+	uint8_t* heap;      /* Where the encoding moved once it outgrew the caller's buffer, or NULL */
+} AJ_DecodeBuffer;
+
+#ifndef AJ_MAX_SIGNATURE_LEN
+#define AJ_MAX_SIGNATURE_LEN 255
+#endif
+
+/*
+ * Encoding decodeBody() had to keep because it didn't fit, until takeDecodeOverflow() copies it
+ * out. Only touched with the bus lock held: decodeBody() and the takeDecodeOverflow() that follows
+ * it run in the same locked section, so one is enough.
+ */
+static uint8_t* s_decodeOverflow = NULL;
+static uint32_t s_decodeOverflowLen = 0;
+
+static int DecodePut(AJ_DecodeBuffer* out, const void* data, uint32_t len)
+{
+	if (len > out->capacity - out->pos) {
+		/* Values can't be unmarshalled twice, so rather than fail, go on in a bigger heap buffer */
+		uint32_t capacity = out->capacity ? out->capacity : 256;
+		uint8_t* heap;
+
+		while (len > capacity - out->pos) {
+			if (capacity > 0x7FFFFFFF) {
+				return 0;
+			}
+			capacity *= 2;
+		}
+		heap = (uint8_t*)realloc(out->heap, capacity);
+		if (!heap) {
+			return 0;
+		}
+		if (!out->heap) {
+			memcpy(heap, out->buf, out->pos);
+		}
+		out->buf = out->heap = heap;
+		out->capacity = capacity;
+	}
+	memcpy(out->buf + out->pos, data, len);
+	out->pos += len;
+	return 1;
+}
+
+static int DecodePutTag(AJ_DecodeBuffer* out, char tag)
+{
+	return DecodePut(out, &tag, 1);
+}
+
+static uint32_t DecodeScalarSize(char typeId)
+{
+	switch (typeId) {
+	case AJ_ARG_BYTE:
+		return 1;
+
+	case AJ_ARG_INT16:
+	case AJ_ARG_UINT16:
+		return 2;
+
+	case AJ_ARG_BOOLEAN:
+	case AJ_ARG_INT32:
+	case AJ_ARG_UINT32:
+	case AJ_ARG_HANDLE:
+		return 4;
+
+	case AJ_ARG_INT64:
+	case AJ_ARG_UINT64:
+	case AJ_ARG_DOUBLE:
+		return 8;
+
+	default:
+		return 0;
+	}
+}
+
+/*
+ * Returns the signature following the complete type sig starts with, or NULL if it is invalid.
+ */
+static const char* DecodeSkipType(const char* sig)
+{
+	char close;
+
+	switch (*sig) {
+	case AJ_ARG_ARRAY:
+		return DecodeSkipType(sig + 1);
+
+	case AJ_ARG_STRUCT:
+	case AJ_ARG_DICT_ENTRY:
+		close = (*sig == AJ_ARG_STRUCT) ? AJ_STRUCT_CLOSE : AJ_DICT_ENTRY_CLOSE;
+		++sig;
+		while (sig && *sig && *sig != close) {
+			sig = DecodeSkipType(sig);
+		}
+		return (sig && *sig == close) ? sig + 1 : NULL;
+
+	case '\0':
+		return NULL;
+
+	default:
+		return sig + 1;
+	}
+}
+
+static uint32_t ReadHdrUInt32(const uint8_t* p, char endianess)
+{
+	if (endianess == 'l') {
+		return p[0] | (p[1] << 8) | (p[2] << 16) | ((uint32_t)p[3] << 24);
+	}
+	return ((uint32_t)p[0] << 24) | (p[1] << 16) | (p[2] << 8) | p[3];
+}
+
+/*
+ * Returns 1 if the array of scalars about to be unmarshalled can be unmarshalled in one go.
+ * AJ_UnmarshalArg() needs the whole array in the receive buffer for that, so its length has to
+ * be received already, and the array has to fit.
+ */
+static int ScalarArrayFitsRxBuffer(AJ_Message* msg)
+{
+	AJ_IOBuffer* rx = &msg->bus->sock.rx;
+	size_t pad = (4 - ((rx->readPtr - rx->bufStart) & 3)) & 3;
+	uint32_t len;
+
+	if (!msg->hdr || (AJ_IO_BUF_AVAIL(rx) < pad + 4)) {
+		return 0;
+	}
+
+	/* The array follows its length, after up to 4 bytes of padding for 8 byte elements */
+	len = ReadHdrUInt32(rx->readPtr + pad, msg->hdr->endianess);
+	return (len <= rx->bufSize) && (pad + 4 + 4 + len <= rx->bufSize);
+}
+
+/*
+ * Decodes the value of the complete type *sig starts with, and moves *sig past it.
+ */
+static AJ_Status DecodeValue(AJ_Message* msg, const char** sig, AJ_DecodeBuffer* out)
+{
+	char typeId = **sig;
+	AJ_Arg arg;
+	AJ_Status status;
+
+	switch (typeId) {
+	case AJ_ARG_STRUCT:
+	case AJ_ARG_DICT_ENTRY:
+	{
+		char close = (typeId == AJ_ARG_STRUCT) ? AJ_STRUCT_CLOSE : AJ_DICT_ENTRY_CLOSE;
+
+		status = AJ_UnmarshalContainer(msg, &arg, typeId);
+		if (status != AJ_OK) {
+			return status;
+		}
+		if (!DecodePutTag(out, typeId)) {
+			return AJ_ERR_RESOURCES;
+		}
+		++*sig;
+		while (**sig && **sig != close) {
+			status = DecodeValue(msg, sig, out);
+			if (status != AJ_OK) {
+				return status;
+			}
+		}
+		if (**sig != close) {
+			return AJ_ERR_SIGNATURE;
+		}
+		++*sig;
+		if (!DecodePutTag(out, close)) {
+			return AJ_ERR_RESOURCES;
+		}
+		return AJ_UnmarshalCloseContainer(msg, &arg);
+	}
+
+	case AJ_ARG_ARRAY:
+	{
+		char elementId = (*sig)[1];
+		const char* elementSig = *sig + 1;
+		const char* next = DecodeSkipType(elementSig);
+
+		if (!next) {
+			return AJ_ERR_SIGNATURE;
+		}
+
+		if (DecodeScalarSize(elementId) && !ScalarArrayFitsRxBuffer(msg)) {
+			uint32_t size = DecodeScalarSize(elementId);
+			AJ_Arg element;
+			uint32_t lenPos;
+			uint32_t len = 0;
+
+			/* Too big to unmarshal at once, so element by element, patching the length in after */
+			status = AJ_UnmarshalContainer(msg, &arg, AJ_ARG_ARRAY);
+			if (status != AJ_OK) {
+				return status;
+			}
+			if (!DecodePutTag(out, AJ_ARG_ARRAY) || !DecodePutTag(out, elementId)) {
+				return AJ_ERR_RESOURCES;
+			}
+			lenPos = out->pos;
+			if (!DecodePut(out, &len, sizeof(len))) {
+				return AJ_ERR_RESOURCES;
+			}
+			while ((status = AJ_UnmarshalArg(msg, &element)) == AJ_OK) {
+				if (element.typeId != elementId) {
+					return AJ_ERR_UNMARSHAL;
+				}
+				if (!DecodePut(out, element.val.v_data, size)) {
+					return AJ_ERR_RESOURCES;
+				}
+				len += size;
+			}
+			if (status != AJ_ERR_NO_MORE) {
+				return status;
+			}
+			memcpy(out->buf + lenPos, &len, sizeof(len));
+			*sig = next;
+			return AJ_UnmarshalCloseContainer(msg, &arg);
+		}
+
+		if (DecodeScalarSize(elementId)) {
+			uint32_t len;
+
+			/* The whole array in one go */
+			status = AJ_UnmarshalArg(msg, &arg);
+			if (status != AJ_OK) {
+				return status;
+			}
+			if ((arg.typeId != elementId) || !(arg.flags & AJ_ARRAY_FLAG)) {
+				return AJ_ERR_UNMARSHAL;
+			}
+			len = arg.len;
+			if (!DecodePutTag(out, AJ_ARG_ARRAY) || !DecodePutTag(out, elementId) ||
+			    !DecodePut(out, &len, sizeof(len)) || !DecodePut(out, arg.val.v_data, len)) {
+				return AJ_ERR_RESOURCES;
+			}
+			*sig = next;
+			return AJ_OK;
+		}
+
+		status = AJ_UnmarshalContainer(msg, &arg, AJ_ARG_ARRAY);
+		if (status != AJ_OK) {
+			return status;
+		}
+		if (!DecodePutTag(out, (elementId == AJ_ARG_DICT_ENTRY && elementSig[1] == AJ_ARG_STRING) ? '@' : '[')) {
+			return AJ_ERR_RESOURCES;
+		}
+		do {
+			const char* element = elementSig;
+			status = DecodeValue(msg, &element, out);
+		} while (status == AJ_OK);
+
+		/* The end of the array is reported as AJ_ERR_NO_MORE */
+		if (status != AJ_ERR_NO_MORE) {
+			return status;
+		}
+		*sig = next;
+		if (!DecodePutTag(out, ']')) {
+			return AJ_ERR_RESOURCES;
+		}
+		return AJ_UnmarshalCloseContainer(msg, &arg);
+	}
+
+	case AJ_ARG_VARIANT:
+	{
+		const char* rxSig;
+		char variantCopy[AJ_MAX_SIGNATURE_LEN + 1];
+		const char* variantSig = variantCopy;
+		size_t sigLen;
+		uint8_t len;
+
+		status = AJ_UnmarshalVariant(msg, &rxSig);
+		if (status != AJ_OK) {
+			return status;
+		}
+		/* rxSig points into the receive buffer, which unmarshalling the values can refill */
+		sigLen = strlen(rxSig);
+		if (sigLen > AJ_MAX_SIGNATURE_LEN) {
+			return AJ_ERR_UNMARSHAL;
+		}
+		memcpy(variantCopy, rxSig, sigLen + 1);
+		len = (uint8_t)sigLen;
+		if (!DecodePutTag(out, '<') || !DecodePut(out, &len, 1) || !DecodePut(out, variantSig, len)) {
+			return AJ_ERR_RESOURCES;
+		}
+		while (*variantSig) {
+			status = DecodeValue(msg, &variantSig, out);
+			if (status != AJ_OK) {
+				return status;
+			}
+		}
+		++*sig;
+		return DecodePutTag(out, '>') ? AJ_OK : AJ_ERR_RESOURCES;
+	}
+
+	case AJ_ARG_STRING:
+	case AJ_ARG_OBJ_PATH:
+	case AJ_ARG_SIGNATURE:
+	{
+		status = AJ_UnmarshalArg(msg, &arg);
+		if (status != AJ_OK) {
+			return status;
+		}
+		if (arg.typeId != typeId) {
+			return AJ_ERR_UNMARSHAL;
+		}
+		if (typeId == AJ_ARG_SIGNATURE) {
+			uint8_t len = (uint8_t)arg.len;
+			if (!DecodePutTag(out, typeId) || !DecodePut(out, &len, 1) || !DecodePut(out, arg.val.v_signature, len)) {
+				return AJ_ERR_RESOURCES;
+			}
+		} else {
+			uint32_t len = arg.len;
+			if (!DecodePutTag(out, typeId) || !DecodePut(out, &len, sizeof(len)) || !DecodePut(out, arg.val.v_string, len)) {
+				return AJ_ERR_RESOURCES;
+			}
+		}
+		++*sig;
+		return AJ_OK;
+	}
+
+	default:
+	{
+		uint32_t size = DecodeScalarSize(typeId);
+
+		if (!size) {
+			return AJ_ERR_SIGNATURE;
+		}
+		status = AJ_UnmarshalArg(msg, &arg);
+		if (status != AJ_OK) {
+			return status;
+		}
+		if (arg.typeId != typeId) {
+			return AJ_ERR_UNMARSHAL;
+		}
+		if (!DecodePutTag(out, typeId) || !DecodePut(out, arg.val.v_data, size)) {
+			return AJ_ERR_RESOURCES;
+		}
+		++*sig;
+		return AJ_OK;
+	}
+	}
+}
+
+/*
+ * The object paths set by setProxyObjectPath(), indexed by proxy object.
+ */
+static char* s_proxyObjectPaths[256];
 %}
 
 %apply unsigned short {uint8_t}
@@ -22,119 +392,420 @@ static double d;
 %apply unsigned long {uint64_t}
 %rename(_AJ_Message) AJ_Message;
 
+/*
+ * Passes a direct java.nio.ByteBuffer as the address of its memory, so that whole scalar
+ * arrays can cross JNI in one call without being copied into a Java array first.
+ */
+%typemap(jni) void* DIRECT_BUFFER "jobject"
+%typemap(jtype) void* DIRECT_BUFFER "java.nio.ByteBuffer"
+%typemap(jstype) void* DIRECT_BUFFER "java.nio.ByteBuffer"
+%typemap(javain) void* DIRECT_BUFFER "$javainput"
+%typemap(in) void* DIRECT_BUFFER {
+	$1 = (*jenv)->GetDirectBufferAddress(jenv, $input);
+	if ($1 == NULL) {
+		SWIG_JavaThrowException(jenv, SWIG_JavaIllegalArgumentException, "direct buffer expected");
+		return $null;
+	}
+}
+
 %inline %{
 
-const char* getV_bool(uint32_t* v_data) 
+/*
+ * Returns the value of any integer scalar arg (byte, boolean, int16, uint16, int32, uint32,
+ * int64, uint64, handle), sign or zero extended as its type requires.
+ */
+long long getArgLong(AJ_Arg* arg)
+{
+	switch (arg->typeId) {
+	case AJ_ARG_BYTE:
+		return *arg->val.v_byte;
+
+	case AJ_ARG_BOOLEAN:
+		return *arg->val.v_bool;
+
+	case AJ_ARG_INT16:
+		return *arg->val.v_int16;
+
+	case AJ_ARG_UINT16:
+		return *arg->val.v_uint16;
+
+	case AJ_ARG_INT32:
+	case AJ_ARG_HANDLE:
+		return *arg->val.v_int32;
+
+	case AJ_ARG_UINT32:
+		return *arg->val.v_uint32;
+
+	case AJ_ARG_INT64:
+		return *arg->val.v_int64;
+
+	case AJ_ARG_UINT64:
+		return (long long)*arg->val.v_uint64;
+
+	default:
+		return 0;
+	}
+}
+
+double getArgDouble(AJ_Arg* arg)
+{
+	return (arg->typeId == AJ_ARG_DOUBLE) ? *arg->val.v_double : 0.0;
+}
+
+/*
+ * Returns the value of a string, object path or signature arg, without creating a proxy
+ * of the value union on the Java side.
+ */
+const char* getArgString(AJ_Arg* arg)
+{
+	switch (arg->typeId) {
+	case AJ_ARG_STRING:
+	case AJ_ARG_OBJ_PATH:
+	case AJ_ARG_SIGNATURE:
+		return arg->val.v_string;
+
+	default:
+		return NULL;
+	}
+}
+
+/*
+ * Marshals an integer scalar of the given type. The value is copied into the message
+ * before returning, so it can live on the stack of the calling thread.
+ */
+AJ_Status marshalLong(AJ_Message* msg, char typeId, long long value)
+{
+	AJ_Arg arg;
+	uint8_t v_byte;
+	uint16_t v_16;
+	uint32_t v_32;
+	uint64_t v_64;
+	void* data;
+
+	switch (typeId) {
+	case AJ_ARG_BYTE:
+		v_byte = (uint8_t)value;
+		data = &v_byte;
+		break;
+
+	case AJ_ARG_INT16:
+	case AJ_ARG_UINT16:
+		v_16 = (uint16_t)value;
+		data = &v_16;
+		break;
+
+	case AJ_ARG_BOOLEAN:
+	case AJ_ARG_INT32:
+	case AJ_ARG_UINT32:
+	case AJ_ARG_HANDLE:
+		v_32 = (uint32_t)value;
+		data = &v_32;
+		break;
+
+	case AJ_ARG_INT64:
+	case AJ_ARG_UINT64:
+		v_64 = (uint64_t)value;
+		data = &v_64;
+		break;
+
+	default:
+		return AJ_ERR_SIGNATURE;
+	}
+
+	AJ_InitArg(&arg, typeId, 0, data, 0);
+	return AJ_MarshalArg(msg, &arg);
+}
+
+AJ_Status marshalDouble(AJ_Message* msg, double value)
+{
+	AJ_Arg arg;
+	AJ_InitArg(&arg, AJ_ARG_DOUBLE, 0, &value, 0);
+	return AJ_MarshalArg(msg, &arg);
+}
+
+/*
+ * Marshals a string, object path or signature. The string is copied into the message.
+ */
+AJ_Status marshalString(AJ_Message* msg, char typeId, const char* value)
+{
+	AJ_Arg arg;
+	AJ_InitArg(&arg, typeId, 0, value, 0);
+	return AJ_MarshalArg(msg, &arg);
+}
+
+/*
+ * Marshals a whole array of scalars of the given type from a direct buffer holding the
+ * elements in native byte order. len is the length of the array in bytes.
+ */
+AJ_Status marshalScalarArray(AJ_Message* msg, char typeId, void* DIRECT_BUFFER, uint32_t len)
 {
-	sprintf(buffer, "%u", *v_data);
-	return buffer;
+	AJ_Arg arg;
+	AJ_InitArg(&arg, typeId, AJ_ARRAY_FLAG, DIRECT_BUFFER, len);
+	return AJ_MarshalArg(msg, &arg);
 }
 
-const char* getV_byte(uint8_t* v_data) 
+/*
+ * Copies the elements of a scalar array unmarshalled with AJ_UnmarshalArg() into a direct
+ * buffer, in native byte order. Returns the number of bytes copied.
+ */
+uint32_t copyArgData(AJ_Arg* arg, void* DIRECT_BUFFER, uint32_t capacity)
 {
-	sprintf(buffer, "%u", *v_data);
-	return buffer;
+	uint32_t len = arg->len;
+
+	if (!(arg->flags & AJ_ARRAY_FLAG) || (len > capacity)) {
+		return 0;
+	}
+
+	memcpy(DIRECT_BUFFER, arg->val.v_data, len);
+	return len;
 }
 
-const char* getV_uint16(uint16_t* v_data) 
+/*
+ * Returns the buffer size to try decodeBody() with for the body of this message. It fits most
+ * bodies, but not all: every struct and nested container adds tags, so bodies of many small
+ * structs take more. decodeBody() keeps what doesn't fit, see takeDecodeOverflow().
+ */
+uint32_t getDecodeBufferSize(AJ_Message* msg)
 {
-	sprintf(buffer, "%u", *v_data);
-	return buffer;
+	return 4 + 2 * (msg->hdr ? msg->hdr->bodyLen : 0) + 256;
 }
 
-const char* getV_uint32(uint32_t* v_data) 
+/*
+ * Unmarshals the values of a signature in one call and writes them into a direct buffer
+ * in the encoding described at AJ_DecodeBuffer. The first 4 bytes of the buffer receive
+ * the length of the encoded values that follow them.
+ *
+ * If that length is more than the buffer holds after them, the encoding was kept instead,
+ * and takeDecodeOverflow() copies it into a big enough buffer.
+ */
+AJ_Status decodeBody(AJ_Message* msg, const char* signature, void* DIRECT_BUFFER, uint32_t capacity)
 {
-	sprintf(buffer, "%u", *v_data);
-	return buffer;
+	AJ_DecodeBuffer out;
+	AJ_Status status = AJ_OK;
+	const char* sig = signature;
+
+	if (capacity < 4) {
+		return AJ_ERR_RESOURCES;
+	}
+
+	out.buf = (uint8_t*)DIRECT_BUFFER + 4;
+	out.pos = 0;
+	out.capacity = capacity - 4;
+	out.heap = NULL;
+
+	while (*sig && (status == AJ_OK)) {
+		status = DecodeValue(msg, &sig, &out);
+	}
+
+	free(s_decodeOverflow);
+	s_decodeOverflow = NULL;
+	s_decodeOverflowLen = 0;
+
+	if (out.heap) {
+		if (status == AJ_OK) {
+			s_decodeOverflow = out.heap;
+			s_decodeOverflowLen = out.pos;
+		} else {
+			free(out.heap);
+		}
+	}
+
+	memcpy(DIRECT_BUFFER, &out.pos, sizeof(out.pos));
+	return status;
 }
 
-const char* getV_uint64(uint64_t* v_data) 
+/*
+ * Copies the encoding the last decodeBody() kept into a direct buffer, laid out as decodeBody()
+ * would have written it, and releases it. Returns AJ_ERR_RESOURCES if the buffer is too small,
+ * or there is nothing to copy.
+ */
+AJ_Status takeDecodeOverflow(void* DIRECT_BUFFER, uint32_t capacity)
 {
-	sprintf(buffer, "%lu", *v_data);
-	return buffer;
+	if (!s_decodeOverflow || (capacity < 4) || (s_decodeOverflowLen > capacity - 4)) {
+		return AJ_ERR_RESOURCES;
+	}
+
+	memcpy(DIRECT_BUFFER, &s_decodeOverflowLen, sizeof(s_decodeOverflowLen));
+	memcpy((uint8_t*)DIRECT_BUFFER + 4, s_decodeOverflow, s_decodeOverflowLen);
+	free(s_decodeOverflow);
+	s_decodeOverflow = NULL;
+	s_decodeOverflowLen = 0;
+	return AJ_OK;
 }
 
-const char* getV_int16(int16_t* v_data) 
+/*
+ * Returns 1 if the array of scalars about to be unmarshalled fits in the receive buffer, so
+ * that AJ_UnmarshalArg() can unmarshal it in one go, or 0 if it has to be decoded element by
+ * element.
+ */
+int scalarArrayFitsRxBuffer(AJ_Message* msg)
 {
-	sprintf(buffer, "%d", *v_data);
-	return buffer;
+	return ScalarArrayFitsRxBuffer(msg);
 }
 
-const char* getV_int32(int32_t* v_data) 
+/*
+ * Returns the length of the body of a received message.
+ */
+uint32_t getBodyLength(AJ_Message* msg)
 {
-	sprintf(buffer, "%d", *v_data);
-	return buffer;
+	return msg->hdr ? msg->hdr->bodyLen : 0;
 }
 
-const char* getV_int64(int64_t* v_data) 
+/*
+ * Returns the byte order of the body of a received message: 'l' for little endian, 'B' for
+ * big endian.
+ */
+char getBodyEndianness(AJ_Message* msg)
 {
-	sprintf(buffer, "%ld", *v_data);
-	return buffer;
+	return msg->hdr ? msg->hdr->endianess : 'l';
 }
 
-const char* getV_double(double* v_data) 
+/*
+ * Copies the marshalled body of a received message into a direct buffer, to decode it in
+ * Java. It must be called before any arg of the message is unmarshalled.
+ */
+AJ_Status unmarshalRawBody(AJ_Message* msg, void* DIRECT_BUFFER, uint32_t len)
 {
-	sprintf(buffer, "%f", *v_data);
-	return buffer;
+	uint8_t* out = (uint8_t*)DIRECT_BUFFER;
+
+	while (len) {
+		const void* data;
+		size_t actual;
+		AJ_Status status = AJ_UnmarshalRaw(msg, &data, len, &actual);
+
+		if (status != AJ_OK) {
+			return status;
+		}
+		memcpy(out, data, actual);
+		out += actual;
+		len -= actual;
+	}
+
+	return AJ_OK;
 }
 
-uint32_t* setV_bool(const char* val)
+/*
+ * Marshals a body encoded in Java, in native byte order, as the whole body of a message.
+ */
+AJ_Status marshalRawBody(AJ_Message* msg, void* DIRECT_BUFFER, uint32_t len)
 {
-	u32 = atoi(val);
-	return &u32;
+	AJ_Status status = AJ_DeliverMsgPartial(msg, len);
+
+	if (status == AJ_OK) {
+		status = AJ_MarshalRaw(msg, DIRECT_BUFFER, len);
+	}
+
+	return status;
 }
 
-uint8_t* setV_byte(const char* val) 
+long getMsgPointer(AJ_Message* msg) 
 {
-	u8 = atoi(val);
-	return &u8;
+	return (long)(msg);
 }
 
-uint16_t* setV_uint16(const char* val) 
+uint32_t getMsgSerial(AJ_Message* msg)
 {
-	u16 = atoi(val);
-	return &u16;
+	return msg->hdr ? msg->hdr->serialNum : 0;
 }
 
-uint32_t* setV_uint32(const char* val) 
+uint32_t getReplySerial(AJ_Message* msg)
 {
-	u32 = atoi(val);
-	return &u32;
+	return msg->replySerial;
 }
 
-uint64_t* setV_uint64(const char* val) 
+AJ_ReplyContext* detachReplyContext(AJ_Message* msg)
 {
-	u64 = atol(val);
-	return &u64;
+	AJ_ReplyContext* ctx = (AJ_ReplyContext*)malloc(sizeof(AJ_ReplyContext));
+
+	if (ctx) {
+		memset(ctx, 0, sizeof(AJ_ReplyContext));
+		ctx->msg.msgId = msg->msgId;
+		ctx->msg.bus = msg->bus;
+		ctx->msg.sessionId = msg->sessionId;
+		if (msg->hdr) {
+			ctx->hdr = *msg->hdr;
+		}
+		ctx->msg.hdr = &ctx->hdr;
+		if (msg->sender) {
+			strncpy(ctx->sender, msg->sender, sizeof(ctx->sender) - 1);
+		}
+		ctx->msg.sender = ctx->sender;
+	}
+
+	return ctx;
 }
 
-int16_t* setV_int16(const char* val) 
+AJ_Message* getReplyContextMsg(AJ_ReplyContext* ctx)
 {
-	u16 = atoi(val);
-	return (int16_t*)&u16;
+	return &ctx->msg;
 }
 
-int32_t* setV_int32(const char* val) 
+void freeReplyContext(AJ_ReplyContext* ctx)
 {
-	u32 = atoi(val);
-	return (int32_t*)&u32;
+	free(ctx);
 }
 
-int64_t* setV_int64(const char* val) 
+/*
+ * Returns 1 if a complete message is already buffered or more bytes are waiting on the
+ * connection, so that AJ_UnmarshalMsg() can be called again without blocking for long.
+ */
+int hasPendingMsg(AJ_BusAttachment* bus)
 {
-	u64 = atol(val);
-	return (int64_t*)&u64;
+	AJ_IOBuffer* rx = &bus->sock.rx;
+	size_t avail = AJ_IO_BUF_AVAIL(rx);
+
+	if (avail >= 16) {
+		const uint8_t* hdr = rx->readPtr;
+		uint32_t bodyLen = ReadHdrUInt32(hdr + 4, hdr[0]);
+		uint32_t hdrLen = ReadHdrUInt32(hdr + 12, hdr[0]);
+
+		if (avail >= 16 + ((hdrLen + 7) & ~7) + bodyLen) {
+			return 1;
+		}
+	}
+
+	return AJ_Net_RxReady(rx) ? 1 : 0;
 }
 
-double* setV_double(const char* val) 
+/*
+ * Waits until hasPendingMsg() would return 1, without touching the bus otherwise, so that it
+ * can be called without the bus lock. Returns AJ_OK then, or AJ_ERR_TIMEOUT, or
+ * AJ_ERR_INTERRUPTED after AJ_Net_Interrupt().
+ */
+AJ_Status waitForMsg(AJ_BusAttachment* bus, uint32_t timeout)
 {
-	d = atof(val);
-	return &d;	
+	if (hasPendingMsg(bus)) {
+		return AJ_OK;
+	}
+
+	return AJ_Net_WaitRxReady(&bus->sock.rx, timeout);
 }
 
-long getMsgPointer(AJ_Message* msg) 
+/*
+ * Same as AJ_SetProxyObjectPath(), but keeps a copy of the path until the next path of the
+ * same proxy object. AJ_SetProxyObjectPath() only keeps the pointer it is given, and the
+ * string of a JNI call is released when the call returns.
+ */
+AJ_Status setProxyObjectPath(AJ_Object* proxyObjects, uint32_t msgId, const char* path)
 {
-	return (long)(msg);
+	uint8_t index = (uint8_t)(msgId >> 16);
+	char* copy = strdup(path);
+	AJ_Status status;
+
+	if (!copy) {
+		return AJ_ERR_RESOURCES;
+	}
+
+	status = AJ_SetProxyObjectPath(proxyObjects, msgId, copy);
+
+	if (status == AJ_OK) {
+		free(s_proxyObjectPaths[index]);
+		s_proxyObjectPaths[index] = copy;
+	} else {
+		free(copy);
+	}
+
+	return status;
 }
 
 %}
@@ -0,0 +1,130 @@
+package org.allseen.alljoyn;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONArray;
+
+import java.util.List;
+
+/**
+ * Checks how ListenerQueue batches messages on a plain JVM, with the Cordova stand-ins
+ * under stubs/ recording what would have crossed the bridge.
+ */
+public class ListenerQueueCheck
+{
+    private static final long BATCH_WINDOW = 50;
+
+    public static void main(String[] argv) throws Exception
+    {
+        TimeoutWheel wheel = new TimeoutWheel("ListenerQueueCheck", 10, 64);
+
+        try
+        {
+            checkBatchWithoutWindow(wheel);
+            checkBatchWithoutWindowFlowControlled(wheel);
+            checkBatchWindow(wheel);
+            checkAdmit(wheel);
+        }
+        finally
+        {
+            wheel.stop();
+        }
+
+        System.out.println("OK");
+    }
+
+    /**
+     * Without a batch window, a batch waits for as long as it takes to fill up.
+     */
+    static void checkBatchWithoutWindow(TimeoutWheel wheel) throws Exception
+    {
+        CallbackContext callbackContext = new CallbackContext();
+        ListenerQueue queue = new ListenerQueue(callbackContext, wheel, 3, 0);
+
+        queue.offer(message(1));
+        queue.offer(message(2));
+        Thread.sleep(BATCH_WINDOW);
+        expectBatches("batchSize 3 without batchWindow", callbackContext);
+
+        queue.offer(message(3));
+        queue.offer(message(4));
+        expectBatches("batchSize 3 without batchWindow", callbackContext, 3);
+    }
+
+    /**
+     * With flow control, a queue smaller than the batch goes as soon as it is full.
+     */
+    static void checkBatchWithoutWindowFlowControlled(TimeoutWheel wheel) throws Exception
+    {
+        CallbackContext callbackContext = new CallbackContext();
+        ListenerQueue queue = new ListenerQueue(callbackContext, wheel, 4, 0, 2, ListenerQueue.OverflowPolicy.DROP_NEWEST, 1, 0, false);
+
+        queue.offer(message(1));
+        expectBatches("batchSize 4, queueSize 2 without batchWindow", callbackContext);
+
+        queue.offer(message(2));
+        expectBatches("batchSize 4, queueSize 2 without batchWindow", callbackContext, 2);
+    }
+
+    /**
+     * With a batch window, a partial batch goes once the window has passed.
+     */
+    static void checkBatchWindow(TimeoutWheel wheel) throws Exception
+    {
+        CallbackContext callbackContext = new CallbackContext();
+        ListenerQueue queue = new ListenerQueue(callbackContext, wheel, 3, BATCH_WINDOW);
+
+        queue.offer(message(1));
+        expectBatches("batchSize 3, batchWindow " + BATCH_WINDOW, callbackContext);
+
+        Thread.sleep(BATCH_WINDOW * 4);
+        expectBatches("batchSize 3, batchWindow " + BATCH_WINDOW, callbackContext, 1);
+    }
+
+    /**
+     * A full dropNewest queue turns messages down before they are unmarshalled, except the
+     * ones that replace a queued message.
+     */
+    static void checkAdmit(TimeoutWheel wheel) throws Exception
+    {
+        CallbackContext callbackContext = new CallbackContext();
+        ListenerQueue queue = new ListenerQueue(callbackContext, wheel, 1, 0, 1, ListenerQueue.OverflowPolicy.DROP_NEWEST, 1, 0, true);
+
+        queue.offer(message(1));
+        queue.offer(message(2));
+
+        if (!queue.admit(":1.1", "/check", "Changed") || queue.admit(":1.1", "/check", "Other") || queue.getDropped() != 1)
+        {
+            throw new AssertionError("dropNewest with conflate: admitted the wrong messages, " + queue.getStatistics());
+        }
+    }
+
+    static ListenerQueue.Message message(int value)
+    {
+        return new ListenerQueue.Message(":1.1", "/check", "Changed", "i", "org.alljoyn.Check", new JSONArray().put(value), null);
+    }
+
+    static void expectBatches(String name, CallbackContext callbackContext, int... sizes)
+    {
+        List<PluginResult> results = callbackContext.getResults();
+        StringBuilder actual = new StringBuilder();
+
+        for (PluginResult result : results)
+        {
+            actual.append(actual.length() == 0 ? "" : ", ").append(((JSONArray)result.getMessage()).length());
+        }
+
+        StringBuilder expected = new StringBuilder();
+
+        for (int size : sizes)
+        {
+            expected.append(expected.length() == 0 ? "" : ", ").append(size);
+        }
+
+        if (!expected.toString().equals(actual.toString()))
+        {
+            throw new AssertionError(name + ": expected batches of [" + expected + "], got [" + actual + "]");
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package org.allseen.alljoyn;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Checks and benchmarks AllJoynWireCodec on a plain JVM, without the native library.
+ *
+ * Run it with "npm run bench". Every case is first checked against known wire bytes or
+ * by decoding what was encoded, then encoded and decoded in a loop, and the rate printed.
+ * Decoding is also checked not to allocate more than the JSON values it produces, both by
+ * the Java codec and by DecodedBodyReader, which reads what the native decodeBody() wrote.
+ */
+public class WireCodecBench
+{
+    private static final int WARMUP_MILLIS = 1000;
+    private static final int RUN_MILLIS = 2000;
+
+    // Decoding may allocate this much per message beyond its output, e.g. for the decoder itself
+    private static final long ALLOCATION_SLACK = 64;
+    private static final int ALLOCATION_ROUNDS = 20000;
+
+    public static void main(String[] argv) throws Exception
+    {
+        checkWireBytes();
+        checkDictionaries();
+        checkAllocations();
+
+        run("i", new JSONArray("[42]"));
+        run("s", new JSONArray("[\"org.alljoyn.Bus.sample\"]"));
+        run("(isd)", new JSONArray("[7, \"seven\", 7.5]"));
+        run("a{sv}", new JSONArray("[[[\"name\", \"s\", \"lamp\"], [\"level\", \"u\", 80], [\"on\", \"b\", 1]]]"));
+        run("a(is)", array("(is)", 100));
+        run("ai", array("i", 1000));
+        run("ad", array("d", 1000));
+        run("ay", array("y", 4096));
+        run("aas", new JSONArray("[[[\"a\", \"b\"], [], [\"c\"]]]"));
+
+        System.out.println("OK");
+    }
+
+    /**
+     * Compares encoded bodies with the bytes the D-Bus format prescribes.
+     */
+    static void checkWireBytes() throws JSONException
+    {
+        expect("yi", "[1, 2]", "01000000" + "02000000");
+        expect("ys", "[1, \"ab\"]", "01000000" + "02000000" + "616200");
+        expect("g", "[\"ai\"]", "02" + "616900");
+        expect("yx", "[1, -1]", "01000000" + "00000000" + "ffffffffffffffff");
+        expect("at", "[[1]]", "08000000" + "00000000" + "0100000000000000");
+        expect("a(yy)", "[[[1, 2], [3, 4]]]", "0a000000" + "00000000" + "0102000000000000" + "0304");
+        expect("yv", "[1, \"q\", 5]", "01" + "01" + "7100" + "0500");
+        expect("ab", "[[]]", "00000000");
+    }
+
+    static void expect(String signature, String args, String hex) throws JSONException
+    {
+        ByteBuffer out = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer body = AllJoynWireCodec.encode(SignaturePlan.get(signature), new JSONArray(args), out, null);
+        StringBuilder actual = new StringBuilder();
+
+        while (body.hasRemaining())
+        {
+            actual.append(String.format("%02x", body.get() & 0xFF));
+        }
+
+        if (!actual.toString().equals(hex))
+        {
+            throw new AssertionError("\"" + signature + "\" " + args + ": expected " + hex + ", got " + actual);
+        }
+
+        body.position(0);
+        checkRoundTrip(signature, new JSONArray(args), body);
+    }
+
+    /**
+     * Checks that string-keyed dictionaries decode into objects, with variants unwrapped.
+     */
+    static void checkDictionaries() throws JSONException
+    {
+        JSONArray args = new JSONArray("[[[\"a\", \"i\", 1], [\"b\", \"(is)\", 2, \"x\"], [\"c\", \"a{sv}\", [[\"d\", \"v\", \"s\", \"e\"]]]], [[\"f\", []]]]");
+        ByteBuffer body = AllJoynWireCodec.encode(SignaturePlan.get("a{sv}a{sai}"), args, ByteBuffer.allocate(256), null);
+        JSONArray decoded = new JSONArray();
+        AllJoynWireCodec.decode(SignaturePlan.get("a{sv}a{sai}"), body, decoded, null, true);
+
+        JSONObject expected = new JSONObject("{\"a\": 1, \"b\": [2, \"x\"], \"c\": {\"d\": \"e\"}}");
+
+        // Compared reparsed, since decoded numbers are longs
+        if (!expected.similar(new JSONObject(decoded.getJSONObject(0).toString())) || !new JSONObject("{\"f\": []}").similar(decoded.getJSONObject(1)))
+        {
+            throw new AssertionError("a{sv}a{sai}: encoded " + args + ", decoded " + decoded);
+        }
+    }
+
+    /**
+     * A way of decoding a message body into JSON values.
+     */
+    interface Decoder
+    {
+        void decode(ByteBuffer in, JSONArray args) throws JSONException;
+    }
+
+    /**
+     * Checks that decoding bodies of scalars allocates nothing per value beyond the values
+     * themselves: the bytes allocated per decode are compared with those of building the
+     * same JSON directly. Needs a JVM that counts allocated bytes per thread.
+     */
+    static void checkAllocations() throws JSONException
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (!(threads instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported())
+        {
+            System.out.println("Allocation check skipped: allocated bytes are not counted by this JVM");
+            return;
+        }
+
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)threads;
+        counter.setThreadAllocatedMemoryEnabled(true);
+
+        String[] signatures = { "i", "yqnuixtdb", "(ii)(dd)(tt)", "ai", "ad" };
+        JSONArray[] args =
+        {
+            new JSONArray("[100000]"),
+            new JSONArray("[200, 60000, -30000, 4000000000, -2000000000, 5000000000, 9000000000, 2.5, 1]"),
+            new JSONArray("[1000, 2000, 1.5, 2.5, 3000, 4000]"),
+            array("i", 256),
+            array("d", 256)
+        };
+
+        for (int k = 0; k < signatures.length; k++)
+        {
+            final SignaturePlan plan = SignaturePlan.get(signatures[k]);
+            ByteBuffer body = AllJoynWireCodec.encode(plan, args[k], ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder()), null);
+
+            checkAllocations(counter, "\"" + signatures[k] + "\"", body, new Decoder()
+            {
+                public void decode(ByteBuffer in, JSONArray args) throws JSONException
+                {
+                    AllJoynWireCodec.decode(plan, in, args, null);
+                }
+            });
+
+            ByteBuffer decodedBody = decodedBody(signatures[k], args[k]);
+            JSONArray read = new JSONArray();
+            DecodedBodyReader.read(decodedBody.duplicate().order(decodedBody.order()), read, null, false);
+
+            if (!read.toString().equals(args[k].toString()))
+            {
+                throw new AssertionError("\"" + signatures[k] + "\": wrote " + args[k] + " as decodeBody() would, read " + read);
+            }
+
+            checkAllocations(counter, "\"" + signatures[k] + "\" from decodeBody()", decodedBody, new Decoder()
+            {
+                public void decode(ByteBuffer in, JSONArray args) throws JSONException
+                {
+                    DecodedBodyReader.read(in, args, null, false);
+                }
+            });
+        }
+    }
+
+    static void checkAllocations(com.sun.management.ThreadMXBean counter, String name, ByteBuffer body, Decoder decoder) throws JSONException
+    {
+        long threadId = Thread.currentThread().getId();
+        JSONArray[] sink = new JSONArray[ALLOCATION_ROUNDS];
+        JSONArray decoded = new JSONArray();
+        decoder.decode(body.duplicate().order(body.order()), decoded);
+
+        // Twice, so that the second round runs compiled code
+        long decodeBytes = 0;
+        long buildBytes = 0;
+
+        for (int round = 0; round < 2; round++)
+        {
+            ByteBuffer in = body.duplicate().order(body.order());
+            int start = in.position();
+            long before = counter.getThreadAllocatedBytes(threadId);
+
+            for (int i = 0; i < ALLOCATION_ROUNDS; i++)
+            {
+                in.position(start);
+                sink[i] = new JSONArray();
+                decoder.decode(in, sink[i]);
+            }
+
+            long middle = counter.getThreadAllocatedBytes(threadId);
+
+            for (int i = 0; i < ALLOCATION_ROUNDS; i++)
+            {
+                sink[i] = copy(decoded);
+            }
+
+            long after = counter.getThreadAllocatedBytes(threadId);
+            decodeBytes = (middle - before) / ALLOCATION_ROUNDS;
+            buildBytes = (after - middle) / ALLOCATION_ROUNDS;
+        }
+
+        if (decodeBytes > buildBytes + ALLOCATION_SLACK)
+        {
+            throw new AssertionError(name + ": decoding allocates " + decodeBytes + " bytes per message, its values only " + buildBytes);
+        }
+    }
+
+    /**
+     * @return  The args of a body of scalars, structs of scalars and scalar arrays, written
+     *          the way the native decodeBody() writes them, see AJ_DecodeBuffer in alljoyn.i.
+     */
+    static ByteBuffer decodedBody(String signature, JSONArray args) throws JSONException
+    {
+        ByteBuffer out = ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder());
+        int arg = 0;
+
+        for (int k = 0; k < signature.length(); k++)
+        {
+            char typeId = signature.charAt(k);
+
+            if (typeId == '(' || typeId == ')')
+            {
+                out.put((byte)typeId);
+            }
+            else if (typeId == 'a')
+            {
+                char elementTypeId = signature.charAt(++k);
+                JSONArray elements = args.getJSONArray(arg++);
+                out.put((byte)'a').put((byte)elementTypeId);
+                int lenPosition = out.position();
+                out.putInt(0);
+
+                for (int i = 0; i < elements.length(); i++)
+                {
+                    putScalar(out, elementTypeId, elements, i);
+                }
+
+                out.putInt(lenPosition, out.position() - lenPosition - 4);
+            }
+            else
+            {
+                out.put((byte)typeId);
+                putScalar(out, typeId, args, arg++);
+            }
+        }
+
+        out.flip();
+        return out;
+    }
+
+    static void putScalar(ByteBuffer out, char typeId, JSONArray values, int index) throws JSONException
+    {
+        switch (typeId)
+        {
+            case 'y':
+                out.put((byte)values.getInt(index));
+                break;
+
+            case 'n':
+            case 'q':
+                out.putShort((short)values.getInt(index));
+                break;
+
+            case 'x':
+            case 't':
+                out.putLong(values.getLong(index));
+                break;
+
+            case 'd':
+                out.putDouble(values.getDouble(index));
+                break;
+
+            default:
+                out.putInt((int)values.getLong(index));
+                break;
+        }
+    }
+
+    /**
+     * @return  A copy of decoded values, boxed again by the same put() overloads a decoder uses.
+     */
+    static JSONArray copy(JSONArray values) throws JSONException
+    {
+        JSONArray copy = new JSONArray();
+
+        for (int k = 0; k < values.length(); k++)
+        {
+            Object value = values.get(k);
+
+            if (value instanceof JSONArray)
+            {
+                copy.put(copy((JSONArray)value));
+            }
+            else if (value instanceof Long)
+            {
+                copy.put(((Long)value).longValue());
+            }
+            else if (value instanceof Integer)
+            {
+                copy.put(((Integer)value).intValue());
+            }
+            else if (value instanceof Double)
+            {
+                copy.put(((Double)value).doubleValue());
+            }
+            else
+            {
+                copy.put(value);
+            }
+        }
+
+        return copy;
+    }
+
+    static void checkRoundTrip(String signature, JSONArray args, ByteBuffer body) throws JSONException
+    {
+        JSONArray decoded = new JSONArray();
+        AllJoynWireCodec.decode(SignaturePlan.get(signature), body, decoded, null);
+
+        if (body.hasRemaining() || !decoded.toString().equals(args.toString()))
+        {
+            throw new AssertionError("\"" + signature + "\": encoded " + args + ", decoded " + decoded);
+        }
+    }
+
+    static void run(String signature, JSONArray args) throws JSONException
+    {
+        SignaturePlan plan = SignaturePlan.get(signature);
+        ByteBuffer out = ByteBuffer.allocateDirect(256).order(ByteOrder.nativeOrder());
+
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN })
+        {
+            out.clear();
+            out.order(order);
+            out = AllJoynWireCodec.encode(plan, args, out, null);
+            checkRoundTrip(signature, args, out.duplicate().order(order));
+        }
+
+        out.order(ByteOrder.nativeOrder());
+
+        long encodes = 0;
+        long start = System.nanoTime();
+        long warmupEnd = start + WARMUP_MILLIS * 1000000L;
+        long end = warmupEnd + RUN_MILLIS * 1000000L;
+        long now = start;
+        long runStart = 0;
+
+        while (now < end)
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                out.clear();
+                out = AllJoynWireCodec.encode(plan, args, out, null);
+            }
+
+            now = System.nanoTime();
+
+            if (runStart == 0 && now >= warmupEnd)
+            {
+                runStart = now;
+                encodes = 0;
+            }
+            else
+            {
+                encodes += 100;
+            }
+        }
+
+        long encodeNanos = now - runStart;
+        int bodyLen = out.remaining();
+
+        long decodes = 0;
+        start = System.nanoTime();
+        warmupEnd = start + WARMUP_MILLIS * 1000000L;
+        end = warmupEnd + RUN_MILLIS * 1000000L;
+        now = start;
+        runStart = 0;
+
+        while (now < end)
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                AllJoynWireCodec.decode(plan, out.duplicate().order(out.order()), new JSONArray(), null);
+            }
+
+            now = System.nanoTime();
+
+            if (runStart == 0 && now >= warmupEnd)
+            {
+                runStart = now;
+                decodes = 0;
+            }
+            else
+            {
+                decodes += 100;
+            }
+        }
+
+        long decodeNanos = now - runStart;
+
+        System.out.println(String.format("%-8s %6d bytes   encode %9.0f ops/s %8.1f MB/s   decode %9.0f ops/s %8.1f MB/s",
+                signature, bodyLen,
+                encodes * 1e9 / encodeNanos, (double)encodes * bodyLen * 1e3 / encodeNanos,
+                decodes * 1e9 / decodeNanos, (double)decodes * bodyLen * 1e3 / decodeNanos));
+    }
+
+    /**
+     * @return  The args of one array of the given element type and length.
+     */
+    static JSONArray array(String element, int len) throws JSONException
+    {
+        JSONArray vArgs = new JSONArray();
+
+        for (int k = 0; k < len; k++)
+        {
+            switch (element.charAt(0))
+            {
+                case '(':
+                    vArgs.put(new JSONArray().put(k).put("item" + k));
+                    break;
+
+                case 'd':
+                    vArgs.put(k + 0.5);
+                    break;
+
+                case 'y':
+                    vArgs.put(k & 0xFF);
+                    break;
+
+                default:
+                    vArgs.put(k);
+                    break;
+            }
+        }
+
+        return new JSONArray().put(vArgs);
+    }
+}
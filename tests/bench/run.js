@@ -0,0 +1,99 @@
+#!/usr/bin/env node
+
+// Builds and runs WireCodecBench and ListenerQueueCheck on the local JVM.
+// Only the pure-Java sources of the plugin are compiled, against the
+// Cordova and SWIG stand-ins under stubs/, so no device or native library
+// is needed. org.json is downloaded on first run unless JSON_JAR points to
+// a local copy of it.
+
+var path = require('path');
+var os = require('os');
+var fs = require('fs');
+var https = require('https');
+var spawn = require('child_process').spawn;
+
+var JSON_JAR_URL = 'https://repo1.maven.org/maven2/org/json/json/20160212/json-20160212.jar';
+
+var benchDirectory = __dirname;
+var sourceDirectory = path.join(benchDirectory, '..', '..', 'src', 'android', 'java');
+var classDirectory = path.join(os.tmpdir(), 'alljoyn-bench');
+var jsonJar = process.env.JSON_JAR || path.join(benchDirectory, 'lib', 'json.jar');
+
+var stubDirectory = path.join(benchDirectory, 'stubs');
+
+var sources = [
+    path.join(stubDirectory, 'org', 'apache', 'cordova', 'CallbackContext.java'),
+    path.join(stubDirectory, 'org', 'apache', 'cordova', 'PluginResult.java'),
+    path.join(stubDirectory, 'org', 'allseen', 'alljoyn', '_AJ_Arg.java'),
+    path.join(sourceDirectory, 'SignaturePlan.java'),
+    path.join(sourceDirectory, 'AllJoynWireCodec.java'),
+    path.join(sourceDirectory, 'ArgScratch.java'),
+    path.join(sourceDirectory, 'DecodedBodyReader.java'),
+    path.join(sourceDirectory, 'BinaryParts.java'),
+    path.join(sourceDirectory, 'TimeoutWheel.java'),
+    path.join(sourceDirectory, 'ListenerQueue.java'),
+    path.join(benchDirectory, 'WireCodecBench.java'),
+    path.join(benchDirectory, 'ListenerQueueCheck.java')
+];
+
+var run = function (command, args, callback) {
+    var runProcess = spawn(command, args, { stdio: 'inherit' });
+
+    runProcess.on('error', function (error) {
+        console.log('Failed to run ' + command + ': ' + error.message);
+        process.exit(1);
+    });
+
+    runProcess.on('exit', function (code) {
+        if (code !== 0) {
+            process.exit(code);
+        }
+        callback();
+    });
+};
+
+var download = function (url, file, callback) {
+    https.get(url, function (response) {
+        if (response.statusCode !== 200) {
+            console.log('Failed to download ' + url + ': HTTP ' + response.statusCode);
+            process.exit(1);
+        }
+
+        var partialFile = file + '.part';
+        var output = fs.createWriteStream(partialFile);
+        response.pipe(output);
+        output.on('finish', function () {
+            output.close(function () {
+                fs.renameSync(partialFile, file);
+                callback();
+            });
+        });
+    }).on('error', function (error) {
+        console.log('Failed to download ' + url + ': ' + error.message);
+        process.exit(1);
+    });
+};
+
+var withJsonJar = function (callback) {
+    if (fs.existsSync(jsonJar)) {
+        callback();
+        return;
+    }
+
+    console.log('Downloading org.json to ' + jsonJar);
+
+    if (!fs.existsSync(path.dirname(jsonJar))) {
+        fs.mkdirSync(path.dirname(jsonJar));
+    }
+    download(JSON_JAR_URL, jsonJar, callback);
+};
+
+withJsonJar(function () {
+    var classPath = [classDirectory, jsonJar].join(path.delimiter);
+
+    run('javac', ['-encoding', 'UTF-8', '-cp', jsonJar, '-d', classDirectory].concat(sources), function () {
+        run('java', ['-cp', classPath, 'org.allseen.alljoyn.ListenerQueueCheck'], function () {
+            run('java', ['-cp', classPath, 'org.allseen.alljoyn.WireCodecBench'], function () {});
+        });
+    });
+});
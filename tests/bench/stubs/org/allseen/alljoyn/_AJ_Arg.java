@@ -0,0 +1,9 @@
+package org.allseen.alljoyn;
+
+/**
+ * Stand-in for the SWIG proxy class, which ArgScratch refers to. The bench never marshals
+ * through native code, so it is never used.
+ */
+public class _AJ_Arg
+{
+}
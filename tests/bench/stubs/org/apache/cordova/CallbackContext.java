@@ -0,0 +1,23 @@
+package org.apache.cordova;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for the Cordova class, with only what the bench needs. It records the results
+ * sent to it instead of passing them to JS.
+ */
+public class CallbackContext
+{
+    private final List<PluginResult> m_pResults = new ArrayList<PluginResult>();
+
+    public synchronized void sendPluginResult(PluginResult pluginResult)
+    {
+        m_pResults.add(pluginResult);
+    }
+
+    public synchronized List<PluginResult> getResults()
+    {
+        return new ArrayList<PluginResult>(m_pResults);
+    }
+}
@@ -0,0 +1,67 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Stand-in for the Cordova class, with only what the bench needs. It keeps the message it
+ * was built with, so that the checks can look at what would have crossed the bridge.
+ */
+public class PluginResult
+{
+    public enum Status
+    {
+        OK,
+        ERROR
+    }
+
+    private final Status m_pStatus;
+    private final Object m_pMessage;
+    private boolean m_bKeepCallback = false;
+
+    public PluginResult(Status status, JSONArray message)
+    {
+        m_pStatus = status;
+        m_pMessage = message;
+    }
+
+    public PluginResult(Status status, JSONObject message)
+    {
+        m_pStatus = status;
+        m_pMessage = message;
+    }
+
+    public PluginResult(Status status, byte[] message)
+    {
+        m_pStatus = status;
+        m_pMessage = message;
+    }
+
+    public PluginResult(Status status, List<PluginResult> message)
+    {
+        m_pStatus = status;
+        m_pMessage = message;
+    }
+
+    public Status getStatus()
+    {
+        return m_pStatus;
+    }
+
+    public Object getMessage()
+    {
+        return m_pMessage;
+    }
+
+    public void setKeepCallback(boolean keepCallback)
+    {
+        m_bKeepCallback = keepCallback;
+    }
+
+    public boolean getKeepCallback()
+    {
+        return m_bKeepCallback;
+    }
+}
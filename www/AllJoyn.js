@@ -1,5 +1,6 @@
 var exec = require('cordova/exec');
 var cordova = require('cordova');
+var base64 = require('cordova/base64');
 
 var registeredObjects = [];
 var connectedBus = null;
@@ -36,22 +37,291 @@ var wrapMsgInfoReceivingCallback = function (callback) {
     };
 };
 
+// With the binary option, byte arrays arrive as ArrayBuffer parts of a multipart result:
+// the callback gets the JSON payload followed by the buffers, and the payload marks the
+// place of each buffer with { $binary: index }.
+var resolveBinaryParts = function (value, parts) {
+    if (value === null || typeof value !== 'object') {
+        return value;
+    }
+    if (Array.isArray(value)) {
+        for (var i = 0; i < value.length; i++) {
+            value[i] = resolveBinaryParts(value[i], parts);
+        }
+        return value;
+    }
+    if (value.hasOwnProperty('$binary')) {
+        return parts[value.$binary];
+    }
+    for (var key in value) {
+        if (value.hasOwnProperty(key)) {
+            value[key] = resolveBinaryParts(value[key], parts);
+        }
+    }
+    return value;
+};
+
+var wrapBinaryResultCallback = function (callback) {
+    return function (payload) {
+        if (arguments.length > 1) {
+            payload = resolveBinaryParts(payload, Array.prototype.slice.call(arguments, 1));
+        }
+        callback(payload);
+    };
+};
+
+// With the chunkSize option, the elements of big top-level arrays arrive ahead of their
+// message in chunk results { $chunk: streamId, arg: index, elements: [...] }, and the
+// message holds { $chunked: streamId, count: n } in place of each array. Without an
+// onChunk callback the chunks are joined back into the arrays; with one, every chunk is
+// passed to it as onChunk(elements, index) and the message holds the element count.
+var createChunkJoiner = function (onChunk) {
+    var streams = {};
+    return {
+        // Returns true if the result was a chunk
+        accept: function (result) {
+            if (result === null || typeof result !== 'object' || !result.hasOwnProperty('$chunk')) {
+                return false;
+            }
+            if (onChunk) {
+                onChunk(result.elements, result.arg);
+                return true;
+            }
+            var stream = streams[result.$chunk] = streams[result.$chunk] || {};
+            if (stream[result.arg]) {
+                Array.prototype.push.apply(stream[result.arg], result.elements);
+            } else {
+                stream[result.arg] = result.elements;
+            }
+            return true;
+        },
+        // Replaces the end markers in the arguments of a message
+        resolve: function (msgInfoAndArguments) {
+            var args = msgInfoAndArguments[1];
+            var lastStreamId = -1;
+            if (Array.isArray(args)) {
+                for (var i = 0; i < args.length; i++) {
+                    var marker = args[i];
+                    if (marker !== null && typeof marker === 'object' && marker.hasOwnProperty('$chunked')) {
+                        var stream = streams[marker.$chunked];
+                        args[i] = onChunk ? marker.count : ((stream && stream[i]) || []);
+                        lastStreamId = marker.$chunked;
+                    }
+                }
+            }
+            // Streams end in order; older ones belong to messages that were dropped or failed
+            for (var id in streams) {
+                if (streams.hasOwnProperty(id) && Number(id) <= lastStreamId) {
+                    delete streams[id];
+                }
+            }
+            return msgInfoAndArguments;
+        }
+    };
+};
+
+// Wraps the success callback of a method call, to build the reply message from the
+// plugin result with the binary and chunkSize options applied.
+var wrapReplyCallback = function (callback, options) {
+    var replyCallback = wrapMsgInfoReceivingCallback(callback);
+    if (options && options.chunkSize) {
+        var chunkJoiner = createChunkJoiner(options.onChunk);
+        var msgCallback = replyCallback;
+        replyCallback = function (result) {
+            if (!chunkJoiner.accept(result)) {
+                msgCallback(chunkJoiner.resolve(result));
+            }
+        };
+    }
+    return wrapBinaryResultCallback(replyCallback);
+};
+
+// Signals of emitSignal wait here until the current JS task ends, then go to the plugin in
+// one exec. The plugin queues them and sends them without acknowledging each one; failures
+// and drops are only reported, in aggregate, to the listener of setSignalErrorListener.
+var pendingSignals = [];
+var queueSignal = function (signal) {
+    if (pendingSignals.length === 0) {
+        setTimeout(function () {
+            var signals = pendingSignals;
+            pendingSignals = [];
+            exec(null, null, 'AllJoyn', 'emitSignals', [signals]);
+        }, 0);
+    }
+    signal.parameters = encodeBinaryArguments(signal.parameters || []);
+    pendingSignals.push(signal);
+};
+
+// Sends many method calls and signals in one exec (Android only). Each invocation is
+//   { destination, path, indexList, inParameterType, parameters, outParameterType, options }
+// as the arguments of callMethod, or { member: preparedMember, parameters } for a member
+// from prepareMember, and may set its own sessionId. The binary and chunkSize options are
+// not supported in a batch. Each result is { ok: true, value: reply message or signal text }
+// or { ok: false, value: error }; the success callback gets them in invocation order.
+// With options.onResult, results are passed to it as onResult(result, index) as soon as
+// they arrive instead, and the success callback is called once all have arrived.
+var invokeBatch = function (success, error, sessionId, invocations, options) {
+    var toResult = function (item) {
+        var value = item.value;
+        if (item.ok && Array.isArray(value)) {
+            value = buildMsgFromMsgArguments(value);
+        }
+        return { ok: item.ok, value: value };
+    };
+    var items = invocations.map(function (invocation) {
+        var item = {};
+        for (var key in invocation) {
+            if (invocation.hasOwnProperty(key)) {
+                item[key] = invocation[key];
+            }
+        }
+        if (invocation.member && typeof invocation.member === 'object') {
+            item.member = invocation.member.handle;
+        }
+        item.parameters = encodeBinaryArguments(invocation.parameters || []);
+        return item;
+    });
+    var onResult = options && options.onResult;
+    var batchCallback = function (result) {
+        if (onResult && result && result.hasOwnProperty('$item')) {
+            onResult(toResult(result), result.$item);
+        } else if (onResult) {
+            success();
+        } else {
+            success(result.map(toResult));
+        }
+    };
+    exec(batchCallback, error, 'AllJoyn', 'invokeBatch', [sessionId, items, { stream: !!onResult }]);
+};
+
+// ArrayBuffers and typed arrays in arguments are sent as the base64 of their bytes. A typed
+// array must match the element type of the signature, e.g. Uint8Array for 'ay' or
+// Int32Array for 'ai'.
+var encodeBinaryArguments = function (value) {
+    if (value instanceof ArrayBuffer) {
+        return { $base64: base64.fromArrayBuffer(value) };
+    }
+    if (ArrayBuffer.isView(value)) {
+        return { $base64: base64.fromArrayBuffer(value.buffer.slice(value.byteOffset, value.byteOffset + value.byteLength)) };
+    }
+    if (Array.isArray(value)) {
+        return value.map(encodeBinaryArguments);
+    }
+    return value;
+};
+
+// Flow controlled listeners acknowledge every result they have processed.
+// Acks are coalesced so that one exec per tick carries all of them.
+var nextListenerId = 1;
+var pendingAcks = null;
+
+var ackListenerResult = function (listenerId) {
+    if (pendingAcks === null) {
+        pendingAcks = {};
+        setTimeout(function () {
+            var acks = [];
+            for (var id in pendingAcks) {
+                if (pendingAcks.hasOwnProperty(id)) {
+                    acks.push([Number(id), pendingAcks[id]]);
+                }
+            }
+            pendingAcks = null;
+            exec(function () {}, function () {}, 'AllJoyn', 'listenerAck', [acks]);
+        }, 0);
+    }
+    pendingAcks[listenerId] = (pendingAcks[listenerId] || 0) + 1;
+};
+
 var AllJoyn = {
     connect: function (success, error) {
         var successCallback = function () {
             var bus = {
-                addListener: function (indexList, responseType, listener) {
+                // options (optional, Android only):
+                //   batchSize: deliver up to this many messages per bridge crossing
+                //   batchWindow: max time in milliseconds a message waits for its batch; without it, a batch waits
+                //                until it holds batchSize messages, or until the queue is full with flow control
+                //   policy: turns on flow control, and decides what happens to messages arriving while
+                //           the queue is full: 'block', 'dropOldest', 'dropNewest' or 'latest'
+                //   queueSize: max number of messages waiting for the listener (default 64)
+                //   credits: max number of deliveries the listener hasn't finished yet (default 2)
+                //   blockTimeout: max time in milliseconds 'block' stalls the message loop (default 1000)
+                //   conflate: while the listener is busy, a newer message from the same sender, object path and
+                //             member replaces the one still waiting; turns on flow control (default policy 'dropOldest')
+                //   binary: deliver byte arrays ('ay') as ArrayBuffers instead of arrays of numbers
+                //   chunkSize: unmarshal top-level arrays of containers, strings or variants in chunks of this many
+                //              elements, so that big arrays are never held whole on the native side; can't be
+                //              combined with conflate
+                //   onChunk: function (elements, argumentIndex) receiving the chunks as they arrive; the message
+                //            then holds the number of elements in place of each array. Without it, the chunks
+                //            are joined back into the arrays of the message.
+                //   dictionaries: deliver arrays of dict entries with string keys, e.g. 'a{sv}', as objects mapping each
+                //                 key to its value, with variants unwrapped to the value they hold and structs as
+                //                 arrays of their fields
+                //   filter: only deliver the messages that match, checked before they become JSON:
+                //           { sender, path, sessionId: a value or an array of values the header field has to match,
+                //             args: [{ index, equals: value }, { index, in: [values] }, { index, min, max }, ...] on
+                //             top-level arguments }. setFilter(filter, success, error) of the object addListener
+                //             then returns replaces the filter, or removes it with null.
+                //   maxRate: deliver at most this many messages per second, with up to burst (default 1) back to back
+                //   sampleEvery: deliver only every k-th message
+                //   sampleInterval: deliver at most one message per this many milliseconds
+                //   These only count messages that pass the filter. The messages they hold back are not unmarshalled;
+                //   getStatistics counts them as suppressed, under the listenerId of the object addListener returns
+                // remove(success, error) of the object addListener returns stops the delivery to the listener (Android only)
+                addListener: function (indexList, responseType, listener, options) {
                     // We are passing the listener function to the exec call as its success callback, but in this case,
                     // it is expected that the callback can be called multiple times. The error callback is passed just because
                     // exec requires it, but it is not used for anything.
                     // The listener is also passed as a parameter, because in the Windows implementation, the success callback
                     // can't be called multiple times.
                     var wrappedListener = wrapMsgInfoReceivingCallback(listener);
-                    exec(wrappedListener, function () {}, 'AllJoyn', 'addListener', [indexList, responseType, wrappedListener]);
+                    // Every listener gets an id, so that it can be removed again
+                    var listenerOptions = { listenerId: nextListenerId++ };
+                    if (options) {
+                        for (var option in options) {
+                            if (options.hasOwnProperty(option) && option !== 'onChunk') {
+                                listenerOptions[option] = options[option];
+                            }
+                        }
+                    }
+                    var chunkJoiner = (options && options.chunkSize) ? createChunkJoiner(options.onChunk) : null;
+                    var deliverMessage = chunkJoiner ? function (result) {
+                        wrappedListener(chunkJoiner.resolve(result));
+                    } : wrappedListener;
+                    var batchListener = function (result) {
+                        // Chunks are not flow controlled, so they are not acknowledged
+                        if (chunkJoiner && chunkJoiner.accept(result)) {
+                            return;
+                        }
+                        try {
+                            // A batch is an array of messages, a single message starts with its msgInfo object
+                            if (Array.isArray(result[0])) {
+                                result.forEach(deliverMessage);
+                            } else {
+                                deliverMessage(result);
+                            }
+                        } finally {
+                            if (listenerOptions.policy || listenerOptions.conflate) {
+                                ackListenerResult(listenerOptions.listenerId);
+                            }
+                        }
+                    };
+                    var listenerId = listenerOptions.listenerId;
+                    exec(wrapBinaryResultCallback(batchListener), function () {}, 'AllJoyn', 'addListener', [indexList, responseType, wrappedListener, listenerOptions]);
+                    return {
+                        listenerId: listenerId,
+                        setFilter: function (filter, success, error) {
+                            exec(success || function () {}, error || function () {}, 'AllJoyn', 'setListenerFilter', [listenerId, filter || null]);
+                        },
+                        remove: function (success, error) {
+                            exec(success || function () {}, error || function () {}, 'AllJoyn', 'removeListener', [listenerId]);
+                        }
+                    };
                 },
                 addListenerForReply: function (indexList, responseType, listener) {
                     // Called when we get a message that matches the index
-                    // messagePointer needs to be sent back to the to open the message loop back up
+                    // messagePointer identifies the pending request and needs to be sent back with the reply;
+                    // other messages keep being delivered while the reply is pending
                     // doneCallback is used in WinRT implementation
                     var listenerForReply = function (messageBody, messagePointer, doneCallback) {
                         var getClass = {}.toString;
@@ -65,7 +335,7 @@ var AllJoyn = {
                             replySuccess: function (parameterTypes, parameters) {
                                 exec(
                                     replyCompleted,
-                                    function () {}, 'AllJoyn', 'sendSuccessReply', [messagePointer, parameterTypes, parameters]);
+                                    function () {}, 'AllJoyn', 'sendSuccessReply', [messagePointer, parameterTypes, encodeBinaryArguments(parameters)]);
                             },
                             replyError: function (errorMessage) {
                                 exec(
@@ -112,7 +382,11 @@ var AllJoyn = {
                     });
                     exec(wrappedListener, function () {}, 'AllJoyn', 'addAdvertisedNameListener', [name, wrappedListener]);
                 },
-                addInterfacesListener: function (interfaceNames, listener) {
+                // options (optional):
+                //   dictionaries: map each key of aboutAnnouncement.properties to the value its variant holds,
+                //                 instead of to [signature, value]
+                addInterfacesListener: function (interfaceNames, listener, options) {
+                    var dictionaries = !!(options && options.dictionaries);
                     var aboutAnnouncementRule = 'interface=\'org.alljoyn.About\',sessionless=\'t\'';
                     if (interfaceNames) {
                         if (interfaceNames.constructor !== Array) {
@@ -154,13 +428,21 @@ var AllJoyn = {
                             }
 
                             // Get the properties from the announcement
-                            // the 'a{sv}' part of the signature
+                            // the 'a{sv}' part of the signature, already an object where the dictionaries option is supported
                             if (msgArgs[3] && msgArgs[3].constructor === Array) {
                                 msgArgs[3].forEach(function (objectProperty) {
                                     if (objectProperty.constructor === Array) {
-                                        aboutAnnouncement.properties[objectProperty.shift()] = objectProperty;
+                                        if (dictionaries) {
+                                            // [key, signature, value...]: keep the value the variant holds
+                                            var key = objectProperty[0];
+                                            aboutAnnouncement.properties[key] = (objectProperty.length === 3) ? objectProperty[2] : objectProperty.slice(2);
+                                        } else {
+                                            aboutAnnouncement.properties[objectProperty.shift()] = objectProperty;
+                                        }
                                     }
                                 });
+                            } else if (msgArgs[3] && typeof msgArgs[3] === 'object') {
+                                aboutAnnouncement.properties = msgArgs[3];
                             }
                         }
                         console.log('AboutAnnouncement: ' + JSON.stringify(aboutAnnouncement));
@@ -168,7 +450,7 @@ var AllJoyn = {
                     };
                     var onAddAboutAnnouncementRuleSuccess = function () {
                         var aboutAnnouncementIndexList = [0, 5, 1, 3]; // AJ_SIGNAL_ABOUT_ANNOUNCE
-                        bus.addListener(aboutAnnouncementIndexList, 'qqa(oas)a{sv}', onAboutAnnouncementReceived);
+                        bus.addListener(aboutAnnouncementIndexList, 'qqa(oas)a{sv}', onAboutAnnouncementReceived, dictionaries ? { dictionaries: true } : undefined);
                     };
                     exec(onAddAboutAnnouncementRuleSuccess, function () {}, 'AllJoyn', 'setSignalRule', [aboutAnnouncementRule, 0]);
                 },
@@ -181,7 +463,8 @@ var AllJoyn = {
                 /*
                 var service = {
                 name: 'name.of.the.service',
-                port: 12
+                port: 12,
+                timeout: 10000 // optional, milliseconds to wait for the reply
                 };
                 */
                 joinSession: function (success, error, service) {
@@ -192,14 +475,59 @@ var AllJoyn = {
                             sessionId: sessionId,
                             sessionHost: sessionHost,
                             message: msg,
-                            callMethod: function (callMethodSuccess, callMethodError, destination, path, indexList, inParameterType, parameters, outParameterType) {
+                            // options (optional):
+                            //   timeout: milliseconds to wait for the reply
+                            //   binary: deliver byte arrays ('ay') of the reply as ArrayBuffers (Android only)
+                            //   chunkSize, onChunk: unmarshal big arrays of the reply in chunks, as for addListener (Android only)
+                            //   dictionaries: deliver string-keyed dictionaries of the reply as objects, as for addListener (Android only)
+                            // parameters may hold ArrayBuffers or typed arrays for arrays of scalars (Android only)
+                            callMethod: function (callMethodSuccess, callMethodError, destination, path, indexList, inParameterType, parameters, outParameterType, options) {
                                 var signature = getSignature(indexList, registeredObjects);
-                                var wrappedSuccessCallback = wrapMsgInfoReceivingCallback(callMethodSuccess);
-                                exec(wrappedSuccessCallback, callMethodError, 'AllJoyn', 'invokeMember', [sessionId, destination, signature, path, indexList, inParameterType, parameters, outParameterType]);
+                                var wrappedSuccessCallback = wrapReplyCallback(callMethodSuccess, options);
+                                exec(wrappedSuccessCallback, callMethodError, 'AllJoyn', 'invokeMember', [sessionId, destination, signature, path, indexList, inParameterType, encodeBinaryArguments(parameters), outParameterType, options || null]);
+                            },
+                            // Resolves a method or signal once for repeated calls (Android only). The success callback gets
+                            // a prepared member; its calls carry only the parameters to the plugin:
+                            //   call(callSuccess, callError, parameters): calls the method or sends the signal
+                            //   release(releaseSuccess, releaseError): frees the member in the plugin
+                            // options as for callMethod
+                            prepareMember: function (prepareSuccess, prepareError, destination, path, indexList, inParameterType, outParameterType, options) {
+                                var onPrepared = function (handle) {
+                                    prepareSuccess({
+                                        handle: handle,
+                                        call: function (callSuccess, callError, parameters) {
+                                            var replyCallback = wrapReplyCallback(callSuccess, options);
+                                            var wrappedSuccessCallback = function (result) {
+                                                // Signals succeed with a plain message rather than a reply
+                                                if (typeof result === 'string') {
+                                                    callSuccess(result);
+                                                } else {
+                                                    replyCallback.apply(null, arguments);
+                                                }
+                                            };
+                                            exec(wrappedSuccessCallback, callError, 'AllJoyn', 'invokePrepared', [handle, sessionId, encodeBinaryArguments(parameters)]);
+                                        },
+                                        // Sends a signal without acknowledgement, as emitSignal
+                                        emit: function (parameters) {
+                                            queueSignal({ member: handle, sessionId: sessionId, parameters: parameters });
+                                        },
+                                        release: function (releaseSuccess, releaseError) {
+                                            exec(releaseSuccess, releaseError, 'AllJoyn', 'releaseMember', [handle]);
+                                        }
+                                    });
+                                };
+                                exec(onPrepared, prepareError, 'AllJoyn', 'prepareMember', [destination, path, indexList, inParameterType, outParameterType || null, options || null]);
                             },
                             sendSignal: function (sendSignalSuccess, sendSignalError, destination, path, indexList, inParameterType, parameters) {
                                 var signature = getSignature(indexList, registeredObjects);
-                                exec(sendSignalSuccess, sendSignalError, 'AllJoyn', 'invokeMember', [sessionId, destination, signature, path, indexList, inParameterType, parameters]);
+                                exec(sendSignalSuccess, sendSignalError, 'AllJoyn', 'invokeMember', [sessionId, destination, signature, path, indexList, inParameterType, encodeBinaryArguments(parameters)]);
+                            },
+                            invokeBatch: function (batchSuccess, batchError, invocations, options) {
+                                invokeBatch(batchSuccess, batchError, sessionId, invocations, options);
+                            },
+                            // As sendSignal, without acknowledgement (Android only); see bus.emitSignal
+                            emitSignal: function (destination, path, indexList, inParameterType, parameters) {
+                                queueSignal({ sessionId: sessionId, destination: destination, path: path, indexList: indexList, inParameterType: inParameterType, parameters: parameters });
                             },
                             leave: function (leaveSuccess, leaveError) {
                                 exec(leaveSuccess, leaveError, 'AllJoyn', 'leaveSession', [sessionId]);
@@ -212,7 +540,21 @@ var AllJoyn = {
                 },
                 sendSignal: function (sendSignalSuccess, sendSignalError, indexList, inParameterType, parameters) {
                     var signature = getSignature(indexList, registeredObjects);
-                    exec(sendSignalSuccess, sendSignalError, 'AllJoyn', 'invokeMember', [null, null, signature, null, indexList, inParameterType, parameters]);
+                    exec(sendSignalSuccess, sendSignalError, 'AllJoyn', 'invokeMember', [null, null, signature, null, indexList, inParameterType, encodeBinaryArguments(parameters)]);
+                },
+                // As sendSignal, for signals sent at a high rate (Android only). Signals emitted in the same
+                // JS task go to the plugin together, and are sent in batches without acknowledging each one.
+                emitSignal: function (indexList, inParameterType, parameters) {
+                    queueSignal({ sessionId: 0, indexList: indexList, inParameterType: inParameterType, parameters: parameters });
+                },
+                // The listener gets { failed, dropped, lastError } after signals of emitSignal failed or were
+                // dropped because the plugin's queue was full (Android only)
+                setSignalErrorListener: function (listener) {
+                    exec(listener, function () {}, 'AllJoyn', 'setSignalErrorListener', []);
+                },
+                // Invocations without a sessionId of their own go out without a session, as for sendSignal
+                invokeBatch: function (batchSuccess, batchError, invocations, options) {
+                    invokeBatch(batchSuccess, batchError, 0, invocations, options);
                 }
             };
 
@@ -245,6 +587,25 @@ var AllJoyn = {
             success(connectedBus);
         }
     },
+    /*
+     * Tunes the native message handling (Android only). Supported options:
+     *   drainBudget: max number of messages dispatched per wakeup of the message loop (default 64)
+     *   methodTimeout: default time in milliseconds to wait for a method reply (default 10000)
+     *   workerThreads: number of threads running connect, registerObjects and method calls (default 2)
+     *   workerQueueSize: max number of queued calls; calls beyond it fail right away (default 256)
+     *   nativeDecoder: unmarshal message bodies in a single native call (default true)
+     *   javaCodec: marshal and unmarshal message bodies in Java, passing them to the native library as raw bytes (default false)
+     */
+    configure: function (success, error, options) {
+        exec(success, error, 'AllJoyn', 'configure', [options]);
+    },
+    /*
+     * Reports counters of the native message handling (Android only), e.g. the worker
+     * queue depth and the number of rejected calls.
+     */
+    getStatistics: function (success, error) {
+        exec(success, error, 'AllJoyn', 'getStatistics', []);
+    },
     registerObjects: function (success, error, applicationObjects, proxyObjects) {
         exec(function () {
             registeredObjects = [null, applicationObjects, proxyObjects];